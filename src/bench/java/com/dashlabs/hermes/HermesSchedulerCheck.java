@@ -0,0 +1,246 @@
+package com.dashlabs.hermes;
+
+import com.dashlabs.hermes.bench.Registrations;
+import com.dashlabs.hermes.firebase.MessageWrapper;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.common.base.Ticker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * User: blangel
+ * Date: 10/18/26
+ * Time: 11:40 PM
+ *
+ * Checks the timing wheel of {@link HermesScheduler} against a manual clock, advancing it tick by tick: sends due on
+ * either side of the cascade boundaries of the second and third levels (ticks 512 and 262144), sends cancelled before
+ * and after the wheel took them, a shutdown racing with a producer and a random mix of schedules and cancels. Each send
+ * must be released on exactly its tick, and no future may be left incomplete. Usage:
+ *
+ * <pre>
+ *   HermesSchedulerCheck [sends]
+ * </pre>
+ *
+ * Exits normally when all checks pass; throws {@link AssertionError} otherwise.
+ */
+public final class HermesSchedulerCheck {
+
+    private static final long TICK_MILLIS = 100L;
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+
+    private static final class ManualTicker extends Ticker {
+
+        private final AtomicLong nanos = new AtomicLong(1L);
+
+        @Override public long read() {
+            return nanos.get();
+        }
+
+        private long tick() {
+            return (nanos.get() - 1L) / TICK_NANOS;
+        }
+
+        private void set(long tick) {
+            nanos.set(1L + (tick * TICK_NANOS));
+        }
+    }
+
+    /**
+     * Records the tick at which each id is sent.
+     */
+    private static final class RecordingTransport implements Transport<MessageWrapper> {
+
+        private final String id;
+
+        private final ManualTicker ticker;
+
+        private final ConcurrentHashMap<String, Long> sent;
+
+        private RecordingTransport(String id, ManualTicker ticker, ConcurrentHashMap<String, Long> sent) {
+            this.id = id;
+            this.ticker = ticker;
+            this.sent = sent;
+        }
+
+        @Override public String getId() {
+            return id;
+        }
+
+        @Override public RecordingTransport forId(String id) {
+            return new RecordingTransport(id, ticker, sent);
+        }
+
+        @Override public String send(MessageWrapper message, int retries) {
+            if (sent.put(id, ticker.tick()) != null) {
+                throw new AssertionError(String.format("%s sent twice", id));
+            }
+            return id;
+        }
+
+        @Override public ApiFuture<String> sendAsync(MessageWrapper message, int retries) {
+            return ApiFutures.immediateFuture(send(message, retries));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int sends = (args.length > 0 ? Integer.parseInt(args[0]) : 200000);
+        boundaries();
+        cancels();
+        shutdown();
+        random(sends);
+        System.out.println("HermesScheduler checks passed");
+    }
+
+    private static void boundaries() {
+        ManualTicker ticker = new ManualTicker();
+        ConcurrentHashMap<String, Long> sent = new ConcurrentHashMap<String, Long>();
+        RecordingTransport transport = new RecordingTransport("", ticker, sent);
+        HermesScheduler scheduler = manual(ticker);
+        long[] deadlines = { 1L, 511L, 512L, 513L, 1023L, 1024L, 262143L, 262144L, 262145L, 262144L + 512L };
+        List<ApiFuture<String>> futures = new ArrayList<ApiFuture<String>>();
+        for (long deadline : deadlines) {
+            futures.add(schedule(scheduler, transport.forId("due-" + deadline), deadline));
+        }
+        for (long deadline : deadlines) {
+            step(scheduler, ticker, deadline - 1L);
+            check(!sent.containsKey("due-" + deadline), "due-%d released before its tick", deadline);
+            step(scheduler, ticker, deadline);
+            check(Long.valueOf(deadline).equals(sent.get("due-" + deadline)), "due-%d released at %s", deadline,
+                    sent.get("due-" + deadline));
+        }
+        for (ApiFuture<String> future : futures) {
+            check(future.isDone(), "future of a released send is not done");
+        }
+        check(scheduler.getPending() == 0L, "%d sends still pending", scheduler.getPending());
+        scheduler.shutdown();
+    }
+
+    private static void cancels() throws Exception {
+        ManualTicker ticker = new ManualTicker();
+        ConcurrentHashMap<String, Long> sent = new ConcurrentHashMap<String, Long>();
+        RecordingTransport transport = new RecordingTransport("", ticker, sent);
+        HermesScheduler scheduler = manual(ticker);
+        // cancelled before the wheel drains it
+        ApiFuture<String> early = schedule(scheduler, transport.forId("early"), 600L);
+        check(early.cancel(false), "could not cancel before drain");
+        // cancelled once linked into the second level
+        ApiFuture<String> linked = schedule(scheduler, transport.forId("linked"), 600L);
+        ApiFuture<String> kept = schedule(scheduler, transport.forId("kept"), 600L);
+        scheduler.advance();
+        check(linked.cancel(false), "could not cancel once linked");
+        step(scheduler, ticker, 700L);
+        check(!sent.containsKey("early") && !sent.containsKey("linked"), "cancelled send released: %s", sent);
+        check("kept".equals(kept.get()), "kept send not released");
+        check(scheduler.getCancelled() == 2L, "%d cancelled rather than 2", scheduler.getCancelled());
+        check(scheduler.getPending() == 0L, "%d sends still pending", scheduler.getPending());
+        check(!linked.cancel(false) && early.isCancelled(), "cancel is not final");
+        scheduler.shutdown();
+    }
+
+    private static void shutdown() throws Exception {
+        final ManualTicker ticker = new ManualTicker();
+        ConcurrentHashMap<String, Long> sent = new ConcurrentHashMap<String, Long>();
+        final RecordingTransport transport = new RecordingTransport("", ticker, sent);
+        final HermesScheduler scheduler = manual(ticker);
+        final List<ApiFuture<String>> futures = new ArrayList<ApiFuture<String>>();
+        Thread producer = new Thread(new Runnable() {
+            @Override public void run() {
+                for (int i = 0; i < 100000; i++) {
+                    futures.add(schedule(scheduler, transport.forId(Registrations.id(i)), 10L));
+                }
+            }
+        });
+        producer.start();
+        Thread.sleep(5L);
+        scheduler.shutdown();
+        producer.join();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        for (ApiFuture<String> future : futures) {
+            try {
+                future.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                throw new AssertionError("send released after shutdown");
+            } catch (ExecutionException ee) {
+                // scheduled after the shutdown
+            } catch (CancellationException ce) {
+                // cancelled by the shutdown
+            }
+        }
+        check(scheduler.getPending() == 0L, "%d sends still pending after shutdown", scheduler.getPending());
+        check(sent.isEmpty(), "%d sends released after shutdown", sent.size());
+    }
+
+    private static void random(int sends) throws Exception {
+        ManualTicker ticker = new ManualTicker();
+        ConcurrentHashMap<String, Long> sent = new ConcurrentHashMap<String, Long>();
+        RecordingTransport transport = new RecordingTransport("", ticker, sent);
+        HermesScheduler scheduler = manual(ticker);
+        Random random = new Random(42L);
+        long horizon = 300000L;
+        long[] deadlines = new long[sends];
+        List<ApiFuture<String>> futures = new ArrayList<ApiFuture<String>>(sends);
+        for (int i = 0; i < sends; i++) {
+            deadlines[i] = 1L + (long) random.nextInt((int) horizon);
+            futures.add(schedule(scheduler, transport.forId(Registrations.id(i)), deadlines[i]));
+            if ((i % 1000) == 0) {
+                // let the wheel take some before the cancels below, and some after
+                scheduler.advance();
+            }
+        }
+        int cancelled = 0;
+        for (int i = 0; i < sends; i += 2) {
+            if (futures.get(i).cancel(false)) {
+                cancelled++;
+            }
+        }
+        for (long tick = 1L; tick <= horizon; tick++) {
+            step(scheduler, ticker, tick);
+        }
+        for (int i = 0; i < sends; i++) {
+            Long at = sent.get(Registrations.id(i));
+            if ((i % 2) == 0) {
+                check(at == null, "cancelled send %d released", i);
+            } else {
+                check(Long.valueOf(deadlines[i]).equals(at), "send %d due at %d released at %s", i, deadlines[i], at);
+                check(futures.get(i).isDone(), "future of send %d not done", i);
+            }
+        }
+        check(scheduler.getCancelled() == cancelled, "%d cancelled rather than %d", scheduler.getCancelled(), cancelled);
+        check(scheduler.getReleased() == (sends - cancelled), "%d released rather than %d", scheduler.getReleased(),
+                sends - cancelled);
+        check(scheduler.getPending() == 0L, "%d sends still pending", scheduler.getPending());
+        scheduler.shutdown();
+    }
+
+    private static HermesScheduler manual(ManualTicker ticker) {
+        return HermesScheduler.builder().tick(TICK_MILLIS, TimeUnit.MILLISECONDS).ticker(ticker).manual().build();
+    }
+
+    private static ApiFuture<String> schedule(HermesScheduler scheduler, Transport<MessageWrapper> transport,
+                                              long tick) {
+        return Hermes.androidFirebase(transport).body("check")
+                .sendAt(scheduler, scheduler.getStartMillis() + (tick * TICK_MILLIS), 0);
+    }
+
+    private static void step(HermesScheduler scheduler, ManualTicker ticker, long tick) {
+        ticker.set(tick);
+        scheduler.advance();
+    }
+
+    private static void check(boolean condition, String message, Object ... args) {
+        if (!condition) {
+            throw new AssertionError(String.format(message, args));
+        }
+    }
+
+    private HermesSchedulerCheck() { }
+
+}
@@ -0,0 +1,29 @@
+package com.dashlabs.hermes.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * User: blangel
+ * Date: 10/18/26
+ * Time: 6:35 PM
+ *
+ * Runs the benchmarks with the GC profiler enabled, so allocation rates (gc.alloc.rate.norm, in bytes per operation)
+ * are reported alongside throughput. Accepts the standard JMH command line, e.g. a benchmark regex or {@code -f 1}.
+ */
+public final class BenchmarkRunner {
+
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+    private BenchmarkRunner() { }
+
+}
@@ -0,0 +1,64 @@
+package com.dashlabs.hermes.bench;
+
+import com.dashlabs.hermes.FirebaseTransport;
+import com.dashlabs.hermes.Hermes;
+import com.dashlabs.hermes.firebase.MessageWrapper;
+import com.google.firebase.FirebaseApp;
+import com.google.firebase.messaging.FirebaseMessaging;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * User: blangel
+ * Date: 10/18/26
+ * Time: 6:20 PM
+ *
+ * {@link FirebaseTransport#send(MessageWrapper, int)} against a {@link StubFirebase}; measures stamping the template,
+ * the Firebase client's serialization and response handling and the hermes bookkeeping around each send.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FirebaseTransportBenchmark {
+
+    @Param({"Small", "Typical", "NearLimit"})
+    public Payload payload;
+
+    private FirebaseApp app;
+
+    private FirebaseTransport transport;
+
+    private MessageWrapper message;
+
+    @Setup
+    public void setUp() {
+        app = StubFirebase.newApp();
+        transport = new FirebaseTransport("bench-registration-id", FirebaseMessaging.getInstance(app));
+        Hermes.FirebaseBuilder builder = Hermes.androidFirebase(transport).body(payload.getBody());
+        for (Map.Entry<String, String> entry : payload.getData().entrySet()) {
+            builder.withData(entry.getKey(), entry.getValue());
+        }
+        message = builder.build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        app.delete();
+    }
+
+    @Benchmark
+    public String send() {
+        return transport.send(message, 0);
+    }
+
+}
@@ -0,0 +1,50 @@
+package com.dashlabs.hermes.bench;
+
+import com.dashlabs.hermes.Hermes;
+import com.dashlabs.hermes.firebase.MessageWrapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * User: blangel
+ * Date: 10/18/26
+ * Time: 6:05 PM
+ *
+ * Building a message template through {@link Hermes.FirebaseBuilder}, from populating the builder through to
+ * {@link Hermes.FirebaseBuilder#build()}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HermesBuildBenchmark {
+
+    @Param({"Small", "Typical", "NearLimit"})
+    public Payload payload;
+
+    @Benchmark
+    public MessageWrapper buildAndroidFirebase() {
+        return populate(Hermes.androidFirebase(null)).build();
+    }
+
+    @Benchmark
+    public MessageWrapper buildIOSFirebase() {
+        return populate(Hermes.iOSFirebase(null, "Dash")).build();
+    }
+
+    private Hermes.FirebaseBuilder populate(Hermes.FirebaseBuilder builder) {
+        builder.body(payload.getBody()).collapseKey("bench").timeToLiveSeconds(3600);
+        for (Map.Entry<String, String> entry : payload.getData().entrySet()) {
+            builder.withData(entry.getKey(), entry.getValue());
+        }
+        return builder;
+    }
+
+}
@@ -0,0 +1,101 @@
+package com.dashlabs.hermes.bench;
+
+import com.dashlabs.hermes.FirebaseHttp2Transport;
+import com.dashlabs.hermes.Hermes;
+import com.google.api.core.ApiFuture;
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.GoogleCredentials;
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * User: blangel
+ * Date: 10/18/26
+ * Time: 11:55 PM
+ *
+ * Checks {@link FirebaseHttp2Transport.Builder#priorKnowledge()} against a plaintext HTTP/2 stub: the stub holds every
+ * response until {@code sends} requests are in flight at once, which only multiplexing over one connection allows
+ * with a single idle connection, and each request must be a distinct stream of that one connection. Usage:
+ *
+ * <pre>
+ *   Http2PriorKnowledgeCheck [sends]
+ * </pre>
+ *
+ * Exits normally when all checks pass; throws {@link AssertionError} otherwise.
+ */
+public final class Http2PriorKnowledgeCheck {
+
+    private static final String RESPONSE = "{\"name\":\"projects/hermes-check/messages/0:1539893612%31bd1c9631bd1c96\"}";
+
+    /**
+     * Logs every request made to the stub; held so that its level is kept.
+     */
+    private static final Logger STUB_LOG = Logger.getLogger(MockWebServer.class.getName());
+
+    public static void main(String[] args) throws Exception {
+        int sends = (args.length > 0 ? Integer.parseInt(args[0]) : 50);
+        final CountDownLatch inFlight = new CountDownLatch(sends);
+        final Set<Integer> streams = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+        STUB_LOG.setLevel(Level.WARNING);
+        MockWebServer server = new MockWebServer();
+        server.setProtocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+        server.setDispatcher(new Dispatcher() {
+            @Override public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                // numbered per connection, so distinct numbers mean one shared connection
+                streams.add(request.getSequenceNumber());
+                inFlight.countDown();
+                if (!inFlight.await(10, TimeUnit.SECONDS)) {
+                    return new MockResponse().setResponseCode(500);
+                }
+                return new MockResponse().setHeader("Content-Type", "application/json; charset=UTF-8")
+                        .setBody(RESPONSE);
+            }
+        });
+        server.start();
+        try {
+            AccessToken token = new AccessToken("check", new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1)));
+            String endpoint = server.url("/").toString();
+            FirebaseHttp2Transport transport = FirebaseHttp2Transport.builder("hermes-check", GoogleCredentials.of(token))
+                    .endpoint(endpoint.substring(0, endpoint.length() - 1))
+                    .priorKnowledge()
+                    .maxIdleConnections(1)
+                    .build(Registrations.id(0));
+            List<ApiFuture<String>> futures = new ArrayList<ApiFuture<String>>(sends);
+            for (int i = 0; i < sends; i++) {
+                futures.add(Hermes.androidFirebase(transport.forId(Registrations.id(i))).body("check").sendAsync(0));
+            }
+            for (ApiFuture<String> future : futures) {
+                String name = future.get(20, TimeUnit.SECONDS);
+                check(name.startsWith("projects/hermes-check/messages/"), "unexpected response %s", name);
+            }
+            check(server.getRequestCount() == sends, "%d requests made rather than %d", server.getRequestCount(), sends);
+            check(streams.size() == sends, "%d of %d requests shared a connection", streams.size(), sends);
+        } finally {
+            server.shutdown();
+        }
+        System.out.println(String.format("HTTP/2 prior knowledge checks passed (%d concurrent streams)", sends));
+    }
+
+    private static void check(boolean condition, String message, Object ... args) {
+        if (!condition) {
+            throw new AssertionError(String.format(message, args));
+        }
+    }
+
+    private Http2PriorKnowledgeCheck() { }
+
+}
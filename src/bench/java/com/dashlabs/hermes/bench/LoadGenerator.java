@@ -0,0 +1,146 @@
+package com.dashlabs.hermes.bench;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * User: blangel
+ * Date: 10/18/26
+ * Time: 7:45 PM
+ *
+ * Drives a {@link Target} at a fixed rate and reports the rate sustained, the latency distribution and the allocation
+ * per send.
+ *
+ * Sends are issued open-loop: each has an intended start time on the fixed schedule and its latency is measured from
+ * that time, so a client which falls behind is charged for the delay rather than silently lowering the rate. At most
+ * {@code maxInFlight} sends are outstanding; beyond that the generator waits, and the wait counts against latency.
+ */
+public final class LoadGenerator {
+
+    /**
+     * A single send, e.g. {@link com.dashlabs.hermes.Hermes.FirebaseBuilder#sendAsync(int)}.
+     */
+    public static interface Target {
+
+        /**
+         * @param sequence of the send, from zero
+         * @return the outcome of the send; must not block the calling thread for the duration of the send
+         */
+        ApiFuture<?> send(long sequence);
+
+    }
+
+    private final Target target;
+
+    private final double sendsPerSecond;
+
+    private final int maxInFlight;
+
+    /**
+     * @param target to drive
+     * @param sendsPerSecond the rate at which to send
+     * @param maxInFlight the most sends outstanding at any time
+     */
+    public LoadGenerator(Target target, double sendsPerSecond, int maxInFlight) {
+        if ((sendsPerSecond <= 0) || (maxInFlight < 1)) {
+            throw new IllegalArgumentException(String.format(
+                    "sendsPerSecond and maxInFlight must be positive [ was %.2f, %d ]", sendsPerSecond, maxInFlight));
+        }
+        this.target = target;
+        this.sendsPerSecond = sendsPerSecond;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Sends for {@code warmup} without recording, then for {@code duration}, blocking until the last send completes.
+     */
+    public LoadReport run(long warmup, long duration, TimeUnit unit) throws InterruptedException {
+        if (warmup > 0) {
+            drive(unit.toNanos(warmup), false);
+        }
+        return drive(unit.toNanos(duration), true);
+    }
+
+    private LoadReport drive(long durationNanos, boolean record) throws InterruptedException {
+        long intervalNanos = (long) (1e9 / sendsPerSecond);
+        int sends = (int) Math.min(Integer.MAX_VALUE - 8, durationNanos / intervalNanos);
+        final long[] latencies = new long[sends];
+        final AtomicLong failed = new AtomicLong();
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < sends; i++) {
+            final long intended = start + (i * intervalNanos);
+            long wait;
+            while ((wait = intended - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            inFlight.acquire();
+            ApiFuture<?> future;
+            try {
+                future = target.send(i);
+            } catch (RuntimeException re) {
+                future = ApiFutures.immediateFailedFuture(re);
+            }
+            final int index = i;
+            ApiFutures.addCallback(future, new ApiFutureCallback<Object>() {
+                @Override public void onSuccess(Object result) {
+                    complete(false);
+                }
+                @Override public void onFailure(Throwable t) {
+                    complete(true);
+                }
+                private void complete(boolean failure) {
+                    latencies[index] = System.nanoTime() - intended;
+                    if (failure) {
+                        failed.incrementAndGet();
+                    }
+                    inFlight.release();
+                }
+            });
+        }
+        inFlight.acquire(maxInFlight);
+        inFlight.release(maxInFlight);
+        long elapsed = System.nanoTime() - start;
+        long allocatedAfter = allocatedBytes();
+        if (!record) {
+            return null;
+        }
+        Arrays.sort(latencies);
+        long allocatedPerSend = ((allocatedBefore < 0) || (allocatedAfter < allocatedBefore) ? -1L
+                : (allocatedAfter - allocatedBefore) / Math.max(1, sends));
+        return new LoadReport(sendsPerSecond, sends, failed.get(), elapsed, latencies, allocatedPerSend);
+    }
+
+    /**
+     * @return the bytes allocated by all live threads other than those of a {@link StandInServer}, or -1 if the JVM
+     *         cannot measure it. Threads which terminate during a run are not counted.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1L;
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        if (!allocations.isThreadAllocatedMemorySupported() || !allocations.isThreadAllocatedMemoryEnabled()) {
+            return -1L;
+        }
+        long total = 0L;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (!StandInServer.isServerThread(thread)) {
+                total += Math.max(0L, allocations.getThreadAllocatedBytes(thread.getId()));
+            }
+        }
+        return total;
+    }
+
+}
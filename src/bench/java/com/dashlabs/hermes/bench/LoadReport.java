@@ -0,0 +1,78 @@
+package com.dashlabs.hermes.bench;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * User: blangel
+ * Date: 10/18/26
+ * Time: 8:05 PM
+ *
+ * The outcome of a {@link LoadGenerator} run.
+ */
+public final class LoadReport {
+
+    private final double targetSendsPerSecond;
+
+    private final long sends;
+
+    private final long failed;
+
+    private final long elapsedNanos;
+
+    private final long[] sortedLatencies;
+
+    private final long allocatedBytesPerSend;
+
+    LoadReport(double targetSendsPerSecond, long sends, long failed, long elapsedNanos, long[] sortedLatencies,
+               long allocatedBytesPerSend) {
+        this.targetSendsPerSecond = targetSendsPerSecond;
+        this.sends = sends;
+        this.failed = failed;
+        this.elapsedNanos = elapsedNanos;
+        this.sortedLatencies = sortedLatencies;
+        this.allocatedBytesPerSend = allocatedBytesPerSend;
+    }
+
+    public long getSends() {
+        return sends;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return the sends completed per second, from the first send until the last completed
+     */
+    public double getSustainedSendsPerSecond() {
+        return (elapsedNanos == 0L ? 0.0 : sends / (elapsedNanos / 1e9));
+    }
+
+    /**
+     * @param percentile within [0, 100]
+     * @return the latency at {@code percentile}, measured from each send's intended start
+     */
+    public long getLatency(double percentile, TimeUnit unit) {
+        if (sortedLatencies.length == 0) {
+            return 0L;
+        }
+        int index = (int) Math.ceil((percentile / 100.0) * sortedLatencies.length) - 1;
+        return unit.convert(sortedLatencies[Math.max(0, Math.min(index, sortedLatencies.length - 1))],
+                TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the bytes allocated per send by the client, or -1 if the JVM cannot measure allocation
+     */
+    public long getAllocatedBytesPerSend() {
+        return allocatedBytesPerSend;
+    }
+
+    @Override public String toString() {
+        return String.format("target %.0f/s, sustained %.0f/s, %d sends, %d failed, latency p50 %dus p99 %dus "
+                + "p999 %dus, %d bytes allocated/send", targetSendsPerSecond, getSustainedSendsPerSecond(), sends,
+                failed, getLatency(50, TimeUnit.MICROSECONDS), getLatency(99, TimeUnit.MICROSECONDS),
+                getLatency(99.9, TimeUnit.MICROSECONDS), allocatedBytesPerSend);
+    }
+
+}
@@ -0,0 +1,174 @@
+package com.dashlabs.hermes.bench;
+
+import com.dashlabs.hermes.FirebaseHttp2Transport;
+import com.dashlabs.hermes.Hermes;
+import com.google.android.gcm.server.Message;
+import com.google.android.gcm.server.PooledHttpEngine;
+import com.google.android.gcm.server.Sender;
+import com.google.api.core.ApiFuture;
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.GoogleCredentials;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * User: blangel
+ * Date: 10/18/26
+ * Time: 8:20 PM
+ *
+ * Measures end-to-end throughput against a {@link StandInServer} in the same process. Usage:
+ *
+ * <pre>
+ *   LoadTest fcm|gcm|gcm-multicast sendsPerSecond seconds [options]
+ *
+ *     --payload=Small|Typical|NearLimit   message payload; defaults to Typical
+ *     --latency=min-max                   server latency in milliseconds; defaults to 20-40
+ *     --error=Failure:probability         e.g. --error=Unavailable:0.01; may be repeated
+ *     --throttle=requestsPerSecond        server throttling; defaults to none
+ *     --retries=n                         retries per send; defaults to 2
+ *     --in-flight=n                       most sends outstanding; defaults to 2000
+ *     --threads=n                         Sender threads, which block for the duration of a request; defaults to 256
+ *     --warmup=seconds                    defaults to 10
+ * </pre>
+ *
+ * {@code fcm} sends through {@link Hermes} over a {@link FirebaseHttp2Transport}, {@code gcm} sends to a single
+ * device through {@link Sender} and {@code gcm-multicast} sends to 1000 devices per request through {@link Sender}.
+ *
+ * The {@link StandInServer} is built on the JDK's {@code HttpServer}, which speaks HTTP/1.1 only, so in {@code fcm} mode
+ * the transport falls back to HTTP/1.1 over up to {@code --in-flight} connections: the numbers measure the client's
+ * encoding, dispatch and connection pooling, not HTTP/2 multiplexing, and are not those of a run against FCM.
+ */
+public final class LoadTest {
+
+    private static final int MULTICAST_SIZE = 1000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 3) {
+            System.err.println("usage: LoadTest fcm|gcm|gcm-multicast sendsPerSecond seconds [options]");
+            System.exit(1);
+        }
+        String mode = args[0];
+        double rate = Double.parseDouble(args[1]);
+        long seconds = Long.parseLong(args[2]);
+        Payload payload = Payload.Typical;
+        long minLatency = 20, maxLatency = 40;
+        int retries = 2, inFlight = 2000, threads = 256;
+        long warmup = 10;
+        StandInServer.Builder server = StandInServer.builder();
+        for (int i = 3; i < args.length; i++) {
+            String option = args[i];
+            String value = option.substring(option.indexOf('=') + 1);
+            if (option.startsWith("--payload=")) {
+                payload = Payload.valueOf(value);
+            } else if (option.startsWith("--latency=")) {
+                minLatency = Long.parseLong(value.substring(0, value.indexOf('-')));
+                maxLatency = Long.parseLong(value.substring(value.indexOf('-') + 1));
+            } else if (option.startsWith("--error=")) {
+                server.error(StandInServer.Failure.valueOf(value.substring(0, value.indexOf(':'))),
+                        Double.parseDouble(value.substring(value.indexOf(':') + 1)));
+            } else if (option.startsWith("--throttle=")) {
+                server.throttle(Double.parseDouble(value));
+            } else if (option.startsWith("--retries=")) {
+                retries = Integer.parseInt(value);
+            } else if (option.startsWith("--in-flight=")) {
+                inFlight = Integer.parseInt(value);
+            } else if (option.startsWith("--threads=")) {
+                threads = Integer.parseInt(value);
+            } else if (option.startsWith("--warmup=")) {
+                warmup = Long.parseLong(value);
+            } else {
+                throw new IllegalArgumentException(String.format("Unknown option [ %s ]", option));
+            }
+        }
+        StandInServer standIn = server.latency(minLatency, maxLatency, TimeUnit.MILLISECONDS).start();
+        ScheduledExecutorService executor = null;
+        try {
+            LoadGenerator.Target target;
+            if ("fcm".equals(mode)) {
+                target = hermes(standIn, payload, retries, inFlight);
+            } else if ("gcm".equals(mode) || "gcm-multicast".equals(mode)) {
+                executor = Executors.newScheduledThreadPool(threads);
+                target = sender(standIn, executor, threads, payload, retries, "gcm-multicast".equals(mode));
+            } else {
+                throw new IllegalArgumentException(String.format("Unknown mode [ %s ]", mode));
+            }
+            LoadReport report = new LoadGenerator(target, rate, inFlight).run(warmup, seconds, TimeUnit.SECONDS);
+            System.out.println(report);
+            System.out.println(String.format("server: %d requests, %d throttled, %d errors", standIn.getRequests(),
+                    standIn.getThrottled(), standIn.getErrors()));
+        } finally {
+            standIn.stop();
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private static LoadGenerator.Target hermes(StandInServer standIn, final Payload payload, final int retries,
+                                               int inFlight) {
+        AccessToken token = new AccessToken("load-test", new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1)));
+        final FirebaseHttp2Transport transport = FirebaseHttp2Transport.builder("stand-in", GoogleCredentials.of(token))
+                .endpoint(standIn.getFcmEndpoint())
+                // the stand-in speaks HTTP/1.1 only; one connection per request in flight
+                .maxConcurrentRequests(inFlight)
+                .maxIdleConnections(inFlight)
+                .build(Registrations.id(0));
+        return new LoadGenerator.Target() {
+            @Override public ApiFuture<?> send(long sequence) {
+                Hermes.FirebaseBuilder builder = Hermes.androidFirebase(transport.forId(Registrations.id(sequence)))
+                        .body(payload.getBody());
+                for (Map.Entry<String, String> entry : payload.getData().entrySet()) {
+                    builder.withData(entry.getKey(), entry.getValue());
+                }
+                return builder.sendAsync(retries);
+            }
+        };
+    }
+
+    private static LoadGenerator.Target sender(final StandInServer standIn, ScheduledExecutorService executor,
+                                               int threads, Payload payload, final int retries, boolean multicast) {
+        // the load test owns the process, so it sizes the JDK's keep-alive cache to the pool itself
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", Integer.toString(threads));
+        }
+        PooledHttpEngine engine = new PooledHttpEngine.Builder().maxConnections(threads).build();
+        // Sender.getConnection is the extension point for the endpoint
+        final Sender sender = new Sender("load-test", executor, engine) {
+            @Override protected HttpURLConnection getConnection(String url) throws IOException {
+                return super.getConnection(standIn.getGcmEndpoint());
+            }
+        };
+        Message.Builder builder = new Message.Builder();
+        for (Map.Entry<String, String> entry : payload.getData().entrySet()) {
+            builder.addData(entry.getKey(), entry.getValue());
+        }
+        final Message message = builder.build();
+        if (!multicast) {
+            return new LoadGenerator.Target() {
+                @Override public ApiFuture<?> send(long sequence) {
+                    return sender.sendAsync(message, Registrations.id(sequence), retries);
+                }
+            };
+        }
+        final List<String> regIds = new ArrayList<String>(MULTICAST_SIZE);
+        for (int i = 0; i < MULTICAST_SIZE; i++) {
+            regIds.add(Registrations.id(i));
+        }
+        return new LoadGenerator.Target() {
+            @Override public ApiFuture<?> send(long sequence) {
+                return sender.sendAsync(message, regIds, retries);
+            }
+        };
+    }
+
+    private LoadTest() { }
+
+}
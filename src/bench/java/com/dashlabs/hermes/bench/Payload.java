@@ -0,0 +1,64 @@
+package com.dashlabs.hermes.bench;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * User: blangel
+ * Date: 10/18/26
+ * Time: 5:40 PM
+ *
+ * Message payloads of the sizes benchmarked. The data values mix plain ASCII with characters which must be escaped
+ * or url-encoded, as real notifications do.
+ */
+public enum Payload {
+
+    /**
+     * A body and a single identifier, e.g. a badge update.
+     */
+    Small(16, 1, 8),
+
+    /**
+     * A short body and a handful of data entries; about 400 bytes.
+     */
+    Typical(120, 6, 40),
+
+    /**
+     * Just below the 4KB data limit of FCM and GCM.
+     */
+    NearLimit(200, 16, 220);
+
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789 &=\"/\u00e9\u2713";
+
+    private final String body;
+
+    private final Map<String, String> data;
+
+    Payload(int bodyLength, int entries, int valueLength) {
+        this.body = text(bodyLength, 0);
+        this.data = new LinkedHashMap<String, String>(entries * 2);
+        for (int i = 0; i < entries; i++) {
+            this.data.put("key" + i, text(valueLength, i + 1));
+        }
+    }
+
+    public String getBody() {
+        return body;
+    }
+
+    /**
+     * @return the data entries, in a stable order; callers must not modify the map
+     */
+    public Map<String, String> getData() {
+        return data;
+    }
+
+    private static String text(int length, int seed) {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append(ALPHABET.charAt((i * 31 + seed * 7) % ALPHABET.length()));
+        }
+        return text.toString();
+    }
+
+}
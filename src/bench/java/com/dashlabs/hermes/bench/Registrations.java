@@ -0,0 +1,21 @@
+package com.dashlabs.hermes.bench;
+
+/**
+ * User: blangel
+ * Date: 10/18/26
+ * Time: 5:45 PM
+ *
+ * Registration ids of realistic length for benchmarks and load tests.
+ */
+public final class Registrations {
+
+    private static final String PREFIX = "APA91bHun4MxP5egoKMwt2KZFBaFUH-1RYqx-DbdcJvS1BS4kN8ejDq3hF_bQbXlOs-oh-gMqw7BcIUy7s"
+            + "Y6W2Trm_0wkyXw4qbcERuEEt2Uv_dYETsQ5kpq3J5JM1MXwGtU9x_pQN8c5k7h";
+
+    public static String id(long index) {
+        return PREFIX + index;
+    }
+
+    private Registrations() { }
+
+}
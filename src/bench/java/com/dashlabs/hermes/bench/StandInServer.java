@@ -0,0 +1,480 @@
+package com.dashlabs.hermes.bench;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * User: blangel
+ * Date: 10/18/26
+ * Time: 7:10 PM
+ *
+ * An embeddable, in-process stand-in for Google's push endpoints, speaking the FCM HTTP v1 protocol (as used by
+ * {@link com.dashlabs.hermes.FirebaseHttp2Transport}) and the legacy GCM plain text and JSON protocols (as used by
+ * {@link com.google.android.gcm.server.Sender}). Responses are delayed by a configurable latency without holding a
+ * thread, a configurable mix of errors is returned and requests beyond a configurable rate are throttled.
+ *
+ * Requests are not authenticated and message contents are not validated; only what is needed to shape a realistic
+ * response, such as the number of registration ids of a multicast, is read.
+ */
+public final class StandInServer {
+
+    /**
+     * Errors returned by the stand-in, each with its FCM v1 and GCM representation.
+     */
+    public static enum Failure {
+
+        Unregistered(404, "NOT_FOUND", "UNREGISTERED", "NotRegistered"),
+
+        InvalidArgument(400, "INVALID_ARGUMENT", "INVALID_ARGUMENT", "InvalidRegistration"),
+
+        Unavailable(503, "UNAVAILABLE", "UNAVAILABLE", "Unavailable"),
+
+        Internal(500, "INTERNAL", "INTERNAL", "InternalServerError");
+
+        private final int httpStatus;
+
+        private final String status;
+
+        private final String fcmErrorCode;
+
+        private final String gcmErrorCode;
+
+        Failure(int httpStatus, String status, String fcmErrorCode, String gcmErrorCode) {
+            this.httpStatus = httpStatus;
+            this.status = status;
+            this.fcmErrorCode = fcmErrorCode;
+            this.gcmErrorCode = gcmErrorCode;
+        }
+
+        public String getGcmErrorCode() {
+            return gcmErrorCode;
+        }
+    }
+
+    public static final String GCM_SEND_PATH = "/gcm/send";
+
+    public static final String FCM_PATH = "/v1/projects/";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String THREAD_PREFIX = "hermes-stand-in-";
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static final class Builder {
+
+        private int port;
+
+        private long minLatencyMicros;
+
+        private long maxLatencyMicros;
+
+        private final List<Failure> errors;
+
+        private final List<Double> probabilities;
+
+        private double errorProbability;
+
+        private double throttleRate;
+
+        private int threads;
+
+        private Builder() {
+            this.errors = new ArrayList<Failure>();
+            this.probabilities = new ArrayList<Double>();
+            this.threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        }
+
+        /**
+         * @param port on which to listen on the loopback interface; defaults to 0, any free port
+         */
+        public Builder port(int port) {
+            if ((port < 0) || (port > 65535)) {
+                throw new IllegalArgumentException(String.format("port must be between 0 and 65535 [ was %d ]", port));
+            }
+            this.port = port;
+            return this;
+        }
+
+        /**
+         * @param min the least time to wait before responding
+         * @param max the most time to wait before responding; the latency of each request is uniformly distributed
+         *            between {@code min} and {@code max}
+         */
+        public Builder latency(long min, long max, TimeUnit unit) {
+            if ((min < 0) || (max < min)) {
+                throw new IllegalArgumentException(String.format("latency must satisfy 0 <= min <= max [ was %d, %d ]",
+                        min, max));
+            }
+            this.minLatencyMicros = unit.toMicros(min);
+            this.maxLatencyMicros = unit.toMicros(max);
+            return this;
+        }
+
+        /**
+         * @param error returned for {@code probability} of messages; for a GCM multicast, each registration id is
+         *              drawn independently
+         * @param probability within [0, 1]; the probabilities of all errors must not sum above 1
+         */
+        public Builder error(Failure error, double probability) {
+            if ((probability < 0) || ((errorProbability + probability) > 1.0)) {
+                throw new IllegalArgumentException(String.format(
+                        "error probabilities must be positive and sum to at most 1 [ was %.4f ]",
+                        errorProbability + probability));
+            }
+            this.errors.add(error);
+            this.probabilities.add(probability);
+            this.errorProbability += probability;
+            return this;
+        }
+
+        /**
+         * @param requestsPerSecond beyond which requests are rejected as FCM and GCM do when throttling; FCM requests
+         *                          with a 429 and GCM requests with a 503, both with a {@literal Retry-After} of
+         *                          one second. Zero, the default, for no throttling.
+         */
+        public Builder throttle(double requestsPerSecond) {
+            if (requestsPerSecond < 0) {
+                throw new IllegalArgumentException(String.format("requestsPerSecond cannot be negative [ was %.2f ]",
+                        requestsPerSecond));
+            }
+            this.throttleRate = requestsPerSecond;
+            return this;
+        }
+
+        /**
+         * @param threads reading requests and writing responses; latency is waited out without holding any of these
+         */
+        public Builder threads(int threads) {
+            if (threads < 1) {
+                throw new IllegalArgumentException(String.format("threads must be positive [ was %d ]", threads));
+            }
+            this.threads = threads;
+            return this;
+        }
+
+        public StandInServer start() throws IOException {
+            StandInServer server = new StandInServer(this);
+            server.server.start();
+            return server;
+        }
+    }
+
+    private final HttpServer server;
+
+    private final ExecutorService workers;
+
+    private final ScheduledExecutorService responder;
+
+    private final long minLatencyMicros;
+
+    private final long maxLatencyMicros;
+
+    private final Failure[] errors;
+
+    private final double[] cumulativeProbabilities;
+
+    private final long throttleIntervalNanos;
+
+    private final AtomicLong nextAllowed;
+
+    private final AtomicLong requests;
+
+    private final AtomicLong throttled;
+
+    private final AtomicLong errorsReturned;
+
+    private final AtomicLong messageIds;
+
+    private StandInServer(Builder builder) throws IOException {
+        this.minLatencyMicros = builder.minLatencyMicros;
+        this.maxLatencyMicros = builder.maxLatencyMicros;
+        this.errors = builder.errors.toArray(new Failure[builder.errors.size()]);
+        this.cumulativeProbabilities = new double[errors.length];
+        double cumulative = 0;
+        for (int i = 0; i < errors.length; i++) {
+            cumulative += builder.probabilities.get(i);
+            this.cumulativeProbabilities[i] = cumulative;
+        }
+        this.throttleIntervalNanos = (builder.throttleRate == 0 ? 0L : (long) (1e9 / builder.throttleRate));
+        this.nextAllowed = new AtomicLong(System.nanoTime());
+        this.requests = new AtomicLong();
+        this.throttled = new AtomicLong();
+        this.errorsReturned = new AtomicLong();
+        this.messageIds = new AtomicLong();
+        this.workers = Executors.newFixedThreadPool(builder.threads, threadFactory("worker"));
+        this.responder = Executors.newScheduledThreadPool(builder.threads, threadFactory("responder"));
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), builder.port), 1024);
+        this.server.setExecutor(workers);
+        this.server.createContext(GCM_SEND_PATH, new HttpHandler() {
+            @Override public void handle(HttpExchange exchange) throws IOException {
+                handleGcm(exchange);
+            }
+        });
+        this.server.createContext(FCM_PATH, new HttpHandler() {
+            @Override public void handle(HttpExchange exchange) throws IOException {
+                handleFcm(exchange);
+            }
+        });
+    }
+
+    /**
+     * @return the base url to use as {@link com.dashlabs.hermes.FirebaseHttp2Transport.Builder#endpoint(String)}
+     */
+    public String getFcmEndpoint() {
+        return String.format("http://127.0.0.1:%d", server.getAddress().getPort());
+    }
+
+    /**
+     * @return the url to which a {@link com.google.android.gcm.server.Sender} should post instead of GCM's
+     */
+    public String getGcmEndpoint() {
+        return String.format("http://127.0.0.1:%d%s", server.getAddress().getPort(), GCM_SEND_PATH);
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    /**
+     * @return the number of errors returned, counting each registration id of a GCM multicast separately
+     */
+    public long getErrors() {
+        return errorsReturned.get();
+    }
+
+    /**
+     * @param thread to check
+     * @return true if {@code thread} belongs to this (or any) stand-in server; used to exclude the server's
+     *         allocations when measuring a client in the same process
+     */
+    public static boolean isServerThread(Thread thread) {
+        return thread.getName().startsWith(THREAD_PREFIX);
+    }
+
+    public void stop() {
+        server.stop(0);
+        responder.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    private void handleFcm(HttpExchange exchange) throws IOException {
+        drain(exchange.getRequestBody());
+        if (!exchange.getRequestURI().getPath().endsWith("/messages:send")) {
+            respond(exchange, 404, "application/json; charset=UTF-8", fcmError(404, "NOT_FOUND", null), 0L);
+            return;
+        }
+        if (throttle()) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            respond(exchange, 429, "application/json; charset=UTF-8",
+                    fcmError(429, "RESOURCE_EXHAUSTED", "QUOTA_EXCEEDED"), latency());
+            return;
+        }
+        Failure error = drawError();
+        if (error == null) {
+            String body = String.format("{\"name\":\"projects/stand-in/messages/0:%d\"}", messageIds.incrementAndGet());
+            respond(exchange, 200, "application/json; charset=UTF-8", body, latency());
+        } else {
+            respond(exchange, error.httpStatus, "application/json; charset=UTF-8",
+                    fcmError(error.httpStatus, error.status, error.fcmErrorCode), latency());
+        }
+    }
+
+    private void handleGcm(HttpExchange exchange) throws IOException {
+        String request = new String(drain(exchange.getRequestBody()), UTF8);
+        if (throttle()) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            respond(exchange, 503, "text/plain", "", latency());
+            return;
+        }
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if ((contentType != null) && contentType.startsWith("application/json")) {
+            respond(exchange, 200, "application/json; charset=UTF-8", multicast(countRegistrationIds(request)),
+                    latency());
+        } else {
+            Failure error = drawError();
+            String body = (error == null ? String.format("id=0:%d", messageIds.incrementAndGet())
+                    : "Error=" + error.gcmErrorCode);
+            respond(exchange, 200, "text/plain", body, latency());
+        }
+    }
+
+    private String multicast(int registrationIds) {
+        StringBuilder results = new StringBuilder(registrationIds * 32);
+        int success = 0;
+        for (int i = 0; i < registrationIds; i++) {
+            if (i > 0) {
+                results.append(',');
+            }
+            Failure error = drawError();
+            if (error == null) {
+                results.append("{\"message_id\":\"0:").append(messageIds.incrementAndGet()).append("\"}");
+                success++;
+            } else {
+                results.append("{\"error\":\"").append(error.gcmErrorCode).append("\"}");
+            }
+        }
+        return String.format("{\"multicast_id\":%d,\"success\":%d,\"failure\":%d,\"canonical_ids\":0,\"results\":[%s]}",
+                messageIds.incrementAndGet(), success, registrationIds - success, results);
+    }
+
+    /**
+     * Counts the strings of the {@literal registration_ids} array, which is all that is needed of a GCM JSON request.
+     */
+    private static int countRegistrationIds(String request) {
+        int index = request.indexOf("\"registration_ids\"");
+        if (index < 0) {
+            return 0;
+        }
+        index = request.indexOf('[', index);
+        int count = 0;
+        boolean inString = false;
+        for (int i = index + 1; (index >= 0) && (i < request.length()); i++) {
+            char c = request.charAt(i);
+            if (inString) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == '"') {
+                    inString = false;
+                }
+            } else if (c == '"') {
+                inString = true;
+                count++;
+            } else if (c == ']') {
+                break;
+            }
+        }
+        return count;
+    }
+
+    private static String fcmError(int code, String status, String errorCode) {
+        String details = (errorCode == null ? "" : String.format(
+                ",\"details\":[{\"@type\":\"type.googleapis.com/google.firebase.fcm.v1.FcmError\",\"errorCode\":\"%s\"}]",
+                errorCode));
+        return String.format("{\"error\":{\"code\":%d,\"message\":\"stand-in %s\",\"status\":\"%s\"%s}}", code, status,
+                status, details);
+    }
+
+    /**
+     * @return true if the request is beyond the throttle rate; a rejected request does not consume capacity
+     */
+    private boolean throttle() {
+        requests.incrementAndGet();
+        if (throttleIntervalNanos == 0L) {
+            return false;
+        }
+        long now = System.nanoTime();
+        while (true) {
+            long allowed = nextAllowed.get();
+            // permit up to a second's worth of burst
+            long earliest = now - TimeUnit.SECONDS.toNanos(1);
+            long from = Math.max(allowed, earliest);
+            if (from > now) {
+                throttled.incrementAndGet();
+                return true;
+            }
+            if (nextAllowed.compareAndSet(allowed, from + throttleIntervalNanos)) {
+                return false;
+            }
+        }
+    }
+
+    private Failure drawError() {
+        if (errors.length == 0) {
+            return null;
+        }
+        double draw = ThreadLocalRandom.current().nextDouble();
+        for (int i = 0; i < errors.length; i++) {
+            if (draw < cumulativeProbabilities[i]) {
+                errorsReturned.incrementAndGet();
+                return errors[i];
+            }
+        }
+        return null;
+    }
+
+    private long latency() {
+        if (maxLatencyMicros == minLatencyMicros) {
+            return minLatencyMicros;
+        }
+        return minLatencyMicros + ThreadLocalRandom.current().nextLong(maxLatencyMicros - minLatencyMicros + 1);
+    }
+
+    private void respond(final HttpExchange exchange, final int status, final String contentType, String body,
+                         long delayMicros) {
+        final byte[] bytes = body.getBytes(UTF8);
+        Runnable write = new Runnable() {
+            @Override public void run() {
+                try {
+                    exchange.getResponseHeaders().set("Content-Type", contentType);
+                    exchange.sendResponseHeaders(status, (bytes.length == 0 ? -1 : bytes.length));
+                    if (bytes.length > 0) {
+                        OutputStream out = exchange.getResponseBody();
+                        out.write(bytes);
+                        out.close();
+                    }
+                } catch (IOException ioe) {
+                    // the client went away
+                } finally {
+                    exchange.close();
+                }
+            }
+        };
+        if (delayMicros == 0L) {
+            write.run();
+        } else {
+            responder.schedule(write, delayMicros, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    private static byte[] drain(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    private static ThreadFactory threadFactory(final String role) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, THREAD_PREFIX + role + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,59 @@
+package com.dashlabs.hermes.bench;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.firebase.FirebaseApp;
+import com.google.firebase.FirebaseOptions;
+import com.google.firebase.messaging.FirebaseMessaging;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * User: blangel
+ * Date: 10/18/26
+ * Time: 5:52 PM
+ *
+ * A {@link FirebaseMessaging} whose requests are answered in memory, so benchmarks measure the client rather than
+ * the network. Every request succeeds with the same message name.
+ */
+public final class StubFirebase {
+
+    private static final String RESPONSE = "{\"name\":\"projects/hermes-bench/messages/0:1539893612%31bd1c9631bd1c96\"}";
+
+    private static final AtomicInteger APPS = new AtomicInteger();
+
+    /**
+     * @return a new app whose requests are answered by the stub; {@link FirebaseApp#delete()} it once done
+     */
+    public static FirebaseApp newApp() {
+        AccessToken token = new AccessToken("bench", new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1)));
+        FirebaseOptions options = new FirebaseOptions.Builder()
+                .setCredentials(GoogleCredentials.of(token))
+                .setProjectId("hermes-bench")
+                .setHttpTransport(new StubTransport())
+                .build();
+        return FirebaseApp.initializeApp(options, "hermes-bench-" + APPS.incrementAndGet());
+    }
+
+    private static final class StubTransport extends HttpTransport {
+        @Override protected LowLevelHttpRequest buildRequest(String method, String url) {
+            return new MockLowLevelHttpRequest(url) {
+                @Override public LowLevelHttpResponse execute() {
+                    return new MockLowLevelHttpResponse()
+                            .setContentType("application/json; charset=UTF-8")
+                            .setContent(RESPONSE);
+                }
+            };
+        }
+    }
+
+    private StubFirebase() { }
+
+}
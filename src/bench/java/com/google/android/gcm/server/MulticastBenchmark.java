@@ -0,0 +1,96 @@
+package com.google.android.gcm.server;
+
+import com.dashlabs.hermes.bench.Registrations;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of multicast responses and the bookkeeping of a multicast across
+ * attempts.
+ * <p/>
+ * The response mixes successes, canonical ids and errors; one device in ten
+ * is unavailable, so the bookkeeping benchmark retries those devices once.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MulticastBenchmark {
+
+    @Param({"10", "1000"})
+    public int recipients;
+
+    private byte[] response;
+    private List<String> regIds;
+    private MulticastResult firstAttempt;
+    private MulticastResult secondAttempt;
+
+    @Setup
+    public void setUp() throws IOException {
+        regIds = new ArrayList<String>(recipients);
+        StringBuilder results = new StringBuilder();
+        int success = 0, failure = 0, canonicalIds = 0, unavailable = 0;
+        for (int i = 0; i < recipients; i++) {
+            regIds.add(Registrations.id(i));
+            if (i > 0) {
+                results.append(',');
+            }
+            if (i % 10 == 0) {
+                results.append("{\"error\":\"Unavailable\"}");
+                failure++;
+                unavailable++;
+            } else if (i % 50 == 3) {
+                results.append("{\"error\":\"NotRegistered\"}");
+                failure++;
+            } else {
+                results.append("{\"message_id\":\"").append(messageId(i)).append('"');
+                if (i % 25 == 1) {
+                    results.append(",\"registration_id\":\"")
+                            .append(Registrations.id(recipients + i)).append('"');
+                    canonicalIds++;
+                }
+                results.append('}');
+                success++;
+            }
+        }
+        response = ("{\"multicast_id\":6782339717028231855,\"success\":" + success
+                + ",\"failure\":" + failure + ",\"canonical_ids\":" + canonicalIds
+                + ",\"results\":[" + results + "]}").getBytes(Sender.UTF8);
+        firstAttempt = parse();
+        MulticastResult.Builder retry =
+                new MulticastResult.Builder(unavailable, 0, 0, 6782339717028231856L);
+        for (int i = 0; i < unavailable; i++) {
+            retry.addResult(new Result.Builder().messageId(messageId(i)).build());
+        }
+        secondAttempt = retry.build();
+    }
+
+    @Benchmark
+    public MulticastResult parse() throws IOException {
+        return MulticastResponseParser.parse(new ByteArrayInputStream(response));
+    }
+
+    @Benchmark
+    public MulticastResult updateStatus() {
+        MulticastStatus status = new MulticastStatus(regIds);
+        status.update(firstAttempt);
+        status.update(secondAttempt);
+        return status.build();
+    }
+
+    private static String messageId(int index) {
+        return String.format("0:1539893612%%%016x", 0x31bd1c9631bd1c96L + index);
+    }
+
+}
@@ -0,0 +1,69 @@
+package com.google.android.gcm.server;
+
+import com.dashlabs.hermes.bench.Payload;
+import com.dashlabs.hermes.bench.Registrations;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of the plain text and JSON request bodies built by
+ * {@link Sender}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SenderEncodingBenchmark {
+
+    @Param({"Small", "Typical", "NearLimit"})
+    public Payload payload;
+
+    /**
+     * Number of registration ids of the JSON request; 1000 is the most GCM
+     * accepts in a single multicast.
+     */
+    @Param({"1", "1000"})
+    public int recipients;
+
+    private Message message;
+    private String registrationId;
+    private List<String> registrationIds;
+
+    @Setup
+    public void setUp() {
+        Message.Builder builder = new Message.Builder()
+                .collapseKey("bench")
+                .timeToLive(3600)
+                .delayWhileIdle(false);
+        for (Map.Entry<String, String> entry : payload.getData().entrySet()) {
+            builder.addData(entry.getKey(), entry.getValue());
+        }
+        message = builder.build();
+        registrationIds = new ArrayList<String>(recipients);
+        for (int i = 0; i < recipients; i++) {
+            registrationIds.add(Registrations.id(i));
+        }
+        registrationId = registrationIds.get(0);
+    }
+
+    @Benchmark
+    public int encodePlainText() {
+        return Sender.encodePlainText(message, registrationId).length();
+    }
+
+    @Benchmark
+    public int encodeJson() {
+        return Sender.encodeJson(message, registrationIds).length();
+    }
+
+}
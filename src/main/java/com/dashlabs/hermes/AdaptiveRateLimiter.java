@@ -0,0 +1,321 @@
+package com.dashlabs.hermes;
+
+import com.dashlabs.hermes.firebase.ErrorCodes;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * User: blangel
+ * Date: 10/18/26
+ * Time: 3:40 PM
+ *
+ * Lock free token bucket, shared by all sends to one project, whose rate adapts to the quota the provider enforces.
+ * Each {@link #throttled()} report (a quota error or HTTP 429) multiplies the rate by {@code decreaseFactor}, at most
+ * once per {@code cooldown} so a burst of failures from sends already in flight counts once; every second without
+ * such a report the rate recovers by {@code recoveryPerSecond}, up to the configured maximum.
+ * The bucket is kept as the time at which the next permit is free; {@link #reserve()} advances it with a single CAS
+ * and returns how long the caller must wait, so asynchronous callers can schedule rather than block.
+ */
+public final class AdaptiveRateLimiter {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * @param permitsPerSecond the maximum, and initial, rate
+     */
+    public static Builder builder(double permitsPerSecond) {
+        return new Builder(permitsPerSecond);
+    }
+
+    public static final class Builder {
+
+        private final double maxRate;
+
+        private double minRate;
+
+        private double burstSeconds;
+
+        private double decreaseFactor;
+
+        private double recoveryPerSecond;
+
+        private long cooldownNanos;
+
+        private Builder(double maxRate) {
+            if (!(maxRate > 0)) {
+                throw new IllegalArgumentException(String.format("Rate must be positive [ was %f ]", maxRate));
+            }
+            this.maxRate = maxRate;
+            this.minRate = Math.min(1.0, maxRate);
+            this.burstSeconds = 1.0;
+            this.decreaseFactor = 0.5;
+            this.recoveryPerSecond = Math.max(maxRate / 100.0, Math.min(1.0, maxRate));
+            this.cooldownNanos = NANOS_PER_SECOND;
+        }
+
+        /**
+         * @param minRate the rate below which {@link #throttled()} does not lower the rate
+         */
+        public Builder minRate(double minRate) {
+            if (!(minRate > 0) || (minRate > maxRate)) {
+                throw new IllegalArgumentException(String.format("Min rate must be positive and at most %f [ was %f ]", maxRate, minRate));
+            }
+            this.minRate = minRate;
+            return this;
+        }
+
+        /**
+         * @param burstSeconds the number of seconds worth of permits which may be taken at once after being idle
+         */
+        public Builder burstSeconds(double burstSeconds) {
+            if (burstSeconds < 0) {
+                throw new IllegalArgumentException(String.format("Burst must not be negative [ was %f ]", burstSeconds));
+            }
+            this.burstSeconds = burstSeconds;
+            return this;
+        }
+
+        /**
+         * @param decreaseFactor by which the rate is multiplied when throttled, between 0 and 1 exclusive
+         */
+        public Builder decreaseFactor(double decreaseFactor) {
+            if (!(decreaseFactor > 0) || !(decreaseFactor < 1)) {
+                throw new IllegalArgumentException(String.format("Decrease factor must be between 0 and 1 [ was %f ]", decreaseFactor));
+            }
+            this.decreaseFactor = decreaseFactor;
+            return this;
+        }
+
+        /**
+         * @param recoveryPerSecond permits per second added to the rate for each second without being throttled
+         */
+        public Builder recoveryPerSecond(double recoveryPerSecond) {
+            if (!(recoveryPerSecond > 0)) {
+                throw new IllegalArgumentException(String.format("Recovery must be positive [ was %f ]", recoveryPerSecond));
+            }
+            this.recoveryPerSecond = recoveryPerSecond;
+            return this;
+        }
+
+        /**
+         * @param cooldown the minimum time between two decreases of the rate
+         */
+        public Builder cooldown(long cooldown, TimeUnit unit) {
+            this.cooldownNanos = unit.toNanos(cooldown);
+            return this;
+        }
+
+        public AdaptiveRateLimiter build() {
+            return new AdaptiveRateLimiter(this);
+        }
+
+    }
+
+    private final double maxRate;
+
+    private final double minRate;
+
+    private final double burstSeconds;
+
+    private final double decreaseFactor;
+
+    private final double recoveryPerSecond;
+
+    private final long cooldownNanos;
+
+    /**
+     * Time at which the next permit is free; permits up to the burst before this time are also free.
+     */
+    private final AtomicLong nextFree;
+
+    /**
+     * Nanoseconds per permit at the current rate.
+     */
+    private final AtomicLong interval;
+
+    /**
+     * Time of the last change of the rate, by decrease or recovery.
+     */
+    private final AtomicLong lastAdjusted;
+
+    private final AtomicLong lastDecreased;
+
+    private final AtomicLong throttles;
+
+    private final AtomicLong delayed;
+
+    private AdaptiveRateLimiter(Builder builder) {
+        this.maxRate = builder.maxRate;
+        this.minRate = builder.minRate;
+        this.burstSeconds = builder.burstSeconds;
+        this.decreaseFactor = builder.decreaseFactor;
+        this.recoveryPerSecond = builder.recoveryPerSecond;
+        this.cooldownNanos = builder.cooldownNanos;
+        long now = System.nanoTime();
+        this.nextFree = new AtomicLong(now);
+        this.interval = new AtomicLong(toInterval(maxRate));
+        this.lastAdjusted = new AtomicLong(now);
+        this.lastDecreased = new AtomicLong(now - cooldownNanos);
+        this.throttles = new AtomicLong();
+        this.delayed = new AtomicLong();
+    }
+
+    /**
+     * Takes one permit.
+     * @return the nanoseconds the caller must wait before sending, 0 if it may send immediately
+     */
+    public long reserve() {
+        long now = System.nanoTime();
+        long permitInterval = recover(now);
+        long burst = (long) (burstSeconds * NANOS_PER_SECOND);
+        while (true) {
+            long next = nextFree.get();
+            long start = Math.max(next, now - burst);
+            if (nextFree.compareAndSet(next, start + permitInterval)) {
+                long wait = start - now;
+                if (wait > 0) {
+                    delayed.incrementAndGet();
+                    return wait;
+                }
+                return 0L;
+            }
+        }
+    }
+
+    /**
+     * Takes one permit, blocking the calling thread until it is free.
+     */
+    public void acquire() throws InterruptedException {
+        long wait = reserve();
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * Reports that the provider rejected a send for exceeding its quota, lowering the rate unless it was lowered
+     * within the cooldown.
+     */
+    public void throttled() {
+        throttles.incrementAndGet();
+        long now = System.nanoTime();
+        long last = lastDecreased.get();
+        if ((now - last < cooldownNanos) || !lastDecreased.compareAndSet(last, now)) {
+            return;
+        }
+        while (true) {
+            long current = interval.get();
+            long lowered = Math.min(toInterval(minRate), (long) (current / decreaseFactor));
+            if ((lowered <= current) || interval.compareAndSet(current, lowered)) {
+                break;
+            }
+        }
+        lastAdjusted.set(now);
+    }
+
+    /**
+     * @return {@code attempt} made once a permit is free, scheduled on {@code scheduler} rather than blocking; its
+     *         failures classified by {@link ErrorCodes#isRateExceeded(Throwable)} are reported through
+     *         {@link #throttled()}. Guarding each attempt, rather than each send, makes retries take permits too.
+     */
+    Retry.Attempt guard(final Retry.Attempt attempt, final ScheduledExecutorService scheduler) {
+        return new Retry.Attempt() {
+            @Override public ApiFuture<String> attempt() {
+                long wait = reserve();
+                if (wait == 0L) {
+                    return observe(attempt.attempt());
+                }
+                final SettableApiFuture<String> result = SettableApiFuture.create();
+                try {
+                    scheduler.schedule(new Runnable() {
+                        @Override public void run() {
+                            if (result.isCancelled()) {
+                                return;
+                            }
+                            try {
+                                ApiFutures.addCallback(observe(attempt.attempt()), new ApiFutureCallback<String>() {
+                                    @Override public void onSuccess(String payload) {
+                                        result.set(payload);
+                                    }
+                                    @Override public void onFailure(Throwable t) {
+                                        result.setException(t);
+                                    }
+                                });
+                            } catch (RuntimeException re) {
+                                result.setException(re);
+                            }
+                        }
+                    }, wait, TimeUnit.NANOSECONDS);
+                } catch (RejectedExecutionException ree) {
+                    result.setException(ree);
+                }
+                return result;
+            }
+        };
+    }
+
+    private ApiFuture<String> observe(ApiFuture<String> future) {
+        ApiFutures.addCallback(future, new ApiFutureCallback<String>() {
+            @Override public void onSuccess(String payload) { }
+            @Override public void onFailure(Throwable t) {
+                if (ErrorCodes.isRateExceeded(t)) {
+                    throttled();
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * @return the current rate, in permits per second
+     */
+    public double getRate() {
+        return (double) NANOS_PER_SECOND / interval.get();
+    }
+
+    /**
+     * @return the number of times {@link #throttled()} was reported
+     */
+    public long getThrottles() {
+        return throttles.get();
+    }
+
+    /**
+     * @return the number of permits which were not immediately free
+     */
+    public long getDelayed() {
+        return delayed.get();
+    }
+
+    /**
+     * Raises the rate by {@link #recoveryPerSecond} for each whole second since it was last adjusted, if one has
+     * passed.
+     * @return the interval to use for a permit taken at {@code now}
+     */
+    private long recover(long now) {
+        long current = interval.get();
+        long last = lastAdjusted.get();
+        long seconds = (now - last) / NANOS_PER_SECOND;
+        if ((seconds < 1) || (current <= toInterval(maxRate))
+                || !lastAdjusted.compareAndSet(last, last + seconds * NANOS_PER_SECOND)) {
+            return current;
+        }
+        double rate = Math.min(maxRate, (double) NANOS_PER_SECOND / current + seconds * recoveryPerSecond);
+        long raised = toInterval(rate);
+        // a concurrent decrease wins over recovery
+        interval.compareAndSet(current, raised);
+        return interval.get();
+    }
+
+    private static long toInterval(double rate) {
+        return Math.max(1L, (long) (NANOS_PER_SECOND / rate));
+    }
+
+}
@@ -0,0 +1,199 @@
+package com.dashlabs.hermes;
+
+import com.dashlabs.hermes.firebase.ErrorCodes;
+import com.dashlabs.hermes.firebase.FcmException;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * User: blangel
+ * Date: 10/18/26
+ * Time: 4:30 PM
+ *
+ * Fails sends fast while a provider endpoint is down. Share one breaker per endpoint and credential, e.g. per
+ * {@link com.google.firebase.messaging.FirebaseMessaging} instance or per GCM API key.
+ * The breaker opens after {@code failureThreshold} consecutive provider failures (5xx responses or network errors;
+ * errors about a message or token show the provider is up) and rejects requests while open. Once open for
+ * {@code openDuration} it is half open and lets a single probe through: success closes it, failure opens it again.
+ */
+public final class CircuitBreaker {
+
+    public static enum State {
+        Closed,
+        Open,
+        HalfOpen
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static final class Builder {
+
+        private int failureThreshold;
+
+        private long openDurationNanos;
+
+        private Builder() {
+            this.failureThreshold = 5;
+            this.openDurationNanos = TimeUnit.SECONDS.toNanos(30);
+        }
+
+        /**
+         * @param failureThreshold the number of consecutive failures which opens the breaker
+         */
+        public Builder failureThreshold(int failureThreshold) {
+            if (failureThreshold < 1) {
+                throw new IllegalArgumentException(String.format("Failure threshold must be positive [ was %d ]", failureThreshold));
+            }
+            this.failureThreshold = failureThreshold;
+            return this;
+        }
+
+        /**
+         * @param openDuration the time the breaker stays open before probing; also the time after which a probe whose
+         *                     outcome was never recorded is abandoned
+         */
+        public Builder openDuration(long openDuration, TimeUnit unit) {
+            this.openDurationNanos = unit.toNanos(openDuration);
+            return this;
+        }
+
+        public CircuitBreaker build() {
+            return new CircuitBreaker(failureThreshold, openDurationNanos);
+        }
+
+    }
+
+    private final int failureThreshold;
+
+    private final long openDurationNanos;
+
+    private final AtomicReference<State> state;
+
+    private final AtomicInteger consecutiveFailures;
+
+    /**
+     * When {@link State#Open}, the time it opened; when {@link State#HalfOpen}, the time the probe was let through.
+     */
+    private final AtomicLong since;
+
+    private final AtomicLong rejected;
+
+    private final AtomicLong opened;
+
+    private CircuitBreaker(int failureThreshold, long openDurationNanos) {
+        this.failureThreshold = failureThreshold;
+        this.openDurationNanos = openDurationNanos;
+        this.state = new AtomicReference<State>(State.Closed);
+        this.consecutiveFailures = new AtomicInteger();
+        this.since = new AtomicLong();
+        this.rejected = new AtomicLong();
+        this.opened = new AtomicLong();
+    }
+
+    /**
+     * Must be followed by {@link #onSuccess()} or {@link #onFailure()} when it returns true.
+     * @return true if a request may be made
+     */
+    public boolean allowRequest() {
+        State current = state.get();
+        if (current == State.Closed) {
+            return true;
+        }
+        long now = System.nanoTime();
+        long at = since.get();
+        if ((now - at >= openDurationNanos) && since.compareAndSet(at, now)) {
+            // open long enough, or the last probe was abandoned; this request is the probe
+            state.set(State.HalfOpen);
+            return true;
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Records that the provider answered, closing the breaker.
+     */
+    public void onSuccess() {
+        consecutiveFailures.set(0);
+        if (state.get() != State.Closed) {
+            state.set(State.Closed);
+        }
+    }
+
+    /**
+     * Records a provider failure, opening the breaker if it was probing or the threshold is reached.
+     */
+    public void onFailure() {
+        int failures = consecutiveFailures.incrementAndGet();
+        State current = state.get();
+        if ((current == State.HalfOpen) || ((current == State.Closed) && (failures >= failureThreshold))) {
+            if (state.compareAndSet(current, State.Open)) {
+                since.set(System.nanoTime());
+                opened.incrementAndGet();
+            }
+        }
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    /**
+     * @return the number of requests rejected while open
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the number of times the breaker opened
+     */
+    public long getOpened() {
+        return opened.get();
+    }
+
+    /**
+     * @return {@code attempt} made through this breaker, its failure classified by
+     *         {@link ErrorCodes#isProviderFailure(Throwable)}; while open, the attempt is not made and fails with
+     *         {@link ErrorCodes#CIRCUIT_OPEN}, which is not retried
+     */
+    Retry.Attempt guard(final Retry.Attempt attempt) {
+        return new Retry.Attempt() {
+            @Override public ApiFuture<String> attempt() {
+                if (!allowRequest()) {
+                    return ApiFutures.immediateFailedFuture(new FcmException(ErrorCodes.CIRCUIT_OPEN, 0,
+                            "Circuit is open; not sent", null));
+                }
+                ApiFuture<String> future;
+                try {
+                    future = attempt.attempt();
+                } catch (RuntimeException re) {
+                    onFailure();
+                    throw re;
+                }
+                ApiFutures.addCallback(future, new ApiFutureCallback<String>() {
+                    @Override public void onSuccess(String payload) {
+                        CircuitBreaker.this.onSuccess();
+                    }
+                    @Override public void onFailure(Throwable t) {
+                        if (ErrorCodes.isProviderFailure(t)) {
+                            CircuitBreaker.this.onFailure();
+                        } else {
+                            CircuitBreaker.this.onSuccess();
+                        }
+                    }
+                });
+                return future;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,249 @@
+package com.dashlabs.hermes;
+
+import com.dashlabs.hermes.firebase.MessageWrapper;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * User: blangel
+ * Date: 10/18/26
+ * Time: 9:10 PM
+ *
+ * Coalesces sends which carry a collapse key, see {@link Hermes.FirebaseBuilder#collapseKey(String)}. At most one send
+ * per (id, collapse key) is in flight; a send made while another for the same pair is in flight is held, and a newer
+ * send for the pair replaces the one held, so a burst of updates results in the first and the newest being sent and
+ * every intermediate one being dropped, as the device would have done. A replaced send's future completes with the
+ * outcome of the send which replaced it. Sends without a collapse key, or to a pair not yet tracked once
+ * {@code maxKeys} pairs are, are passed straight through.
+ *
+ * Share one instance, through {@link #forId(String)}, among all sends which should coalesce with one another.
+ */
+public final class CoalescingTransport implements Transport<MessageWrapper> {
+
+    public static final int DEFAULT_MAX_KEYS = 100000;
+
+    private static final class Key {
+
+        private final String id;
+
+        private final String collapseKey;
+
+        private Key(String id, String collapseKey) {
+            this.id = id;
+            this.collapseKey = collapseKey;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if ((o == null) || (getClass() != o.getClass())) {
+                return false;
+            }
+            Key key = (Key) o;
+            return id.equals(key.id) && collapseKey.equals(key.collapseKey);
+        }
+
+        @Override public int hashCode() {
+            return (31 * id.hashCode()) + collapseKey.hashCode();
+        }
+    }
+
+    /**
+     * The send held for a key while another is in flight; guarded by its own monitor.
+     */
+    private static final class Slot {
+
+        private MessageWrapper held;
+
+        private int retries;
+
+        private SettableApiFuture<String> future;
+
+        private boolean removed;
+
+    }
+
+    /**
+     * The state shared by all transports created through {@link #forId(String)}.
+     */
+    private static final class Slots {
+
+        private final ConcurrentMap<Key, Slot> slots;
+
+        private final int maxKeys;
+
+        private final AtomicInteger size;
+
+        private final AtomicLong coalesced;
+
+        private final AtomicLong bypassed;
+
+        private Slots(int maxKeys) {
+            this.slots = new ConcurrentHashMap<Key, Slot>();
+            this.maxKeys = maxKeys;
+            this.size = new AtomicInteger();
+            this.coalesced = new AtomicLong();
+            this.bypassed = new AtomicLong();
+        }
+    }
+
+    private final Transport<MessageWrapper> transport;
+
+    private final Slots slots;
+
+    public CoalescingTransport(Transport<MessageWrapper> transport) {
+        this(transport, DEFAULT_MAX_KEYS);
+    }
+
+    /**
+     * @param maxKeys the most (id, collapse key) pairs tracked at once; each pair is tracked only while a send for it is
+     *                in flight, so this bounds memory by the number of distinct pairs concurrently being sent
+     */
+    public CoalescingTransport(Transport<MessageWrapper> transport, int maxKeys) {
+        this(transport, newSlots(maxKeys));
+    }
+
+    private CoalescingTransport(Transport<MessageWrapper> transport, Slots slots) {
+        this.transport = transport;
+        this.slots = slots;
+    }
+
+    private static Slots newSlots(int maxKeys) {
+        if (maxKeys < 1) {
+            throw new IllegalArgumentException(String.format("maxKeys must be positive [ was %d ]", maxKeys));
+        }
+        return new Slots(maxKeys);
+    }
+
+    @Override public String getId() {
+        return transport.getId();
+    }
+
+    @Override public CoalescingTransport forId(String id) {
+        return new CoalescingTransport(transport.forId(id), slots);
+    }
+
+    @Override public String send(MessageWrapper message, int retries) {
+        try {
+            return sendAsync(message, retries).get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ie);
+        } catch (ExecutionException ee) {
+            throw new RuntimeException(ee.getCause());
+        }
+    }
+
+    @Override public ApiFuture<String> sendAsync(MessageWrapper message, int retries) {
+        String collapseKey = message.getCollapseKey();
+        if (collapseKey == null) {
+            return transport.sendAsync(message, retries);
+        }
+        Key key = new Key(transport.getId(), collapseKey);
+        while (true) {
+            Slot slot = slots.slots.get(key);
+            if (slot == null) {
+                if (slots.size.get() >= slots.maxKeys) {
+                    slots.bypassed.incrementAndGet();
+                    return transport.sendAsync(message, retries);
+                }
+                slot = new Slot();
+                if (slots.slots.putIfAbsent(key, slot) == null) {
+                    slots.size.incrementAndGet();
+                    return dispatch(key, slot, message, retries);
+                }
+                continue;
+            }
+            synchronized (slot) {
+                if (slot.removed) {
+                    continue;
+                }
+                if (slot.future == null) {
+                    slot.future = SettableApiFuture.create();
+                } else {
+                    slots.coalesced.incrementAndGet();
+                }
+                slot.held = message;
+                slot.retries = retries;
+                return slot.future;
+            }
+        }
+    }
+
+    /**
+     * @return the number of sends dropped in favour of a newer send for the same id and collapse key
+     */
+    public long getCoalesced() {
+        return slots.coalesced.get();
+    }
+
+    /**
+     * @return the number of sends passed straight through because {@code maxKeys} pairs were already tracked
+     */
+    public long getBypassed() {
+        return slots.bypassed.get();
+    }
+
+    /**
+     * @return the number of (id, collapse key) pairs currently tracked
+     */
+    public int getTracked() {
+        return slots.size.get();
+    }
+
+    private ApiFuture<String> dispatch(final Key key, final Slot slot, MessageWrapper message, int retries) {
+        ApiFuture<String> future;
+        try {
+            future = transport.sendAsync(message, retries);
+        } catch (RuntimeException re) {
+            future = ApiFutures.immediateFailedFuture(re);
+        }
+        future.addListener(new Runnable() {
+            @Override public void run() {
+                next(key, slot);
+            }
+        }, MoreExecutors.directExecutor());
+        return future;
+    }
+
+    /**
+     * Sends the message held for {@code key}, if any, or stops tracking {@code key}.
+     */
+    private void next(Key key, Slot slot) {
+        MessageWrapper held;
+        int retries;
+        final SettableApiFuture<String> result;
+        synchronized (slot) {
+            if (slot.future == null) {
+                slot.removed = true;
+                slots.slots.remove(key, slot);
+                slots.size.decrementAndGet();
+                return;
+            }
+            held = slot.held;
+            retries = slot.retries;
+            result = slot.future;
+            slot.held = null;
+            slot.future = null;
+        }
+        ApiFutures.addCallback(dispatch(key, slot, held, retries), new ApiFutureCallback<String>() {
+            @Override public void onSuccess(String payload) {
+                result.set(payload);
+            }
+            @Override public void onFailure(Throwable t) {
+                result.setException(t);
+            }
+        });
+    }
+
+}
@@ -0,0 +1,255 @@
+package com.dashlabs.hermes;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * User: blangel
+ * Date: 10/18/26
+ * Time: 2:45 PM
+ *
+ * Memory bounded set of tokens known to be unregistered, so sends to them can fail locally rather than making a round
+ * trip; see {@link DeadTokenTransport}.
+ * Tokens are kept as 64-bit fingerprints in two generations of fixed size open addressed tables. New tokens go into the
+ * current generation, which becomes the previous one once it is {@code ttl} old or holds {@code capacity} tokens,
+ * replacing the previous one. A token is therefore remembered for at least {@code ttl} unless more than
+ * {@code capacity} tokens are added in that time, and for at most twice {@code ttl}. Lookups and additions are lock free.
+ */
+public final class DeadTokenCache {
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static final class Builder {
+
+        private int capacity;
+
+        private long ttlNanos;
+
+        private Builder() {
+            this.capacity = 100000;
+            this.ttlNanos = TimeUnit.HOURS.toNanos(24);
+        }
+
+        /**
+         * @param capacity the number of tokens held by each generation; each generation uses between 16 and 32 bytes
+         *                 per token of capacity
+         */
+        public Builder capacity(int capacity) {
+            if (capacity < 1 || capacity > (1 << 27)) {
+                throw new IllegalArgumentException(String.format("Capacity must be between 1 and %d [ was %d ]", (1 << 27), capacity));
+            }
+            this.capacity = capacity;
+            return this;
+        }
+
+        /**
+         * @param ttl the time for which a token is at least remembered, unless evicted for space
+         */
+        public Builder ttl(long ttl, TimeUnit unit) {
+            if (ttl < 1) {
+                throw new IllegalArgumentException(String.format("TTL must be positive [ was %d ]", ttl));
+            }
+            this.ttlNanos = unit.toNanos(ttl);
+            return this;
+        }
+
+        public DeadTokenCache build() {
+            return new DeadTokenCache(capacity, ttlNanos);
+        }
+
+    }
+
+    private static final class Generation {
+
+        private final long created;
+
+        private final AtomicLongArray fingerprints;
+
+        private final int mask;
+
+        private final AtomicInteger size;
+
+        private Generation(long created, int capacity) {
+            this.created = created;
+            // keep the load factor at or below one half so probes stay short
+            int tableSize = Integer.highestOneBit(capacity) << 2;
+            this.fingerprints = new AtomicLongArray(tableSize);
+            this.mask = tableSize - 1;
+            this.size = new AtomicInteger();
+        }
+
+        private boolean contains(long fingerprint) {
+            for (int i = index(fingerprint), probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+                long value = fingerprints.get(i);
+                if (value == fingerprint) {
+                    return true;
+                } else if (value == 0L) {
+                    return false;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return the size after adding or -1 if {@code fingerprint} was already present
+         */
+        private int add(long fingerprint) {
+            for (int i = index(fingerprint), probes = 0; probes <= mask; probes++) {
+                long value = fingerprints.get(i);
+                if (value == fingerprint) {
+                    return -1;
+                } else if (value == 0L) {
+                    if (fingerprints.compareAndSet(i, 0L, fingerprint)) {
+                        return size.incrementAndGet();
+                    }
+                    // lost the race for this slot; re-read it
+                    continue;
+                }
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        private int index(long fingerprint) {
+            return (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+        }
+
+    }
+
+    private final int capacity;
+
+    private final long ttlNanos;
+
+    private final Object rotationLock = new Object();
+
+    private volatile Generation current;
+
+    private volatile Generation previous;
+
+    private final AtomicLong hits;
+
+    private final AtomicLong misses;
+
+    private final AtomicLong added;
+
+    private DeadTokenCache(int capacity, long ttlNanos) {
+        this.capacity = capacity;
+        this.ttlNanos = ttlNanos;
+        this.current = new Generation(System.nanoTime(), capacity);
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.added = new AtomicLong();
+    }
+
+    /**
+     * @param token found to be unregistered
+     */
+    public void add(String token) {
+        if (token == null) {
+            return;
+        }
+        Generation generation = currentGeneration(System.nanoTime());
+        int size = generation.add(fingerprint(token));
+        if (size > 0) {
+            added.incrementAndGet();
+            if (size >= capacity) {
+                rotate(generation, System.nanoTime());
+            }
+        }
+    }
+
+    /**
+     * @param token to which a send is about to be made
+     * @return true if {@code token} is known to be unregistered, in which case the lookup is counted as a hit
+     */
+    public boolean contains(String token) {
+        if (token == null) {
+            return false;
+        }
+        long fingerprint = fingerprint(token);
+        Generation generation = currentGeneration(System.nanoTime());
+        Generation older = previous;
+        if (generation.contains(fingerprint) || ((older != null) && older.contains(fingerprint))) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @return the number of lookups which found the token, i.e. the number of sends avoided
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups which did not find the token
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of tokens added which were not already present
+     */
+    public long getAdded() {
+        return added.get();
+    }
+
+    /**
+     * @return the number of tokens currently remembered, counting a token present in both generations twice
+     */
+    public int size() {
+        Generation older = previous;
+        return current.size.get() + (older == null ? 0 : older.size.get());
+    }
+
+    private Generation currentGeneration(long now) {
+        Generation generation = current;
+        if (now - generation.created >= ttlNanos) {
+            return rotate(generation, now);
+        }
+        return generation;
+    }
+
+    /**
+     * Replaces {@code expected} as the current generation, unless another thread already has.
+     * @return the current generation
+     */
+    private Generation rotate(Generation expected, long now) {
+        synchronized (rotationLock) {
+            Generation generation = current;
+            if (generation != expected) {
+                return generation;
+            }
+            // entries of a generation older than twice the ttl are all expired
+            previous = (now - generation.created >= (2 * ttlNanos) ? null : generation);
+            current = new Generation(now, capacity);
+            return current;
+        }
+    }
+
+    /**
+     * @return a 64-bit FNV-1a hash of {@code token}, finalized as in MurmurHash3 and never 0 (which marks empty slots)
+     */
+    static long fingerprint(String token) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < token.length(); i++) {
+            hash ^= token.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= (hash >>> 33);
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= (hash >>> 33);
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= (hash >>> 33);
+        return (hash == 0L ? 1L : hash);
+    }
+
+}
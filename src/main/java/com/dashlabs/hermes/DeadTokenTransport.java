@@ -0,0 +1,82 @@
+package com.dashlabs.hermes;
+
+import com.dashlabs.hermes.firebase.ErrorCodes;
+import com.dashlabs.hermes.firebase.FcmException;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+
+/**
+ * User: blangel
+ * Date: 10/18/26
+ * Time: 3:05 PM
+ *
+ * Fails sends to ids held by a {@link DeadTokenCache} without making them, and adds to the cache each id for which the
+ * wrapped transport's send fails as unregistered, see {@link ErrorCodes#isUnregistered(Throwable)}. Such failures are
+ * an {@link FcmException} with error code {@link ErrorCodes#REGISTRATION_TOKEN_NOT_REGISTERED} and no HTTP status.
+ */
+public final class DeadTokenTransport<T> implements Transport<T> {
+
+    private final Transport<T> transport;
+
+    private final DeadTokenCache deadTokens;
+
+    public DeadTokenTransport(Transport<T> transport, DeadTokenCache deadTokens) {
+        this.transport = transport;
+        this.deadTokens = deadTokens;
+    }
+
+    @Override public String getId() {
+        return transport.getId();
+    }
+
+    @Override public DeadTokenTransport<T> forId(String id) {
+        return new DeadTokenTransport<T>(transport.forId(id), deadTokens);
+    }
+
+    @Override public String send(T message, int retries) {
+        final String id = transport.getId();
+        if (deadTokens.contains(id)) {
+            throw new RuntimeException(unregistered(id));
+        }
+        try {
+            return transport.send(message, retries);
+        } catch (RuntimeException re) {
+            if (ErrorCodes.isUnregistered(re.getCause())) {
+                deadTokens.add(id);
+            }
+            throw re;
+        }
+    }
+
+    @Override public ApiFuture<String> sendAsync(T message, int retries) {
+        final String id = transport.getId();
+        if (deadTokens.contains(id)) {
+            return ApiFutures.immediateFailedFuture(unregistered(id));
+        }
+        ApiFuture<String> future = transport.sendAsync(message, retries);
+        ApiFutures.addCallback(future, new ApiFutureCallback<String>() {
+            @Override public void onSuccess(String payload) { }
+            @Override public void onFailure(Throwable t) {
+                if (ErrorCodes.isUnregistered(t)) {
+                    deadTokens.add(id);
+                }
+            }
+        });
+        return future;
+    }
+
+    private static FcmException unregistered(String id) {
+        return new UnregisteredException(String.format("Id %s is known to be unregistered; not sent", id));
+    }
+
+    @SuppressWarnings("serial")
+    private static final class UnregisteredException extends FcmException {
+
+        private UnregisteredException(String message) {
+            super(ErrorCodes.REGISTRATION_TOKEN_NOT_REGISTERED, 0, message, null, false);
+        }
+
+    }
+
+}
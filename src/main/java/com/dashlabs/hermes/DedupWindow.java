@@ -0,0 +1,390 @@
+package com.dashlabs.hermes;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * User: blangel
+ * Date: 10/18/26
+ * Time: 11:05 PM
+ *
+ * Suppresses repeat sends of the same idempotency key to the same id, see
+ * {@link Hermes.FirebaseBuilder#idempotencyKey(String, DedupWindow)}. A repeat made within {@code window} of the first
+ * send is not made; it completes with the outcome of the first send instead, waiting for it if still in flight. A send
+ * which fails is forgotten, so a repeat of it is made.
+ *
+ * Pairs of id and key are kept as 64-bit fingerprints, spread over {@code shards} independently locked shards. Each
+ * shard is a ring of {@code buckets} maps, each spanning an equal part of the window; a pair is added to the bucket of
+ * the current time and a bucket is cleared once the whole window has passed it, so a pair is remembered for between
+ * {@code window} less one bucket and {@code window}. A shard holding its share of {@code maxKeys} pairs clears its
+ * oldest bucket early, shortening the window rather than growing.
+ */
+public final class DedupWindow {
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static final class Builder {
+
+        private long windowNanos;
+
+        private int buckets;
+
+        private int shards;
+
+        private int maxKeys;
+
+        private Builder() {
+            this.windowNanos = TimeUnit.MINUTES.toNanos(10);
+            this.buckets = 10;
+            this.shards = 16;
+            this.maxKeys = 1000000;
+        }
+
+        /**
+         * @param window the time for which a send suppresses repeats of its key, unless evicted for space
+         */
+        public Builder window(long window, TimeUnit unit) {
+            if (window < 1) {
+                throw new IllegalArgumentException(String.format("Window must be positive [ was %d ]", window));
+            }
+            this.windowNanos = unit.toNanos(window);
+            return this;
+        }
+
+        /**
+         * @param buckets the number of parts into which the window is divided; more buckets expire pairs closer to
+         *                {@code window} at the cost of a longer lookup
+         */
+        public Builder buckets(int buckets) {
+            if (buckets < 2 || buckets > 64) {
+                throw new IllegalArgumentException(String.format("Buckets must be between 2 and 64 [ was %d ]", buckets));
+            }
+            this.buckets = buckets;
+            return this;
+        }
+
+        /**
+         * @param shards the number of independently locked shards, rounded up to a power of two
+         */
+        public Builder shards(int shards) {
+            if (shards < 1 || shards > (1 << 16)) {
+                throw new IllegalArgumentException(String.format("Shards must be between 1 and %d [ was %d ]", (1 << 16), shards));
+            }
+            this.shards = shards;
+            return this;
+        }
+
+        /**
+         * @param maxKeys the most pairs of id and key remembered at once, each using about 100 bytes
+         */
+        public Builder maxKeys(int maxKeys) {
+            if (maxKeys < 1) {
+                throw new IllegalArgumentException(String.format("maxKeys must be positive [ was %d ]", maxKeys));
+            }
+            this.maxKeys = maxKeys;
+            return this;
+        }
+
+        public DedupWindow build() {
+            int shardCount = Integer.highestOneBit(shards);
+            if (shardCount < shards) {
+                shardCount <<= 1;
+            }
+            return new DedupWindow(windowNanos, buckets, shardCount, Math.max(1, maxKeys / shardCount));
+        }
+
+    }
+
+    /**
+     * A ring of buckets; guarded by its own monitor.
+     */
+    private static final class Shard {
+
+        private final Map<Long, ApiFuture<String>>[] buckets;
+
+        /**
+         * The epoch, in bucket widths since {@link DedupWindow#start}, which each bucket holds.
+         */
+        private final long[] epochs;
+
+        private int size;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private Shard(int buckets) {
+            this.buckets = new Map[buckets];
+            this.epochs = new long[buckets];
+            for (int i = 0; i < buckets; i++) {
+                this.buckets[i] = new HashMap<Long, ApiFuture<String>>();
+            }
+        }
+
+        private ApiFuture<String> get(Long fingerprint, long epoch) {
+            for (int i = 0; i < buckets.length; i++) {
+                if (expire(i, epoch)) {
+                    continue;
+                }
+                ApiFuture<String> future = buckets[i].get(fingerprint);
+                if (future != null) {
+                    return future;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return true if an unexpired bucket had to be cleared to make room
+         */
+        private boolean put(Long fingerprint, ApiFuture<String> future, long epoch, int maxKeys) {
+            boolean evicted = false;
+            if (size >= maxKeys) {
+                int oldest = -1;
+                for (int i = 0; i < buckets.length; i++) {
+                    if (!buckets[i].isEmpty() && ((oldest < 0) || (epochs[i] < epochs[oldest]))) {
+                        oldest = i;
+                    }
+                }
+                if (oldest >= 0) {
+                    size -= buckets[oldest].size();
+                    buckets[oldest].clear();
+                    evicted = true;
+                }
+            }
+            int index = (int) (epoch % buckets.length);
+            if (epochs[index] != epoch) {
+                size -= buckets[index].size();
+                buckets[index].clear();
+                epochs[index] = epoch;
+            }
+            if (buckets[index].put(fingerprint, future) == null) {
+                size++;
+            }
+            return evicted;
+        }
+
+        private void remove(Long fingerprint, ApiFuture<String> future) {
+            for (Map<Long, ApiFuture<String>> bucket : buckets) {
+                if (bucket.get(fingerprint) == future) {
+                    bucket.remove(fingerprint);
+                    size--;
+                }
+            }
+        }
+
+        /**
+         * Clears bucket {@code index} if the window has passed it.
+         * @return true if the bucket holds nothing within the window
+         */
+        private boolean expire(int index, long epoch) {
+            if (epochs[index] > (epoch - buckets.length)) {
+                return buckets[index].isEmpty();
+            }
+            if (!buckets[index].isEmpty()) {
+                size -= buckets[index].size();
+                buckets[index].clear();
+            }
+            return true;
+        }
+
+    }
+
+    /**
+     * Suppresses repeats of {@code key} to the id of the wrapped transport and of each transport created through
+     * {@link #forId(String)}.
+     */
+    private static final class DedupTransport<T> implements Transport<T> {
+
+        private final Transport<T> transport;
+
+        private final DedupWindow window;
+
+        private final String key;
+
+        private DedupTransport(Transport<T> transport, DedupWindow window, String key) {
+            this.transport = transport;
+            this.window = window;
+            this.key = key;
+        }
+
+        @Override public String getId() {
+            return transport.getId();
+        }
+
+        @Override public DedupTransport<T> forId(String id) {
+            return new DedupTransport<T>(transport.forId(id), window, key);
+        }
+
+        @Override public String send(T message, int retries) {
+            Long fingerprint = window.fingerprint(transport.getId(), key);
+            SettableApiFuture<String> claim = SettableApiFuture.create();
+            ApiFuture<String> first = window.claim(fingerprint, claim);
+            if (first != null) {
+                try {
+                    return first.get();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(ie);
+                } catch (ExecutionException ee) {
+                    throw new RuntimeException(ee.getCause());
+                }
+            }
+            try {
+                String payload = transport.send(message, retries);
+                claim.set(payload);
+                return payload;
+            } catch (RuntimeException re) {
+                window.release(fingerprint, claim);
+                claim.setException(re.getCause() != null ? re.getCause() : re);
+                throw re;
+            }
+        }
+
+        @Override public ApiFuture<String> sendAsync(T message, int retries) {
+            final Long fingerprint = window.fingerprint(transport.getId(), key);
+            final SettableApiFuture<String> claim = SettableApiFuture.create();
+            ApiFuture<String> first = window.claim(fingerprint, claim);
+            if (first != null) {
+                return first;
+            }
+            ApiFuture<String> future;
+            try {
+                future = transport.sendAsync(message, retries);
+            } catch (RuntimeException re) {
+                window.release(fingerprint, claim);
+                claim.setException(re);
+                throw re;
+            }
+            ApiFutures.addCallback(future, new ApiFutureCallback<String>() {
+                @Override public void onSuccess(String payload) {
+                    claim.set(payload);
+                }
+                @Override public void onFailure(Throwable t) {
+                    window.release(fingerprint, claim);
+                    claim.setException(t);
+                }
+            });
+            return future;
+        }
+
+    }
+
+    private final long bucketNanos;
+
+    private final int maxKeysPerShard;
+
+    private final Shard[] shards;
+
+    private final int mask;
+
+    private final long start;
+
+    private final AtomicLong suppressed;
+
+    private final AtomicLong evictions;
+
+    private DedupWindow(long windowNanos, int buckets, int shards, int maxKeysPerShard) {
+        this.bucketNanos = Math.max(1L, windowNanos / buckets);
+        this.maxKeysPerShard = maxKeysPerShard;
+        this.shards = new Shard[shards];
+        for (int i = 0; i < shards; i++) {
+            this.shards[i] = new Shard(buckets);
+        }
+        this.mask = shards - 1;
+        // epochs start at the number of buckets so the zeroed epochs of unused buckets are already expired
+        this.start = System.nanoTime() - (buckets * bucketNanos);
+        this.suppressed = new AtomicLong();
+        this.evictions = new AtomicLong();
+    }
+
+    /**
+     * @return the number of sends not made because they repeated an earlier send
+     */
+    public long getSuppressed() {
+        return suppressed.get();
+    }
+
+    /**
+     * @return the number of times a shard cleared a bucket before the window passed it, for lack of space
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of pairs of id and key remembered, including those whose window has passed but which have not
+     *         yet been cleared
+     */
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                size += shard.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return {@code transport}, suppressing repeats of {@code key} to its id and to those of transports created through
+     *         its {@link Transport#forId(String)}
+     */
+    <T> Transport<T> wrap(Transport<T> transport, String key) {
+        return new DedupTransport<T>(transport, this, key);
+    }
+
+    /**
+     * @return null if {@code claim} now stands for the pair, in which case the caller sends and completes it, or the
+     *         future of the earlier send of the pair
+     */
+    private ApiFuture<String> claim(Long fingerprint, ApiFuture<String> claim) {
+        long epoch = epoch();
+        Shard shard = shard(fingerprint);
+        boolean evicted;
+        synchronized (shard) {
+            ApiFuture<String> first = shard.get(fingerprint, epoch);
+            if (first != null) {
+                suppressed.incrementAndGet();
+                return first;
+            }
+            evicted = shard.put(fingerprint, claim, epoch, maxKeysPerShard);
+        }
+        if (evicted) {
+            evictions.incrementAndGet();
+        }
+        return null;
+    }
+
+    /**
+     * Forgets the pair, if still held by {@code claim}, so that a repeat of a failed send is made.
+     */
+    private void release(Long fingerprint, ApiFuture<String> claim) {
+        Shard shard = shard(fingerprint);
+        synchronized (shard) {
+            shard.remove(fingerprint, claim);
+        }
+    }
+
+    private Shard shard(Long fingerprint) {
+        // the high bits, as the maps of each shard hash on the low bits
+        return shards[(int) (fingerprint >>> 48) & mask];
+    }
+
+    private long epoch() {
+        return (System.nanoTime() - start) / bucketNanos;
+    }
+
+    private Long fingerprint(String id, String key) {
+        // the separator cannot appear in a registration token
+        return DeadTokenCache.fingerprint(id + '\n' + key);
+    }
+
+}
@@ -0,0 +1,144 @@
+package com.dashlabs.hermes;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * User: blangel
+ * Date: 10/18/26
+ * Time: 9:20 AM
+ *
+ * Sends a single, already built, message to many ids. The ids are split into provider sized batches and a bounded
+ * number of batches are kept in flight concurrently.
+ */
+final class FanOut<T> {
+
+    /**
+     * FCM accepts at most 500 messages per batch.
+     */
+    static final int DEFAULT_BATCH_SIZE = 500;
+
+    static final int DEFAULT_MAX_BATCHES_IN_FLIGHT = 2;
+
+    /**
+     * Notified as each batch completes, from the thread completing its last send.
+     */
+    static interface BatchListener {
+
+        /**
+         * @param batch index of the batch, from zero in the iteration order of the ids
+         */
+        void completed(int batch);
+
+    }
+
+    private final Transport<T> transport;
+
+    private final int batchSize;
+
+    private final int maxBatchesInFlight;
+
+    FanOut(Transport<T> transport) {
+        this(transport, DEFAULT_BATCH_SIZE, DEFAULT_MAX_BATCHES_IN_FLIGHT);
+    }
+
+    FanOut(Transport<T> transport, int batchSize, int maxBatchesInFlight) {
+        if ((batchSize < 1) || (maxBatchesInFlight < 1)) {
+            throw new IllegalArgumentException("batchSize and maxBatchesInFlight must be positive");
+        }
+        this.transport = transport;
+        this.batchSize = batchSize;
+        this.maxBatchesInFlight = maxBatchesInFlight;
+    }
+
+    /**
+     * @param message to send to each of {@code ids}
+     * @param ids the device or registration ids
+     * @param retries number of times to attempt retry on failure
+     * @return the outcome for each id, in the iteration order of {@code ids}
+     */
+    List<SendResult> send(T message, Iterable<String> ids, int retries) {
+        return send(message, ids, retries, null);
+    }
+
+    /**
+     * @param message to send to each of {@code ids}
+     * @param ids the device or registration ids
+     * @param retries number of times to attempt retry on failure
+     * @param listener notified as each batch completes, may be null
+     * @return the outcome for each id, in the iteration order of {@code ids}
+     */
+    List<SendResult> send(T message, Iterable<String> ids, int retries, BatchListener listener) {
+        Semaphore inFlight = new Semaphore(maxBatchesInFlight);
+        List<SendResult[]> batches = new ArrayList<SendResult[]>();
+        Iterator<String> iterator = ids.iterator();
+        String[] batch = new String[batchSize];
+        int size = 0;
+        try {
+            while (iterator.hasNext()) {
+                batch[size++] = iterator.next();
+                if (size == batchSize || !iterator.hasNext()) {
+                    inFlight.acquire();
+                    batches.add(dispatch(message, batch, size, retries, inFlight, batches.size(), listener));
+                    size = 0;
+                }
+            }
+            // wait for all outstanding batches to complete
+            inFlight.acquire(maxBatchesInFlight);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ie);
+        }
+        List<SendResult> results = new ArrayList<SendResult>(batches.size() * batchSize);
+        for (SendResult[] completed : batches) {
+            results.addAll(Arrays.asList(completed));
+        }
+        return results;
+    }
+
+    private SendResult[] dispatch(T message, String[] batch, int size, int retries, final Semaphore inFlight,
+                                  final int batchIndex, final BatchListener listener) {
+        final SendResult[] results = new SendResult[size];
+        final AtomicInteger remaining = new AtomicInteger(size);
+        for (int i = 0; i < size; i++) {
+            final int index = i;
+            final String id = batch[i];
+            ApiFuture<String> future;
+            try {
+                future = transport.forId(id).sendAsync(message, retries);
+            } catch (RuntimeException re) {
+                future = ApiFutures.immediateFailedFuture(re);
+            }
+            ApiFutures.addCallback(future, new ApiFutureCallback<String>() {
+                @Override public void onSuccess(String payload) {
+                    complete(new SendResult(id, payload, null));
+                }
+                @Override public void onFailure(Throwable t) {
+                    complete(new SendResult(id, null, t));
+                }
+                private void complete(SendResult result) {
+                    results[index] = result;
+                    if (remaining.decrementAndGet() == 0) {
+                        try {
+                            if (listener != null) {
+                                listener.completed(batchIndex);
+                            }
+                        } finally {
+                            inFlight.release();
+                        }
+                    }
+                }
+            });
+        }
+        return results;
+    }
+
+}
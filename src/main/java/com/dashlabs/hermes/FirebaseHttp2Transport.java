@@ -0,0 +1,381 @@
+package com.dashlabs.hermes;
+
+import com.dashlabs.hermes.firebase.ErrorCodes;
+import com.dashlabs.hermes.firebase.FcmException;
+import com.dashlabs.hermes.firebase.MessageWrapper;
+import com.dashlabs.hermes.metrics.SendTracing;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.Key;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.SettableApiFuture;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.firebase.messaging.Message;
+import io.opencensus.trace.Span;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * User: blangel
+ * Date: 10/18/26
+ * Time: 1:40 PM
+ *
+ * Sends directly to the FCM HTTP v1 endpoint over a small number of HTTP/2 connections, multiplexing many concurrent
+ * requests as streams over each connection. All transports created via {@link #forId(String)} share the same
+ * connections.
+ *
+ * HTTP/2 over TLS requires ALPN which the JDK provides from 9 onwards (and 8u252). For a plaintext endpoint, such as a
+ * local stub server, use {@link Builder#priorKnowledge()}.
+ */
+public class FirebaseHttp2Transport implements Transport<MessageWrapper> {
+
+    public static final String FCM_ENDPOINT = "https://fcm.googleapis.com";
+
+    private static final String FCM_SCOPE = "https://www.googleapis.com/auth/firebase.messaging";
+
+    private static final MediaType JSON = MediaType.parse("application/json; charset=UTF-8");
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static Builder builder(String projectId, GoogleCredentials credentials) {
+        return new Builder(projectId, credentials);
+    }
+
+    public static final class Builder {
+
+        private final String projectId;
+
+        private final GoogleCredentials credentials;
+
+        private String endpoint;
+
+        private int maxConcurrentRequests;
+
+        private int maxIdleConnections;
+
+        private int connectTimeoutMillis;
+
+        private int readTimeoutMillis;
+
+        private boolean priorKnowledge;
+
+        private ScheduledExecutorService scheduler;
+
+        private CircuitBreaker breaker;
+
+        private AdaptiveRateLimiter limiter;
+
+        private Builder(String projectId, GoogleCredentials credentials) {
+            this.projectId = projectId;
+            this.credentials = credentials;
+            this.endpoint = FCM_ENDPOINT;
+            this.maxConcurrentRequests = 1000;
+            this.maxIdleConnections = 2;
+            this.connectTimeoutMillis = 10000;
+            this.readTimeoutMillis = 30000;
+            this.scheduler = Retry.SHARED_SCHEDULER;
+        }
+
+        /**
+         * @param endpoint base url of the FCM HTTP v1 API; defaults to {@link #FCM_ENDPOINT}
+         */
+        public Builder endpoint(String endpoint) {
+            this.endpoint = endpoint;
+            return this;
+        }
+
+        /**
+         * @param maxConcurrentRequests maximum number of requests (streams) in flight across all connections
+         */
+        public Builder maxConcurrentRequests(int maxConcurrentRequests) {
+            this.maxConcurrentRequests = maxConcurrentRequests;
+            return this;
+        }
+
+        public Builder maxIdleConnections(int maxIdleConnections) {
+            this.maxIdleConnections = maxIdleConnections;
+            return this;
+        }
+
+        public Builder connectTimeoutMillis(int connectTimeoutMillis) {
+            this.connectTimeoutMillis = connectTimeoutMillis;
+            return this;
+        }
+
+        public Builder readTimeoutMillis(int readTimeoutMillis) {
+            this.readTimeoutMillis = readTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * Speak HTTP/2 without negotiation over plaintext; only for local stub servers.
+         */
+        public Builder priorKnowledge() {
+            this.priorKnowledge = true;
+            return this;
+        }
+
+        /**
+         * @param scheduler on which retries, and attempts waiting for a permit, are scheduled; no thread is blocked
+         *                  while waiting
+         */
+        public Builder scheduler(ScheduledExecutorService scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * @param breaker through which every attempt, including retries, is made; share one per project and
+         *                credentials
+         */
+        public Builder circuitBreaker(CircuitBreaker breaker) {
+            this.breaker = breaker;
+            return this;
+        }
+
+        /**
+         * @param limiter from which every attempt, including retries, takes a permit; share one per project
+         */
+        public Builder rateLimiter(AdaptiveRateLimiter limiter) {
+            this.limiter = limiter;
+            return this;
+        }
+
+        /**
+         * @param registrationId the device or registration id of the returned transport
+         * @return a transport whose connections are shared with every transport obtained from it via {@link #forId(String)}
+         */
+        public FirebaseHttp2Transport build(String registrationId) {
+            if ((projectId == null) || (credentials == null) || (endpoint == null) || (scheduler == null)) {
+                throw new IllegalArgumentException("projectId, credentials, endpoint and scheduler cannot be null");
+            }
+            Dispatcher dispatcher = new Dispatcher();
+            dispatcher.setMaxRequests(maxConcurrentRequests);
+            // http/2 multiplexes all requests to the endpoint over a shared connection
+            dispatcher.setMaxRequestsPerHost(maxConcurrentRequests);
+            final GoogleCredentials scoped = (credentials.createScopedRequired()
+                    ? credentials.createScoped(Collections.singleton(FCM_SCOPE)) : credentials);
+            OkHttpClient client = new OkHttpClient.Builder()
+                    .dispatcher(dispatcher)
+                    .connectionPool(new ConnectionPool(maxIdleConnections, 5, TimeUnit.MINUTES))
+                    .protocols(priorKnowledge ? Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE)
+                            : Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                    .connectTimeout(connectTimeoutMillis, TimeUnit.MILLISECONDS)
+                    .readTimeout(readTimeoutMillis, TimeUnit.MILLISECONDS)
+                    .addInterceptor(new Interceptor() {
+                        @Override public Response intercept(Chain chain) throws IOException {
+                            Request request = chain.request();
+                            Request.Builder authorized = request.newBuilder();
+                            // cached by the credentials until close to expiry
+                            Map<String, List<String>> metadata = scoped.getRequestMetadata(request.url().uri());
+                            for (Map.Entry<String, List<String>> header : metadata.entrySet()) {
+                                for (String value : header.getValue()) {
+                                    authorized.addHeader(header.getKey(), value);
+                                }
+                            }
+                            return chain.proceed(authorized.build());
+                        }
+                    })
+                    .build();
+            String url = String.format("%s/v1/projects/%s/messages:send", endpoint, projectId);
+            return new FirebaseHttp2Transport(registrationId, new Connection(client, url, scheduler, breaker, limiter));
+        }
+    }
+
+    /**
+     * The state shared by all transports built from one {@link Builder}.
+     */
+    private static final class Connection {
+
+        private final OkHttpClient client;
+
+        private final String url;
+
+        private final ScheduledExecutorService scheduler;
+
+        private final CircuitBreaker breaker;
+
+        private final AdaptiveRateLimiter limiter;
+
+        private final JsonFactory jsonFactory;
+
+        private Connection(OkHttpClient client, String url, ScheduledExecutorService scheduler, CircuitBreaker breaker,
+                           AdaptiveRateLimiter limiter) {
+            this.client = client;
+            this.url = url;
+            this.scheduler = scheduler;
+            this.breaker = breaker;
+            this.limiter = limiter;
+            this.jsonFactory = JacksonFactory.getDefaultInstance();
+        }
+    }
+
+    // json response types are public for reflective instantiation by the json parser
+
+    public static final class SendResponse {
+        @Key("name")
+        private String name;
+    }
+
+    public static final class ErrorResponse {
+        @Key("error")
+        private ErrorStatus error;
+    }
+
+    public static final class ErrorStatus {
+        @Key("status")
+        private String status;
+        @Key("message")
+        private String message;
+        @Key("details")
+        private List<Map<String, Object>> details;
+    }
+
+    private static final String FCM_ERROR_TYPE = "type.googleapis.com/google.firebase.fcm.v1.FcmError";
+
+    private final String registrationId;
+
+    private final Connection connection;
+
+    private FirebaseHttp2Transport(String registrationId, Connection connection) {
+        this.registrationId = registrationId;
+        this.connection = connection;
+    }
+
+    @Override public String getId() {
+        return registrationId;
+    }
+
+    @Override public FirebaseHttp2Transport forId(String id) {
+        return new FirebaseHttp2Transport(id, connection);
+    }
+
+    @Override public String send(MessageWrapper wrapper, int retries) {
+        try {
+            return sendAsync(wrapper, retries).get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ie);
+        } catch (ExecutionException ee) {
+            throw new RuntimeException(ee.getCause());
+        }
+    }
+
+    /**
+     * Failures classified as transient by {@link ErrorCodes#isTransient(Throwable)} are retried, up to {@code retries}
+     * times, with jittered exponential back-off.
+     */
+    @Override public ApiFuture<String> sendAsync(MessageWrapper wrapper, int retries) {
+        final byte[] body;
+        Span span = SendTracing.startChild(SendTracing.TRANSPORT_SERIALIZE);
+        try {
+            Message message = wrapper.toMessage(registrationId);
+            Map<String, Object> payload = new HashMap<String, Object>(2);
+            payload.put("message", message);
+            if (wrapper.isDryRun()) {
+                payload.put("validate_only", true);
+            }
+            body = connection.jsonFactory.toByteArray(payload);
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        } finally {
+            span.end();
+        }
+        Retry.Attempt attempt = new Retry.Attempt() {
+            @Override public ApiFuture<String> attempt() {
+                return post(body);
+            }
+        };
+        // while the circuit is open an attempt fails without taking a permit
+        Retry.Attempt limited = (connection.limiter == null ? attempt
+                : connection.limiter.guard(attempt, connection.scheduler));
+        return Measured.withBackoff(Measured.type(wrapper), (connection.breaker == null ? limited
+                : connection.breaker.guard(limited)), retries, connection.scheduler);
+    }
+
+    private ApiFuture<String> post(byte[] body) {
+        final SettableApiFuture<String> result = SettableApiFuture.create();
+        Request request = new Request.Builder()
+                .url(connection.url)
+                .post(RequestBody.create(JSON, body))
+                .build();
+        connection.client.newCall(request).enqueue(new Callback() {
+            @Override public void onFailure(Call call, IOException ioe) {
+                result.setException(new FcmException(ErrorCodes.INTERNAL_ERROR, 0,
+                        "Error while calling FCM backend service", ioe));
+            }
+            @Override public void onResponse(Call call, Response response) {
+                ResponseBody responseBody = response.body();
+                try {
+                    if (response.isSuccessful()) {
+                        SendResponse sent = connection.jsonFactory.fromInputStream(responseBody.byteStream(), UTF8,
+                                SendResponse.class);
+                        result.set(sent.name);
+                    } else {
+                        result.setException(toException(response.code(), responseBody));
+                    }
+                } catch (IOException ioe) {
+                    result.setException(new FcmException(ErrorCodes.INTERNAL_ERROR, response.code(),
+                            "Error while parsing FCM response", ioe));
+                } catch (RuntimeException re) {
+                    result.setException(new FcmException(ErrorCodes.UNKNOWN_ERROR, response.code(),
+                            "Error while parsing FCM response", re));
+                } finally {
+                    responseBody.close();
+                }
+            }
+        });
+        return result;
+    }
+
+    private FcmException toException(int httpStatus, ResponseBody responseBody) {
+        String fcmErrorCode = null;
+        String message = null;
+        try {
+            ErrorResponse response = connection.jsonFactory.fromInputStream(responseBody.byteStream(), UTF8,
+                    ErrorResponse.class);
+            if (response.error != null) {
+                fcmErrorCode = response.error.status;
+                message = response.error.message;
+                if (response.error.details != null) {
+                    for (Map<String, Object> detail : response.error.details) {
+                        if (FCM_ERROR_TYPE.equals(detail.get("@type")) && (detail.get("errorCode") instanceof String)) {
+                            fcmErrorCode = (String) detail.get("errorCode");
+                        }
+                    }
+                }
+            }
+        } catch (IOException ioe) {
+            // not a json error body; classify by status below
+        } catch (IllegalArgumentException iae) {
+            // not a json error body; classify by status below
+        }
+        String errorCode = ErrorCodes.fromFcmV1(fcmErrorCode);
+        if (ErrorCodes.UNKNOWN_ERROR.equals(errorCode) && (httpStatus / 100 == 5)) {
+            errorCode = ErrorCodes.SERVER_UNAVAILABLE;
+        }
+        return new FcmException(errorCode, httpStatus, String.format("Unexpected HTTP response with status %d; %s",
+                httpStatus, (message == null ? "<no message>" : message)), null);
+    }
+}
@@ -1,10 +1,15 @@
 package com.dashlabs.hermes;
 
+import com.dashlabs.hermes.firebase.ErrorCodes;
 import com.dashlabs.hermes.firebase.MessageWrapper;
+import com.dashlabs.hermes.metrics.SendTracing;
+import com.google.api.core.ApiFuture;
 import com.google.firebase.messaging.FirebaseMessaging;
 import com.google.firebase.messaging.Message;
+import io.opencensus.trace.Span;
 
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 
 /**
  * User: blangel
@@ -17,20 +22,61 @@ public class FirebaseTransport implements Transport<MessageWrapper> {
 
     private final FirebaseMessaging messaging;
 
+    private final ScheduledExecutorService scheduler;
+
+    private final CircuitBreaker breaker;
+
+    private final AdaptiveRateLimiter limiter;
+
     public FirebaseTransport(String registrationId, FirebaseMessaging messaging) {
+        this(registrationId, messaging, Retry.SHARED_SCHEDULER);
+    }
+
+    /**
+     * @param scheduler on which retries are scheduled; no thread is blocked while waiting to retry
+     */
+    public FirebaseTransport(String registrationId, FirebaseMessaging messaging, ScheduledExecutorService scheduler) {
+        this(registrationId, messaging, scheduler, null);
+    }
+
+    /**
+     * @param scheduler on which retries are scheduled; no thread is blocked while waiting to retry
+     * @param breaker through which every attempt, including retries, is made; share one per {@code messaging}, or
+     *                null for none
+     */
+    public FirebaseTransport(String registrationId, FirebaseMessaging messaging, ScheduledExecutorService scheduler,
+                             CircuitBreaker breaker) {
+        this(registrationId, messaging, scheduler, breaker, null);
+    }
+
+    /**
+     * @param scheduler on which retries, and attempts waiting for a permit, are scheduled; no thread is blocked while
+     *                  waiting
+     * @param breaker through which every attempt, including retries, is made; share one per {@code messaging}, or
+     *                null for none
+     * @param limiter from which every attempt, including retries, takes a permit; share one per project, or null for
+     *                none
+     */
+    public FirebaseTransport(String registrationId, FirebaseMessaging messaging, ScheduledExecutorService scheduler,
+                             CircuitBreaker breaker, AdaptiveRateLimiter limiter) {
         this.registrationId = registrationId;
         this.messaging = messaging;
+        this.scheduler = scheduler;
+        this.breaker = breaker;
+        this.limiter = limiter;
     }
 
     @Override public String getId() {
         return registrationId;
     }
 
+    @Override public FirebaseTransport forId(String id) {
+        return new FirebaseTransport(id, messaging, scheduler, breaker, limiter);
+    }
+
     @Override public String send(MessageWrapper wrapper, int retries) {
-        wrapper.getBuilder().setToken(registrationId);
-        Message message = wrapper.getBuilder().build();
         try {
-            return messaging.sendAsync(message, wrapper.isDryRun()).get();
+            return sendAsync(wrapper, retries).get();
         } catch (InterruptedException ie) {
             Thread.currentThread().interrupt();
             throw new RuntimeException(ie);
@@ -38,4 +84,27 @@ public class FirebaseTransport implements Transport<MessageWrapper> {
             throw new RuntimeException(ee.getCause());
         }
     }
+
+    /**
+     * Failures classified as transient by {@link ErrorCodes#isTransient(Throwable)} are retried, up to {@code retries}
+     * times, with jittered exponential back-off.
+     */
+    @Override public ApiFuture<String> sendAsync(final MessageWrapper wrapper, int retries) {
+        final Message message;
+        Span span = SendTracing.startChild(SendTracing.TRANSPORT_SERIALIZE);
+        try {
+            message = wrapper.toMessage(registrationId);
+        } finally {
+            span.end();
+        }
+        Retry.Attempt attempt = new Retry.Attempt() {
+            @Override public ApiFuture<String> attempt() {
+                return messaging.sendAsync(message, wrapper.isDryRun());
+            }
+        };
+        // while the circuit is open an attempt fails without taking a permit
+        Retry.Attempt limited = (limiter == null ? attempt : limiter.guard(attempt, scheduler));
+        return Measured.withBackoff(Measured.type(wrapper), (breaker == null ? limited : breaker.guard(limited)), retries,
+                scheduler);
+    }
 }
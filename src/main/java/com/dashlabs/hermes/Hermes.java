@@ -1,9 +1,21 @@
 package com.dashlabs.hermes;
 
+import com.dashlabs.hermes.feedback.FeedbackBatcher;
+import com.dashlabs.hermes.firebase.ErrorCodes;
 import com.dashlabs.hermes.firebase.MessageWrapper;
+import com.dashlabs.hermes.metrics.SendMetrics;
+import com.dashlabs.hermes.metrics.SendTracing;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
 import com.google.firebase.messaging.*;
+import io.opencensus.common.Scope;
+import io.opencensus.trace.Span;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -15,6 +27,8 @@ import java.util.Map;
  */
 public final class Hermes<T> {
 
+    private static final long NOT_JOURNALED = -1L;
+
     public static FirebaseBuilder androidFirebase(Transport<MessageWrapper> transport) {
         return new FirebaseBuilder(Type.AndroidFirebase, transport);
     }
@@ -53,6 +67,20 @@ public final class Hermes<T> {
          */
         public abstract String send(int retries);
 
+        /**
+         * @param retries number of attempts to send on failure
+         * @return a future holding the payload of the generate message; the calling thread is not blocked
+         */
+        public abstract ApiFuture<String> sendAsync(int retries);
+
+        /**
+         * Builds the message once and sends it to each of {@code ids}, blocking until all sends complete.
+         * @param ids the device or registration ids to which to send
+         * @param retries number of attempts to send on failure
+         * @return the outcome for each id, in the iteration order of {@code ids}
+         */
+        public abstract List<SendResult> sendToAll(Iterable<String> ids, int retries);
+
     }
 
     public static final class FirebaseBuilder extends Builder<FirebaseBuilder, MessageWrapper> {
@@ -83,6 +111,14 @@ public final class Hermes<T> {
 
         private String title;
 
+        private FeedbackBatcher feedback;
+
+        private Outbox outbox;
+
+        private String idempotencyKey;
+
+        private DedupWindow dedupWindow;
+
         private FirebaseBuilder(Type type, Transport<MessageWrapper> transport) {
             this.type = type;
             this.transport = transport;
@@ -113,10 +149,80 @@ public final class Hermes<T> {
             return this;
         }
 
+        /**
+         * @param feedback to which ids found to be no longer registered are reported
+         */
+        public FirebaseBuilder feedback(FeedbackBatcher feedback) {
+            this.feedback = feedback;
+            return this;
+        }
+
+        /**
+         * @param outbox in which each send is journaled until the transport returns, so that it is sent again, by
+         *               {@link Outbox#replay(Transport)}, if the process dies first. For
+         *               {@link #sendAt(HermesScheduler, long, int)} the send is journaled when released.
+         */
+        public FirebaseBuilder outbox(Outbox outbox) {
+            this.outbox = outbox;
+            return this;
+        }
+
+        /**
+         * @param idempotencyKey identifying the logical event notified, e.g. its id; a send repeating it to the same id
+         *                       within {@code window} is not made and completes with the outcome of the first send
+         * @param window remembering the keys sent, shared by all sends which should be deduplicated against one another
+         */
+        public FirebaseBuilder idempotencyKey(String idempotencyKey, DedupWindow window) {
+            this.idempotencyKey = idempotencyKey;
+            this.dedupWindow = window;
+            return this;
+        }
+
         @Override public String send(int retries) {
-            Hermes<MessageWrapper> hermes = new Hermes<MessageWrapper>(type, transport, body, data, timeToLiveSeconds, restrictedPackageName, collapseKey,
-                    dryRun, title);
-            return hermes.send(retries);
+            return hermes().send(retries);
+        }
+
+        @Override public ApiFuture<String> sendAsync(int retries) {
+            return hermes().sendAsync(retries);
+        }
+
+        @Override public List<SendResult> sendToAll(Iterable<String> ids, int retries) {
+            return hermes().sendToAll(ids, retries);
+        }
+
+        /**
+         * Sends at {@code epochMillis} rather than now. The message is fixed by this call; later changes to this
+         * builder do not affect it.
+         * @param scheduler holding the send until it is due
+         * @param epochMillis the instant at which to send
+         * @param retries number of attempts to send on failure
+         * @return a future holding the payload of the generated message once sent; cancel it to cancel the send
+         */
+        public ApiFuture<String> sendAt(HermesScheduler scheduler, long epochMillis, int retries) {
+            return scheduler.schedule(hermes(new HashMap<String, String>(data)), epochMillis, retries);
+        }
+
+        /**
+         * @return an immutable message template which may be sent to any number of ids, from any number of threads,
+         *         without being rebuilt
+         */
+        public MessageWrapper build() {
+            return hermes().build();
+        }
+
+        private Hermes<MessageWrapper> hermes() {
+            return hermes(data);
+        }
+
+        private Hermes<MessageWrapper> hermes(Map<String, String> data) {
+            Transport<MessageWrapper> transport = ((idempotencyKey != null) && (dedupWindow != null)
+                    ? dedupWindow.wrap(this.transport, idempotencyKey) : this.transport);
+            return new Hermes<MessageWrapper>(type, transport, body, data, timeToLiveSeconds, restrictedPackageName, collapseKey,
+                    dryRun, title, feedback, outbox);
+        }
+
+        Type getType() {
+            return type;
         }
 
         @Override protected FirebaseBuilder getThis() {
@@ -143,8 +249,13 @@ public final class Hermes<T> {
 
     private final String title;
 
+    private final FeedbackBatcher feedback;
+
+    private final Outbox outbox;
+
     private Hermes(Type type, Transport<T> transport, String body, Map<String, String> data, Integer timeToLiveSeconds,
-                   String restrictedPackageName, String collapseKey, Boolean dryRun, String title) {
+                   String restrictedPackageName, String collapseKey, Boolean dryRun, String title,
+                   FeedbackBatcher feedback, Outbox outbox) {
         this.type = type;
         this.transport = transport;
         this.body = body;
@@ -154,15 +265,175 @@ public final class Hermes<T> {
         this.collapseKey = collapseKey;
         this.dryRun = dryRun;
         this.title = title;
+        this.feedback = feedback;
+        this.outbox = outbox;
     }
 
     public String send(int retries) {
-        T message = build();
-        return transport.send(message, retries);
+        long start = System.nanoTime();
+        Span span = SendTracing.startSend(SendTracing.HERMES_SEND);
+        Scope scope = SendTracing.withSpan(span);
+        Throwable failure = null;
+        long entry = NOT_JOURNALED;
+        try {
+            T message = build();
+            entry = journal(Collections.singletonList(transport.getId()), retries);
+            String payload = transport.send(message, retries);
+            Measured.record(SendMetrics.PATH_HERMES, type.name(), 1, start, null);
+            return payload;
+        } catch (RuntimeException re) {
+            failure = (re.getCause() != null ? re.getCause() : re);
+            Measured.record(SendMetrics.PATH_HERMES, type.name(), 1, start, failure);
+            report(transport.getId(), failure);
+            throw re;
+        } finally {
+            acknowledge(entry);
+            scope.close();
+            SendTracing.end(span, failure);
+        }
+    }
+
+    public ApiFuture<String> sendAsync(int retries) {
+        final long start = System.nanoTime();
+        final Span span = SendTracing.startSend(SendTracing.HERMES_SEND);
+        ApiFuture<String> future;
+        long journaled = NOT_JOURNALED;
+        Scope scope = SendTracing.withSpan(span);
+        try {
+            T message = build();
+            journaled = journal(Collections.singletonList(transport.getId()), retries);
+            future = transport.sendAsync(message, retries);
+        } catch (RuntimeException re) {
+            acknowledge(journaled);
+            SendTracing.end(span, re);
+            throw re;
+        } finally {
+            scope.close();
+        }
+        final String id = transport.getId();
+        final long entry = journaled;
+        ApiFutures.addCallback(future, new ApiFutureCallback<String>() {
+            @Override public void onSuccess(String payload) {
+                acknowledge(entry);
+                Measured.record(SendMetrics.PATH_HERMES, type.name(), 1, start, null);
+                SendTracing.end(span, null);
+            }
+            @Override public void onFailure(Throwable t) {
+                acknowledge(entry);
+                Measured.record(SendMetrics.PATH_HERMES, type.name(), 1, start, t);
+                report(id, t);
+                SendTracing.end(span, t);
+            }
+        });
+        return future;
+    }
+
+    public List<SendResult> sendToAll(Iterable<String> ids, int retries) {
+        long start = System.nanoTime();
+        Span span = SendTracing.startSend(SendTracing.HERMES_SEND);
+        Scope scope = SendTracing.withSpan(span);
+        List<SendResult> results;
+        Throwable failure = null;
+        try {
+            T message = build();
+            FanOut.BatchListener listener = null;
+            if (outbox != null) {
+                List<String> all = new ArrayList<String>();
+                for (String id : ids) {
+                    all.add(id);
+                }
+                ids = all;
+                // each batch is acknowledged as soon as it completes; those left pending by a crash are replayed
+                final List<Long> entries = journal(all, retries, FanOut.DEFAULT_BATCH_SIZE);
+                listener = new FanOut.BatchListener() {
+                    @Override public void completed(int batch) {
+                        acknowledge(entries.get(batch));
+                    }
+                };
+            }
+            results = new FanOut<T>(transport).send(message, ids, retries, listener);
+        } catch (RuntimeException re) {
+            failure = (re.getCause() != null ? re.getCause() : re);
+            SendMetrics.recordRequest(SendMetrics.PATH_HERMES, type.name(), Measured.status(failure),
+                    Measured.error(failure), System.nanoTime() - start);
+            throw re;
+        } finally {
+            scope.close();
+            SendTracing.end(span, failure);
+        }
+        // recipients are recorded once per distinct outcome rather than once per id
+        Map<String, Integer> outcomes = new HashMap<String, Integer>();
+        Map<String, Integer> statuses = new HashMap<String, Integer>();
+        for (SendResult result : results) {
+            Throwable cause = result.getFailure();
+            String error = Measured.error(cause);
+            Integer count = outcomes.get(error);
+            outcomes.put(error, (count == null ? 1 : count + 1));
+            if (count == null) {
+                statuses.put(error, Measured.status(cause));
+            }
+            report(result.getId(), cause);
+        }
+        // the request is recorded with its most frequent error, if any id failed
+        String error = SendMetrics.OK;
+        int errors = 0;
+        for (Map.Entry<String, Integer> outcome : outcomes.entrySet()) {
+            SendMetrics.recordRecipients(SendMetrics.PATH_HERMES, type.name(), statuses.get(outcome.getKey()),
+                    outcome.getKey(), outcome.getValue());
+            if (!SendMetrics.OK.equals(outcome.getKey()) && (outcome.getValue() > errors)) {
+                error = outcome.getKey();
+                errors = outcome.getValue();
+            }
+        }
+        SendMetrics.recordRequest(SendMetrics.PATH_HERMES, type.name(), (errors == 0 ? 0 : statuses.get(error)), error,
+                System.nanoTime() - start);
+        return results;
+    }
+
+    /**
+     * Journals the send, in batches of at most {@code batchSize} ids, to the outbox, if any; the batches match those
+     * of {@link FanOut} when {@code batchSize} is its own.
+     */
+    private List<Long> journal(List<String> ids, int retries, int batchSize) {
+        List<Long> entries = new ArrayList<Long>((ids.size() / batchSize) + 1);
+        for (int from = 0; from < ids.size(); from += batchSize) {
+            List<String> batch = new ArrayList<String>(ids.subList(from, Math.min(ids.size(), from + batchSize)));
+            entries.add(journal(batch, retries));
+        }
+        return entries;
+    }
+
+    private long journal(List<String> ids, int retries) {
+        if (outbox == null) {
+            return NOT_JOURNALED;
+        }
+        return outbox.append(new Outbox.Entry(type, ids, body, data, timeToLiveSeconds, restrictedPackageName,
+                collapseKey, dryRun, title, retries));
+    }
+
+    private void acknowledge(long entry) {
+        if (entry != NOT_JOURNALED) {
+            outbox.acknowledge(entry);
+        }
+    }
+
+    private void report(String id, Throwable failure) {
+        if ((feedback != null) && (failure != null) && ErrorCodes.isUnregistered(failure)) {
+            feedback.invalid(id);
+        }
     }
 
-    @SuppressWarnings("unchecked")
     private T build() {
+        Span span = SendTracing.startChild(SendTracing.HERMES_BUILD);
+        try {
+            return buildMessage();
+        } finally {
+            span.end();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private T buildMessage() {
         switch (type) {
             case AndroidFirebase:
                 return (T) buildAndroidFirebase();
@@ -174,7 +445,6 @@ public final class Hermes<T> {
     }
 
     private MessageWrapper buildAndroidFirebase() {
-        com.google.firebase.messaging.Message.Builder builder = com.google.firebase.messaging.Message.builder();
         AndroidConfig.Builder androidConfig = AndroidConfig.builder();
         if (timeToLiveSeconds != null) {
             // firebase uses milliseconds
@@ -182,19 +452,15 @@ public final class Hermes<T> {
         }
         androidConfig.setRestrictedPackageName(restrictedPackageName);
         androidConfig.setCollapseKey(collapseKey);
-        builder.setAndroidConfig(androidConfig.build());
+        Map<String, String> payload = new HashMap<String, String>(data.size() + 1);
         if (body != null) {
-            builder.putData("body", body);
+            payload.put("body", body);
         }
-        for (String key : data.keySet()) {
-            String value = data.get(key);
-            builder.putData(key, value);
-        }
-        return new MessageWrapper(builder, (dryRun != null ? dryRun : false));
+        payload.putAll(data);
+        return new MessageWrapper(androidConfig.build(), null, payload, (dryRun != null ? dryRun : false), collapseKey);
     }
 
     private MessageWrapper buildIOSFirebase(String title) {
-        com.google.firebase.messaging.Message.Builder builder = com.google.firebase.messaging.Message.builder();
         ApnsConfig.Builder apnsConfig = ApnsConfig.builder();
         apnsConfig.putHeader("apns-priority", "10");
         apnsConfig.setAps(Aps.builder()
@@ -203,12 +469,7 @@ public final class Hermes<T> {
                         .setBody(body)
                         .build())
                 .build());
-        builder.setApnsConfig(apnsConfig.build());
-        for (String key : data.keySet()) {
-            String value = data.get(key);
-            builder.putData(key, value);
-        }
-        return new MessageWrapper(builder, (dryRun != null ? dryRun : false));
+        return new MessageWrapper(null, apnsConfig.build(), data, (dryRun != null ? dryRun : false));
     }
 
 }
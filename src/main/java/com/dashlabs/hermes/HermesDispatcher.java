@@ -0,0 +1,156 @@
+package com.dashlabs.hermes;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * User: blangel
+ * Date: 10/18/26
+ * Time: 10:02 AM
+ *
+ * Bounds the number of sends in flight per {@link Type}, applying {@link Backpressure} once a type is at its limit.
+ * Sends may be dispatched from any number of producer threads; each type has its own non-fair {@link Semaphore} so
+ * the uncontended path is a single CAS and types never contend with one another.
+ */
+public final class HermesDispatcher {
+
+    public static enum Backpressure {
+        /**
+         * The producer thread blocks until a send completes.
+         */
+        Block,
+        /**
+         * The returned future fails immediately with a {@link RejectedExecutionException}.
+         */
+        Reject
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static final class Builder {
+
+        private final Map<Type, Integer> maxInFlight;
+
+        private int defaultMaxInFlight;
+
+        private Backpressure backpressure;
+
+        private Builder() {
+            this.maxInFlight = new EnumMap<Type, Integer>(Type.class);
+            this.defaultMaxInFlight = 256;
+            this.backpressure = Backpressure.Block;
+        }
+
+        /**
+         * @param maxInFlight the maximum number of sends in flight for any type not otherwise configured
+         */
+        public Builder maxInFlight(int maxInFlight) {
+            this.defaultMaxInFlight = maxInFlight;
+            return this;
+        }
+
+        public Builder androidFirebaseMaxInFlight(int maxInFlight) {
+            this.maxInFlight.put(Type.AndroidFirebase, maxInFlight);
+            return this;
+        }
+
+        public Builder iOSFirebaseMaxInFlight(int maxInFlight) {
+            this.maxInFlight.put(Type.iOSFirebase, maxInFlight);
+            return this;
+        }
+
+        public Builder backpressure(Backpressure backpressure) {
+            this.backpressure = backpressure;
+            return this;
+        }
+
+        public HermesDispatcher build() {
+            Map<Type, Semaphore> permits = new EnumMap<Type, Semaphore>(Type.class);
+            for (Type type : Type.values()) {
+                Integer max = maxInFlight.get(type);
+                int value = (max == null ? defaultMaxInFlight : max);
+                if (value < 1) {
+                    throw new IllegalArgumentException(String.format("Max in flight for %s must be positive", type.name()));
+                }
+                permits.put(type, new Semaphore(value));
+            }
+            if (backpressure == null) {
+                throw new IllegalArgumentException("Backpressure cannot be null");
+            }
+            return new HermesDispatcher(permits, backpressure);
+        }
+    }
+
+    private final Map<Type, Semaphore> permits;
+
+    private final Backpressure backpressure;
+
+    private HermesDispatcher(Map<Type, Semaphore> permits, Backpressure backpressure) {
+        this.permits = permits;
+        this.backpressure = backpressure;
+    }
+
+    /**
+     * @param builder of the message to send
+     * @param retries number of attempts to send on failure
+     * @return a future holding the payload of the generate message or failed with a {@link RejectedExecutionException}
+     *         if the {@link Backpressure#Reject} policy is used and the builder's type is at its limit
+     */
+    public ApiFuture<String> dispatch(Hermes.FirebaseBuilder builder, int retries) {
+        final Semaphore semaphore = permits.get(builder.getType());
+        switch (backpressure) {
+            case Block:
+                try {
+                    semaphore.acquire();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return ApiFutures.immediateFailedFuture(ie);
+                }
+                break;
+            case Reject:
+                if (!semaphore.tryAcquire()) {
+                    return ApiFutures.immediateFailedFuture(new RejectedExecutionException(
+                            String.format("Max in flight reached for %s", builder.getType().name())));
+                }
+                break;
+            default:
+                throw new AssertionError(String.format("Unknown backpressure %s", backpressure.name()));
+        }
+        ApiFuture<String> future;
+        try {
+            future = builder.sendAsync(retries);
+        } catch (RuntimeException re) {
+            semaphore.release();
+            throw re;
+        }
+        future.addListener(new Runnable() {
+            @Override public void run() {
+                semaphore.release();
+            }
+        }, MoreExecutors.directExecutor());
+        return future;
+    }
+
+    /**
+     * @return the number of additional sends which may be dispatched for android firebase before backpressure applies
+     */
+    public int getAndroidFirebaseAvailable() {
+        return permits.get(Type.AndroidFirebase).availablePermits();
+    }
+
+    /**
+     * @return the number of additional sends which may be dispatched for iOS firebase before backpressure applies
+     */
+    public int getIOSFirebaseAvailable() {
+        return permits.get(Type.iOSFirebase).availablePermits();
+    }
+
+}
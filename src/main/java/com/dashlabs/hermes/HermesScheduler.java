@@ -0,0 +1,471 @@
+package com.dashlabs.hermes;
+
+import com.google.api.core.AbstractApiFuture;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * User: blangel
+ * Date: 10/18/26
+ * Time: 9:40 PM
+ *
+ * Holds sends until a future instant, see {@link Hermes.FirebaseBuilder#sendAt(HermesScheduler, long, int)}, in a
+ * hierarchical timing wheel: four levels of 512 slots, each slot spanning 512 slots of the level below, so a tick of
+ * 100ms covers about 217 years. Scheduling and cancelling are O(1); a send is moved between levels at most three times
+ * before it is due. A single thread advances the wheel once per tick and releases the sends due, in batches of at most
+ * {@code maxBatchSize}, to the release executor, which by default is that thread itself.
+ *
+ * Producers never touch the wheel; scheduled and cancelled sends are queued and applied by the wheel's thread on its
+ * next tick. Instants are resolved against the wall clock once, when the scheduler is built; the wheel then follows
+ * {@link System#nanoTime()}, so changes to the wall clock do not move sends already scheduled.
+ */
+public final class HermesScheduler {
+
+    private static final Logger LOG = Logger.getLogger(HermesScheduler.class.getName());
+
+    private static final int LEVELS = 4;
+
+    private static final int SLOT_BITS = 9;
+
+    private static final int SLOTS = 1 << SLOT_BITS;
+
+    private static final int MASK = SLOTS - 1;
+
+    private static final long MAX_TICKS = 1L << (SLOT_BITS * LEVELS);
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static final class Builder {
+
+        private long tickMillis;
+
+        private int maxBatchSize;
+
+        private Executor releaseExecutor;
+
+        private Ticker ticker;
+
+        private boolean manual;
+
+        private Builder() {
+            this.tickMillis = 100L;
+            this.maxBatchSize = 1000;
+        }
+
+        /**
+         * @param tick the resolution of the wheel; a send is released within one tick after its instant
+         */
+        public Builder tick(long tick, TimeUnit unit) {
+            long millis = unit.toMillis(tick);
+            if (millis < 1L) {
+                throw new IllegalArgumentException(String.format("tick must be at least 1ms [ was %d ]", millis));
+            }
+            this.tickMillis = millis;
+            return this;
+        }
+
+        /**
+         * @param maxBatchSize the most sends handed to the release executor at once
+         */
+        public Builder maxBatchSize(int maxBatchSize) {
+            if (maxBatchSize < 1) {
+                throw new IllegalArgumentException(String.format("maxBatchSize must be positive [ was %d ]",
+                        maxBatchSize));
+            }
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        /**
+         * @param releaseExecutor on which due sends are made, a batch per task; defaults to the wheel's own thread, in
+         *                        which case a send which blocks, e.g. through a {@link HermesDispatcher}, delays the
+         *                        wheel
+         */
+        public Builder releaseExecutor(Executor releaseExecutor) {
+            this.releaseExecutor = releaseExecutor;
+            return this;
+        }
+
+        /**
+         * @param ticker the clock the wheel follows; defaults to {@link System#nanoTime()}
+         */
+        Builder ticker(Ticker ticker) {
+            this.ticker = ticker;
+            return this;
+        }
+
+        /**
+         * Leaves the wheel to be moved only by calls to {@link HermesScheduler#advance()}, e.g. by checks driving it
+         * against a {@link #ticker(Ticker)} of their own.
+         */
+        Builder manual() {
+            this.manual = true;
+            return this;
+        }
+
+        public HermesScheduler build() {
+            return new HermesScheduler(tickMillis, maxBatchSize, releaseExecutor,
+                    (ticker == null ? Ticker.systemTicker() : ticker), manual);
+        }
+    }
+
+    /**
+     * A scheduled send; its own future and the node of the slot list it is held in, which only the wheel's thread
+     * links and unlinks.
+     */
+    private final class Entry extends AbstractApiFuture<String> {
+
+        private final Hermes<?> hermes;
+
+        private final int retries;
+
+        private final long deadline;
+
+        private Entry prev;
+
+        private Entry next;
+
+        private int level = -1;
+
+        private int slot;
+
+        private Entry(Hermes<?> hermes, int retries, long deadline) {
+            this.hermes = hermes;
+            this.retries = retries;
+            this.deadline = deadline;
+        }
+
+        @Override public boolean cancel(boolean mayInterruptIfRunning) {
+            if (!super.cancel(mayInterruptIfRunning)) {
+                return false;
+            }
+            cancels.add(this);
+            return true;
+        }
+
+        private void release() {
+            if (isDone()) {
+                return;
+            }
+            ApiFuture<String> future;
+            try {
+                future = hermes.sendAsync(retries);
+            } catch (RuntimeException re) {
+                future = ApiFutures.immediateFailedFuture(re);
+            }
+            ApiFutures.addCallback(future, new ApiFutureCallback<String>() {
+                @Override public void onSuccess(String payload) {
+                    set(payload);
+                }
+                @Override public void onFailure(Throwable t) {
+                    fail(t);
+                }
+            });
+        }
+
+        private void fail(Throwable t) {
+            setException(t);
+        }
+    }
+
+    private final long tickMillis;
+
+    private final long tickNanos;
+
+    private final int maxBatchSize;
+
+    private final Executor releaseExecutor;
+
+    private final Ticker clock;
+
+    private final long startMillis;
+
+    private final long startNanos;
+
+    private final Entry[][] wheel;
+
+    private final ConcurrentLinkedQueue<Entry> adds;
+
+    private final ConcurrentLinkedQueue<Entry> cancels;
+
+    private final ScheduledExecutorService ticker;
+
+    private final ScheduledFuture<?> ticking;
+
+    private final AtomicLong pending;
+
+    private final AtomicLong released;
+
+    private final AtomicLong cancelled;
+
+    /**
+     * The next tick to process; only accessed by the wheel's thread.
+     */
+    private long current;
+
+    private volatile boolean shutdown;
+
+    private HermesScheduler(long tickMillis, int maxBatchSize, Executor releaseExecutor, Ticker clock,
+                            boolean manual) {
+        this.tickMillis = tickMillis;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.maxBatchSize = maxBatchSize;
+        this.releaseExecutor = (releaseExecutor == null ? MoreExecutors.directExecutor() : releaseExecutor);
+        this.clock = clock;
+        this.startMillis = System.currentTimeMillis();
+        this.startNanos = clock.read();
+        this.wheel = new Entry[LEVELS][SLOTS];
+        this.adds = new ConcurrentLinkedQueue<Entry>();
+        this.cancels = new ConcurrentLinkedQueue<Entry>();
+        this.pending = new AtomicLong();
+        this.released = new AtomicLong();
+        this.cancelled = new AtomicLong();
+        this.ticker = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("hermes-scheduler-%d").build());
+        this.ticking = (manual ? null : ticker.scheduleAtFixedRate(new Runnable() {
+            @Override public void run() {
+                try {
+                    advance();
+                } catch (RuntimeException re) {
+                    // never let an exception cancel the periodic task
+                    LOG.log(Level.SEVERE, "Failed to advance the scheduler", re);
+                }
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * @param hermes the send, with its message already fixed
+     * @param epochMillis the instant at which to send; an instant in the past is sent on the next tick
+     * @param retries number of attempts to send on failure
+     * @return a future holding the payload of the message once sent; cancel it to cancel the send
+     */
+    ApiFuture<String> schedule(Hermes<?> hermes, long epochMillis, int retries) {
+        if (shutdown) {
+            return ApiFutures.immediateFailedFuture(new IllegalStateException("Scheduler is shut down"));
+        }
+        long delay = Math.max(0L, epochMillis - startMillis);
+        long deadline = (delay + tickMillis - 1) / tickMillis;
+        long now = (clock.read() - startNanos) / tickNanos;
+        if ((deadline - now) >= MAX_TICKS) {
+            throw new IllegalArgumentException(String.format("Instant is beyond the range of the scheduler [ was %d ]",
+                    epochMillis));
+        }
+        Entry entry = new Entry(hermes, retries, deadline);
+        pending.incrementAndGet();
+        adds.add(entry);
+        // the wheel may have taken its last adds before this one; if so, it is no longer taken and is failed here
+        if (shutdown && adds.remove(entry)) {
+            pending.decrementAndGet();
+            entry.fail(new IllegalStateException("Scheduler is shut down"));
+        }
+        return entry;
+    }
+
+    /**
+     * @return the number of sends scheduled and neither released nor cancelled
+     */
+    public long getPending() {
+        return pending.get();
+    }
+
+    public long getReleased() {
+        return released.get();
+    }
+
+    public long getCancelled() {
+        return cancelled.get();
+    }
+
+    /**
+     * Stops the wheel; sends not yet released are cancelled.
+     */
+    public void shutdown() {
+        shutdown = true;
+        if (ticking != null) {
+            ticking.cancel(false);
+        }
+        ticker.execute(new Runnable() {
+            @Override public void run() {
+                drain();
+                for (int level = 0; level < LEVELS; level++) {
+                    for (int slot = 0; slot < SLOTS; slot++) {
+                        Entry entry = wheel[level][slot];
+                        wheel[level][slot] = null;
+                        while (entry != null) {
+                            Entry next = entry.next;
+                            entry.prev = entry.next = null;
+                            entry.level = -1;
+                            pending.decrementAndGet();
+                            cancelled.incrementAndGet();
+                            entry.cancel(false);
+                            entry = next;
+                        }
+                    }
+                }
+                // cancel rather than link sends scheduled since; any scheduled after this are failed by schedule
+                Entry entry;
+                while ((entry = adds.poll()) != null) {
+                    pending.decrementAndGet();
+                    cancelled.incrementAndGet();
+                    entry.cancel(false);
+                }
+                cancels.clear();
+            }
+        });
+        ticker.shutdown();
+    }
+
+    /**
+     * @return the instant from which the wheel counts ticks
+     */
+    long getStartMillis() {
+        return startMillis;
+    }
+
+    /**
+     * Releases the sends due up to now; called on each tick by the wheel's thread or, if built {@link Builder#manual()},
+     * by a single thread of the caller's.
+     */
+    void advance() {
+        drain();
+        long target = (clock.read() - startNanos) / tickNanos;
+        List<Entry> batch = new ArrayList<Entry>();
+        while (current <= target) {
+            int index = (int) (current & MASK);
+            if (index == 0) {
+                // cascade the next slot of each higher level into the levels below as each wraps
+                for (int level = 1; level < LEVELS; level++) {
+                    int slot = (int) ((current >>> (SLOT_BITS * level)) & MASK);
+                    cascade(level, slot);
+                    if (slot != 0) {
+                        break;
+                    }
+                }
+            }
+            Entry entry = wheel[0][index];
+            wheel[0][index] = null;
+            while (entry != null) {
+                Entry next = entry.next;
+                entry.prev = entry.next = null;
+                entry.level = -1;
+                pending.decrementAndGet();
+                released.incrementAndGet();
+                batch.add(entry);
+                if (batch.size() == maxBatchSize) {
+                    release(batch);
+                    batch = new ArrayList<Entry>();
+                }
+                entry = next;
+            }
+            current++;
+        }
+        if (!batch.isEmpty()) {
+            release(batch);
+        }
+    }
+
+    private void drain() {
+        Entry entry;
+        while ((entry = cancels.poll()) != null) {
+            if (entry.level >= 0) {
+                unlink(entry);
+                pending.decrementAndGet();
+                cancelled.incrementAndGet();
+            }
+        }
+        while ((entry = adds.poll()) != null) {
+            if (entry.isCancelled()) {
+                pending.decrementAndGet();
+                cancelled.incrementAndGet();
+            } else {
+                link(entry);
+            }
+        }
+    }
+
+    private void cascade(int level, int slot) {
+        Entry entry = wheel[level][slot];
+        wheel[level][slot] = null;
+        while (entry != null) {
+            Entry next = entry.next;
+            entry.prev = entry.next = null;
+            link(entry);
+            entry = next;
+        }
+    }
+
+    private void link(Entry entry) {
+        long delta = entry.deadline - current;
+        int level, slot;
+        if (delta < 0) {
+            level = 0;
+            slot = (int) (current & MASK);
+        } else {
+            level = 0;
+            while ((level < (LEVELS - 1)) && (delta >= (1L << (SLOT_BITS * (level + 1))))) {
+                level++;
+            }
+            slot = (int) ((entry.deadline >>> (SLOT_BITS * level)) & MASK);
+        }
+        Entry head = wheel[level][slot];
+        entry.level = level;
+        entry.slot = slot;
+        entry.prev = null;
+        entry.next = head;
+        if (head != null) {
+            head.prev = entry;
+        }
+        wheel[level][slot] = entry;
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.prev == null) {
+            wheel[entry.level][entry.slot] = entry.next;
+        } else {
+            entry.prev.next = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = entry.next = null;
+        entry.level = -1;
+    }
+
+    private void release(final List<Entry> batch) {
+        Runnable send = new Runnable() {
+            @Override public void run() {
+                for (Entry entry : batch) {
+                    entry.release();
+                }
+            }
+        };
+        try {
+            releaseExecutor.execute(send);
+        } catch (RuntimeException re) {
+            LOG.log(Level.SEVERE, String.format("Failed to release %d scheduled sends", batch.size()), re);
+            for (Entry entry : batch) {
+                entry.fail(re);
+            }
+        }
+    }
+
+}
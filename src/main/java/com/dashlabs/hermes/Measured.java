@@ -0,0 +1,117 @@
+package com.dashlabs.hermes;
+
+import com.dashlabs.hermes.firebase.ErrorCodes;
+import com.dashlabs.hermes.firebase.FcmException;
+import com.dashlabs.hermes.firebase.MessageWrapper;
+import com.dashlabs.hermes.metrics.SendMetrics;
+import com.dashlabs.hermes.metrics.SendTracing;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import io.opencensus.trace.AttributeValue;
+import io.opencensus.trace.Span;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * User: blangel
+ * Date: 10/18/26
+ * Time: 5:30 PM
+ *
+ * Records the sends of this package with {@link SendMetrics}.
+ */
+final class Measured {
+
+    /**
+     * @return the {@link Type} tag value of a message built by {@link Hermes}
+     */
+    static String type(MessageWrapper wrapper) {
+        return (wrapper.getApnsConfig() != null ? Type.iOSFirebase : Type.AndroidFirebase).name();
+    }
+
+    /**
+     * As {@link Retry#withBackoff(Retry.Attempt, int, ScheduledExecutorService)}, recording the send as one request
+     * of {@link SendMetrics#PATH_FIREBASE} with its latency, outcome and number of retries. Each attempt is traced as
+     * a {@link SendTracing#TRANSPORT_ATTEMPT} span, a child of the current span, annotated with the back-off which
+     * preceded it.
+     */
+    static ApiFuture<String> withBackoff(final String type, final Retry.Attempt attempt, int retries,
+                                         ScheduledExecutorService scheduler) {
+        final long start = System.nanoTime();
+        final AtomicInteger attempts = new AtomicInteger();
+        final AtomicLong lastCompleted = new AtomicLong();
+        final Span parent = SendTracing.currentSpan();
+        ApiFuture<String> future = Retry.withBackoff(new Retry.Attempt() {
+            @Override public ApiFuture<String> attempt() {
+                final Span span = SendTracing.startAttempt(SendTracing.TRANSPORT_ATTEMPT, parent,
+                        attempts.incrementAndGet());
+                long completed = lastCompleted.get();
+                if (completed != 0L) {
+                    span.putAttribute("backoff_ms", AttributeValue.longAttributeValue(
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - completed)));
+                }
+                ApiFuture<String> future;
+                try {
+                    future = attempt.attempt();
+                } catch (RuntimeException re) {
+                    SendTracing.end(span, re);
+                    throw re;
+                }
+                ApiFutures.addCallback(future, new ApiFutureCallback<String>() {
+                    @Override public void onSuccess(String payload) {
+                        SendTracing.end(span, null);
+                    }
+                    @Override public void onFailure(Throwable t) {
+                        lastCompleted.set(System.nanoTime());
+                        SendTracing.end(span, t);
+                    }
+                });
+                return future;
+            }
+        }, retries, scheduler);
+        ApiFutures.addCallback(future, new ApiFutureCallback<String>() {
+            @Override public void onSuccess(String payload) {
+                complete(null);
+            }
+            @Override public void onFailure(Throwable t) {
+                complete(t);
+            }
+            private void complete(Throwable failure) {
+                record(SendMetrics.PATH_FIREBASE, type, 1, start, failure);
+                SendMetrics.recordRetries(SendMetrics.PATH_FIREBASE, type, attempts.get() - 1);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Records a completed request and its recipients, which share its outcome.
+     * @param failure of the request or null if it succeeded
+     */
+    static void record(String path, String type, int recipients, long start, Throwable failure) {
+        int status = status(failure);
+        String error = error(failure);
+        SendMetrics.recordRequest(path, type, status, error, System.nanoTime() - start);
+        SendMetrics.recordRecipients(path, type, status, error, recipients);
+    }
+
+    static int status(Throwable failure) {
+        return (failure instanceof FcmException ? ((FcmException) failure).getHttpStatus() : 0);
+    }
+
+    static String error(Throwable failure) {
+        if (failure == null) {
+            return SendMetrics.OK;
+        }
+        String errorCode = ErrorCodes.getErrorCode(failure);
+        return (errorCode == null ? ErrorCodes.UNKNOWN_ERROR : errorCode);
+    }
+
+    private Measured() {
+        throw new UnsupportedOperationException();
+    }
+
+}
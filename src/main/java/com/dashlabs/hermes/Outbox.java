@@ -0,0 +1,845 @@
+package com.dashlabs.hermes;
+
+import com.dashlabs.hermes.firebase.MessageWrapper;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * User: blangel
+ * Date: 10/18/26
+ * Time: 10:15 PM
+ *
+ * An append-only journal of sends, see {@link Hermes.FirebaseBuilder#outbox(Outbox)}. Each send is appended before it
+ * is dispatched and acknowledged once the transport returns, successfully or not; sends found unacknowledged when the
+ * outbox is next opened, e.g. after the JVM died, are sent again by {@link #replay(Transport)}. Delivery is therefore
+ * at-least-once: a send which went out but whose acknowledgement was not journaled is sent twice.
+ *
+ * The journal is a sequence of fixed size segment files, memory-mapped, so an append is a copy into the page cache and
+ * survives the death of the JVM as soon as it returns. Surviving the death of the machine requires the pages to be
+ * forced to disk, which a background thread does for all appends made since its last force once per
+ * {@code forceInterval} (a group commit), forcing only the segments written to since; with
+ * {@link Builder#syncAppends()} each append also waits for the force covering it.
+ *
+ * Segments are released oldest first, as a segment's acknowledgements may be of sends appended to older segments. The
+ * oldest segment is released once sealed and holding no unacknowledged send; if it still holds some, but less than half
+ * a segment of them, they are compacted: copied, under the same ids, into the active segment, so that a send which is
+ * slow to complete never holds back the release of younger segments. Released segments are unmapped and deleted by the
+ * next force; their disk space is only freed once unmapped, which is done explicitly where the JVM allows it and is
+ * otherwise left to the garbage collection of the mapping.
+ *
+ * Each record is its length, a CRC32 of its content, its kind, the id of the send and, for appends, the send. The
+ * length is written last so a record is never read before its content is complete; reading a segment stops at the
+ * first record which is empty, overflows the segment or fails its CRC.
+ */
+public final class Outbox {
+
+    private static final Logger LOG = Logger.getLogger(Outbox.class.getName());
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String SEGMENT_PREFIX = "outbox-";
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final byte APPEND = 1;
+
+    private static final byte ACK = 2;
+
+    private static final int HEADER = 4 + 4;
+
+    private static final byte VERSION = 1;
+
+    /**
+     * The means of unmapping a segment, see {@link #unmap(MappedByteBuffer)}: {@code Unsafe.invokeCleaner} from Java 9
+     * and the buffer's {@code cleaner()} before; null where neither is available.
+     */
+    private static final Object UNSAFE;
+
+    private static final Method INVOKE_CLEANER;
+
+    private static final Method CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        Method cleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method method = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = method;
+        } catch (Exception e) {
+            try {
+                cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            } catch (Exception ce) {
+                LOG.log(Level.FINE, "Outbox segments cannot be unmapped; leaving them to the garbage collector", ce);
+            }
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+        CLEANER = cleaner;
+    }
+
+    public static Builder builder(File directory) {
+        return new Builder(directory);
+    }
+
+    public static final class Builder {
+
+        private final File directory;
+
+        private int segmentSize;
+
+        private long forceIntervalMillis;
+
+        private boolean syncAppends;
+
+        private Builder(File directory) {
+            this.directory = directory;
+            this.segmentSize = 64 * 1024 * 1024;
+            this.forceIntervalMillis = 10L;
+        }
+
+        /**
+         * @param segmentSize bytes of each segment file; a single send, including all ids of a batch of
+         *                    {@link Hermes.FirebaseBuilder#sendToAll(Iterable, int)}, must fit within one
+         */
+        public Builder segmentSize(int segmentSize) {
+            if (segmentSize < (64 * 1024)) {
+                throw new IllegalArgumentException(String.format("segmentSize must be at least 64KB [ was %d ]",
+                        segmentSize));
+            }
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        /**
+         * @param forceInterval between forces of the journal to disk
+         */
+        public Builder forceInterval(long forceInterval, TimeUnit unit) {
+            long millis = unit.toMillis(forceInterval);
+            if (millis < 1L) {
+                throw new IllegalArgumentException(String.format("forceInterval must be at least 1ms [ was %d ]",
+                        millis));
+            }
+            this.forceIntervalMillis = millis;
+            return this;
+        }
+
+        /**
+         * Makes each append wait, up to {@code forceInterval}, for the group force which makes it durable across a
+         * machine failure. By default appends do not wait and are durable across a JVM failure only.
+         */
+        public Builder syncAppends() {
+            this.syncAppends = true;
+            return this;
+        }
+
+        /**
+         * Opens the outbox, reading any segments left in {@code directory} by a previous instance.
+         */
+        public Outbox build() throws IOException {
+            if (directory == null) {
+                throw new IllegalArgumentException("directory cannot be null");
+            }
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException(String.format("Could not create outbox directory %s", directory.getPath()));
+            }
+            return new Outbox(directory, segmentSize, forceIntervalMillis, syncAppends);
+        }
+    }
+
+    /**
+     * A journaled send.
+     */
+    static final class Entry {
+
+        private final Type type;
+
+        private final List<String> ids;
+
+        private final String body;
+
+        private final Map<String, String> data;
+
+        private final Integer timeToLiveSeconds;
+
+        private final String restrictedPackageName;
+
+        private final String collapseKey;
+
+        private final Boolean dryRun;
+
+        private final String title;
+
+        private final int retries;
+
+        Entry(Type type, List<String> ids, String body, Map<String, String> data, Integer timeToLiveSeconds,
+              String restrictedPackageName, String collapseKey, Boolean dryRun, String title, int retries) {
+            this.type = type;
+            this.ids = ids;
+            this.body = body;
+            this.data = data;
+            this.timeToLiveSeconds = timeToLiveSeconds;
+            this.restrictedPackageName = restrictedPackageName;
+            this.collapseKey = collapseKey;
+            this.dryRun = dryRun;
+            this.title = title;
+            this.retries = retries;
+        }
+
+        private byte[] encode() {
+            List<byte[]> strings = new ArrayList<byte[]>(ids.size() + (data.size() * 2) + 5);
+            int size = 1 + 1 + 4 + 1 + 4 + 1 + 4 + 4;
+            size += add(strings, body) + add(strings, restrictedPackageName) + add(strings, collapseKey)
+                    + add(strings, title);
+            for (Map.Entry<String, String> entry : data.entrySet()) {
+                size += add(strings, entry.getKey()) + add(strings, entry.getValue());
+            }
+            for (String id : ids) {
+                size += add(strings, id);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            buffer.put(VERSION).put((byte) type.ordinal()).putInt(retries);
+            buffer.put((byte) (timeToLiveSeconds == null ? 0 : 1)).putInt(timeToLiveSeconds == null ? 0 : timeToLiveSeconds);
+            buffer.put((byte) (dryRun == null ? 0 : (dryRun ? 2 : 1)));
+            buffer.putInt(data.size()).putInt(ids.size());
+            for (byte[] string : strings) {
+                if (string == null) {
+                    buffer.putInt(-1);
+                } else {
+                    buffer.putInt(string.length).put(string);
+                }
+            }
+            return buffer.array();
+        }
+
+        private static int add(List<byte[]> strings, String value) {
+            byte[] bytes = (value == null ? null : value.getBytes(UTF8));
+            strings.add(bytes);
+            return 4 + (bytes == null ? 0 : bytes.length);
+        }
+
+        private static Entry decode(ByteBuffer buffer) {
+            if (buffer.get() != VERSION) {
+                throw new IllegalStateException("Unknown outbox entry version");
+            }
+            Type type = Type.values()[buffer.get()];
+            int retries = buffer.getInt();
+            boolean hasTtl = (buffer.get() == 1);
+            int ttl = buffer.getInt();
+            byte dryRun = buffer.get();
+            int dataSize = buffer.getInt();
+            int idsSize = buffer.getInt();
+            String body = string(buffer);
+            String restrictedPackageName = string(buffer);
+            String collapseKey = string(buffer);
+            String title = string(buffer);
+            Map<String, String> data = new HashMap<String, String>(dataSize * 2);
+            for (int i = 0; i < dataSize; i++) {
+                data.put(string(buffer), string(buffer));
+            }
+            List<String> ids = new ArrayList<String>(idsSize);
+            for (int i = 0; i < idsSize; i++) {
+                ids.add(string(buffer));
+            }
+            return new Entry(type, ids, body, data, (hasTtl ? ttl : null), restrictedPackageName, collapseKey,
+                    (dryRun == 0 ? null : (dryRun == 2)), title, retries);
+        }
+
+        private static String string(ByteBuffer buffer) {
+            int length = buffer.getInt();
+            if (length < 0) {
+                return null;
+            }
+            String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF8);
+            buffer.position(buffer.position() + length);
+            return value;
+        }
+    }
+
+    private static final class Segment {
+
+        private final long sequence;
+
+        private final File file;
+
+        private final FileChannel channel;
+
+        private final MappedByteBuffer buffer;
+
+        /**
+         * The offset of each unacknowledged send appended to this segment, in order; this and the fields below are
+         * guarded by the outbox.
+         */
+        private final Map<Long, Integer> live;
+
+        private int liveBytes;
+
+        private int position;
+
+        private boolean sealed;
+
+        /**
+         * Whether written to since last forced.
+         */
+        private boolean dirty;
+
+        private Segment(long sequence, File file, FileChannel channel, MappedByteBuffer buffer) {
+            this.sequence = sequence;
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+            this.live = new LinkedHashMap<Long, Integer>();
+        }
+    }
+
+    private final File directory;
+
+    private final int segmentSize;
+
+    private final long forceIntervalMillis;
+
+    private final boolean syncAppends;
+
+    /**
+     * The open segments, oldest first; all but the last are sealed. This and the fields below up to {@link #written}
+     * are guarded by the outbox.
+     */
+    private final TreeMap<Long, Segment> segments;
+
+    /**
+     * The segment holding each unacknowledged send.
+     */
+    private final Map<Long, Segment> locations;
+
+    /**
+     * Segments released but still mapped, to be unmapped and deleted by the next {@link #force()}.
+     */
+    private final List<Segment> retired;
+
+    private final Map<Long, Entry> recovered;
+
+    private final List<File> recoveredFiles;
+
+    private final ScheduledExecutorService forcer;
+
+    private final AtomicLong nextId;
+
+    private Segment active;
+
+    /**
+     * The number of records written and the number known forced to disk; guarded by {@link #forceLock}.
+     */
+    private long written;
+
+    private long forced;
+
+    private final Object forceLock = new Object();
+
+    /**
+     * Held while forcing or unmapping segments, so that a segment is never unmapped while being forced.
+     */
+    private final Object mapLock = new Object();
+
+    private final AtomicLong appended;
+
+    private final AtomicLong acknowledged;
+
+    private final AtomicLong compacted;
+
+    private Outbox(File directory, int segmentSize, long forceIntervalMillis, boolean syncAppends) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.forceIntervalMillis = forceIntervalMillis;
+        this.syncAppends = syncAppends;
+        this.segments = new TreeMap<Long, Segment>();
+        this.locations = new HashMap<Long, Segment>();
+        this.retired = new ArrayList<Segment>();
+        this.recovered = new LinkedHashMap<Long, Entry>();
+        this.recoveredFiles = new ArrayList<File>();
+        this.nextId = new AtomicLong();
+        this.appended = new AtomicLong();
+        this.acknowledged = new AtomicLong();
+        this.compacted = new AtomicLong();
+        long next = recover();
+        this.active = open(next);
+        this.forcer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("hermes-outbox-%d").build());
+        this.forcer.scheduleWithFixedDelay(new Runnable() {
+            @Override public void run() {
+                try {
+                    force();
+                } catch (RuntimeException re) {
+                    LOG.log(Level.SEVERE, "Failed to force the outbox", re);
+                }
+            }
+        }, forceIntervalMillis, forceIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the number of unacknowledged sends found when the outbox was opened and not yet replayed
+     */
+    public synchronized int getRecovered() {
+        return recovered.size();
+    }
+
+    public long getAppended() {
+        return appended.get();
+    }
+
+    public long getAcknowledged() {
+        return acknowledged.get();
+    }
+
+    /**
+     * @return the number of unacknowledged sends copied out of an old segment so that it could be deleted
+     */
+    public long getCompacted() {
+        return compacted.get();
+    }
+
+    /**
+     * @return the number of segment files in use, including those read when opened and not yet replayed
+     */
+    public synchronized int getSegments() {
+        return segments.size() + retired.size() + recoveredFiles.size();
+    }
+
+    /**
+     * Sends again, through {@code transport}, each send found unacknowledged when the outbox was opened. Each is
+     * journaled anew before being sent, after which the new journal is forced and the segments read when opened are
+     * deleted. Single sends are made asynchronously; the batches of a
+     * {@link Hermes.FirebaseBuilder#sendToAll(Iterable, int)} block the calling thread.
+     * @param transport through which to send, bound to any id
+     * @return the number of sends replayed
+     */
+    public int replay(Transport<MessageWrapper> transport) {
+        List<Entry> entries;
+        List<File> files;
+        synchronized (this) {
+            entries = new ArrayList<Entry>(recovered.values());
+            files = new ArrayList<File>(recoveredFiles);
+            recovered.clear();
+            recoveredFiles.clear();
+        }
+        for (Entry entry : entries) {
+            boolean single = (entry.ids.size() == 1);
+            Transport<MessageWrapper> bound = (single ? transport.forId(entry.ids.get(0)) : transport);
+            Hermes.FirebaseBuilder builder = (entry.type == Type.iOSFirebase ? Hermes.iOSFirebase(bound, entry.title)
+                    : Hermes.androidFirebase(bound));
+            builder.body(entry.body).restrictedPackageName(entry.restrictedPackageName).collapseKey(entry.collapseKey)
+                    .outbox(this);
+            if (entry.timeToLiveSeconds != null) {
+                builder.timeToLiveSeconds(entry.timeToLiveSeconds);
+            }
+            if (Boolean.TRUE.equals(entry.dryRun)) {
+                builder.forDryRun();
+            }
+            for (Map.Entry<String, String> data : entry.data.entrySet()) {
+                builder.withData(data.getKey(), data.getValue());
+            }
+            if (single) {
+                builder.sendAsync(entry.retries);
+            } else {
+                builder.sendToAll(entry.ids, entry.retries);
+            }
+        }
+        // the sends still in flight must survive a crash once the segments holding them are gone
+        force();
+        for (File file : files) {
+            if (!file.delete()) {
+                LOG.warning(String.format("Could not delete replayed outbox segment %s", file.getPath()));
+            }
+        }
+        return entries.size();
+    }
+
+    /**
+     * @return the id with which to {@link #acknowledge(long)} the send
+     */
+    long append(Entry entry) {
+        byte[] payload = entry.encode();
+        long id = nextId.getAndIncrement();
+        int checksum = checksum(APPEND, id, payload);
+        long record;
+        synchronized (this) {
+            record = append(id, payload, checksum);
+            release();
+        }
+        appended.incrementAndGet();
+        if (syncAppends) {
+            awaitForced(record);
+        }
+        return id;
+    }
+
+    void acknowledge(long id) {
+        int checksum = checksum(ACK, id, null);
+        synchronized (this) {
+            if (active == null) {
+                // closed; the send is replayed when next opened
+                return;
+            }
+            write(reserve(HEADER + 1 + 8), ACK, id, null, checksum);
+            Segment segment = locations.remove(id);
+            if (segment != null) {
+                Integer offset = segment.live.remove(id);
+                segment.liveBytes -= HEADER + segment.buffer.getInt(offset);
+            }
+            release();
+        }
+        acknowledged.incrementAndGet();
+    }
+
+    /**
+     * Forces the records written since the last force to disk, and unmaps and deletes the segments released since. The
+     * segments are deleted only once forced, so the copies compacted out of them are durable before they are gone.
+     */
+    public void force() {
+        synchronized (mapLock) {
+            List<Segment> dirty = new ArrayList<Segment>();
+            List<Segment> released;
+            long target;
+            synchronized (this) {
+                for (Segment segment : segments.values()) {
+                    if (segment.dirty) {
+                        segment.dirty = false;
+                        dirty.add(segment);
+                    }
+                }
+                released = new ArrayList<Segment>(retired);
+                retired.clear();
+                synchronized (forceLock) {
+                    target = written;
+                }
+            }
+            for (Segment segment : dirty) {
+                segment.buffer.force();
+            }
+            for (Segment segment : released) {
+                unmap(segment);
+                if (!segment.file.delete()) {
+                    LOG.warning(String.format("Could not delete outbox segment %s", segment.file.getPath()));
+                }
+            }
+            synchronized (forceLock) {
+                if (target > forced) {
+                    forced = target;
+                }
+                forceLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Forces the journal to disk and closes it; sends made afterwards fail.
+     */
+    public void close() {
+        forcer.shutdown();
+        force();
+        synchronized (mapLock) {
+            synchronized (this) {
+                for (Segment segment : segments.values()) {
+                    unmap(segment);
+                }
+                segments.clear();
+                locations.clear();
+                active = null;
+            }
+        }
+    }
+
+    /**
+     * Appends the send to the active segment and tracks it until acknowledged.
+     * @return the number of records written including this one
+     */
+    private long append(long id, byte[] payload, int checksum) {
+        int length = HEADER + 1 + 8 + payload.length;
+        Segment segment = reserve(length);
+        int offset = segment.position;
+        long record = write(segment, APPEND, id, payload, checksum);
+        segment.live.put(id, offset);
+        segment.liveBytes += length;
+        locations.put(id, segment);
+        return record;
+    }
+
+    private Segment reserve(int length) {
+        if (active == null) {
+            throw new IllegalStateException("Outbox is closed");
+        }
+        if (length > (segmentSize - 4)) {
+            throw new IllegalArgumentException(String.format("Send is too large for the outbox segment size [ was %d ]",
+                    length));
+        }
+        if ((active.position + length + 4) > segmentSize) {
+            // leave the length of the next record zero, marking the end of the segment
+            active.sealed = true;
+            try {
+                active = open(active.sequence + 1);
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+        }
+        return active;
+    }
+
+    /**
+     * @param checksum the {@link #checksum(byte, long, byte[])} of the record
+     * @return the number of records written including this one
+     */
+    private long write(Segment segment, byte kind, long id, byte[] payload, int checksum) {
+        ByteBuffer buffer = segment.buffer;
+        int start = segment.position;
+        int length = 1 + 8 + (payload == null ? 0 : payload.length);
+        buffer.position(start + HEADER);
+        buffer.put(kind).putLong(id);
+        if (payload != null) {
+            buffer.put(payload);
+        }
+        buffer.putInt(start + 4, checksum);
+        buffer.putInt(start, length);
+        segment.position = start + HEADER + length;
+        segment.dirty = true;
+        synchronized (forceLock) {
+            return ++written;
+        }
+    }
+
+    /**
+     * @return the CRC32 of the content of a record; computed by the caller before taking the monitor of the outbox
+     */
+    private static int checksum(byte kind, long id, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(kind);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (id >>> shift));
+        }
+        if (payload != null) {
+            crc.update(payload, 0, payload.length);
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Releases the oldest segments while they are sealed and hold no unacknowledged send, or few enough to be worth
+     * copying into the active segment. Only the oldest segment is ever released, as the acknowledgements a segment
+     * holds may be of sends appended to older segments; the segments are unmapped and deleted by the next
+     * {@link #force()}.
+     */
+    private void release() {
+        while (true) {
+            Map.Entry<Long, Segment> oldest = segments.firstEntry();
+            if ((oldest == null) || !oldest.getValue().sealed) {
+                return;
+            }
+            Segment segment = oldest.getValue();
+            if (!segment.live.isEmpty()) {
+                if (segment.liveBytes > (segmentSize / 2)) {
+                    // mostly in flight; wait for more of it to be acknowledged rather than copy it
+                    return;
+                }
+                compact(segment);
+            }
+            segments.remove(oldest.getKey());
+            retired.add(segment);
+        }
+    }
+
+    /**
+     * Copies the unacknowledged sends of {@code segment} into the active segment, under the same ids and with the same
+     * checksums. The copies are forced by the next {@link #force()}, before it deletes the segment; should the segment
+     * outlive a crash, reading it and the copies yields each send once, by id.
+     */
+    private void compact(Segment segment) {
+        for (Map.Entry<Long, Integer> live : new ArrayList<Map.Entry<Long, Integer>>(segment.live.entrySet())) {
+            int offset = live.getValue();
+            int length = segment.buffer.getInt(offset);
+            byte[] payload = new byte[length - 1 - 8];
+            ByteBuffer record = segment.buffer.duplicate();
+            record.position(offset + HEADER + 1 + 8);
+            record.get(payload);
+            append(live.getKey(), payload, segment.buffer.getInt(offset + 4));
+        }
+        compacted.addAndGet(segment.live.size());
+        segment.live.clear();
+        segment.liveBytes = 0;
+    }
+
+    private void awaitForced(long record) {
+        synchronized (forceLock) {
+            boolean interrupted = false;
+            while (forced < record) {
+                try {
+                    forceLock.wait(forceIntervalMillis);
+                } catch (InterruptedException ie) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private Segment open(long sequence) throws IOException {
+        File file = new File(directory, String.format("%s%016x%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FileChannel channel = raf.getChannel();
+        MappedByteBuffer buffer;
+        try {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } catch (IOException ioe) {
+            closeQuietly(channel);
+            throw ioe;
+        }
+        Segment segment = new Segment(sequence, file, channel, buffer);
+        segments.put(sequence, segment);
+        return segment;
+    }
+
+    /**
+     * Reads the segments left by a previous instance into {@link #recovered}.
+     * @return the sequence of the first new segment
+     */
+    private long recover() throws IOException {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override public boolean accept(File file) {
+                return file.isFile() && file.getName().startsWith(SEGMENT_PREFIX)
+                        && file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if ((files == null) || (files.length == 0)) {
+            return 0L;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override public int compare(File left, File right) {
+                return left.getName().compareTo(right.getName());
+            }
+        });
+        long last = -1L;
+        for (File file : files) {
+            String name = file.getName();
+            last = Math.max(last, Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                    name.length() - SEGMENT_SUFFIX.length()), 16));
+            read(file);
+            recoveredFiles.add(file);
+        }
+        if (recovered.isEmpty()) {
+            for (File file : recoveredFiles) {
+                if (!file.delete()) {
+                    LOG.warning(String.format("Could not delete outbox segment %s", file.getPath()));
+                }
+            }
+            recoveredFiles.clear();
+        }
+        return last + 1;
+    }
+
+    private void read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        MappedByteBuffer buffer = null;
+        try {
+            FileChannel channel = raf.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32 check = new CRC32();
+            int position = 0;
+            while ((position + HEADER) <= buffer.limit()) {
+                int length = buffer.getInt(position);
+                if ((length < (1 + 8)) || ((position + HEADER + length) > buffer.limit())) {
+                    break;
+                }
+                byte[] content = new byte[length];
+                buffer.position(position + HEADER);
+                buffer.get(content);
+                check.reset();
+                check.update(content, 0, length);
+                if ((int) check.getValue() != buffer.getInt(position + 4)) {
+                    LOG.warning(String.format("Outbox segment %s is torn at %d; ignoring the rest", file.getPath(),
+                            position));
+                    break;
+                }
+                ByteBuffer record = ByteBuffer.wrap(content);
+                byte kind = record.get();
+                long id = record.getLong();
+                // ids of new sends must not collide with those still held by segments not yet replayed
+                if (id >= nextId.get()) {
+                    nextId.set(id + 1);
+                }
+                if (kind == APPEND) {
+                    recovered.put(id, Entry.decode(record));
+                } else if (kind == ACK) {
+                    recovered.remove(id);
+                }
+                position += HEADER + length;
+            }
+        } finally {
+            if (buffer != null) {
+                unmap(buffer);
+            }
+            raf.close();
+        }
+    }
+
+    private static void unmap(Segment segment) {
+        unmap(segment.buffer);
+        closeQuietly(segment.channel);
+    }
+
+    /**
+     * Unmaps {@code buffer} at once rather than when it is garbage collected, which until then holds the disk space of
+     * a deleted segment; this relies on JVM internals and, where they are unavailable, leaves the buffer to the garbage
+     * collector. The buffer must not be accessed afterwards.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } else if (CLEANER != null) {
+                Object cleaner = CLEANER.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (Exception e) {
+            LOG.log(Level.FINE, "Could not unmap outbox segment; leaving it to the garbage collector", e);
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ioe) {
+            LOG.log(Level.FINE, "Failed to close outbox segment", ioe);
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+package com.dashlabs.hermes;
+
+import com.dashlabs.hermes.firebase.ErrorCodes;
+import com.google.api.core.ApiFuture;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * User: blangel
+ * Date: 10/18/26
+ * Time: 4:05 PM
+ *
+ * Passes each attempt of a send through an {@link AdaptiveRateLimiter}, reporting failures classified by
+ * {@link ErrorCodes#isRateExceeded(Throwable)} back to it. Share one limiter among all transports of a project.
+ * Retries are made here rather than by the wrapped transport, which is sent to without retries, so that each retry
+ * takes a permit too; an attempt whose permit is not yet free is scheduled for that time rather than blocking.
+ * {@link FirebaseTransport} and {@link FirebaseHttp2Transport} take a limiter of their own, which keeps their request
+ * metrics per send rather than per attempt.
+ */
+public final class RateLimitedTransport<T> implements Transport<T> {
+
+    private final Transport<T> transport;
+
+    private final AdaptiveRateLimiter limiter;
+
+    private final ScheduledExecutorService scheduler;
+
+    public RateLimitedTransport(Transport<T> transport, AdaptiveRateLimiter limiter) {
+        this(transport, limiter, Retry.SHARED_SCHEDULER);
+    }
+
+    /**
+     * @param scheduler on which delayed attempts and retries are issued
+     */
+    public RateLimitedTransport(Transport<T> transport, AdaptiveRateLimiter limiter, ScheduledExecutorService scheduler) {
+        this.transport = transport;
+        this.limiter = limiter;
+        this.scheduler = scheduler;
+    }
+
+    @Override public String getId() {
+        return transport.getId();
+    }
+
+    @Override public RateLimitedTransport<T> forId(String id) {
+        return new RateLimitedTransport<T>(transport.forId(id), limiter, scheduler);
+    }
+
+    @Override public String send(T message, int retries) {
+        try {
+            return sendAsync(message, retries).get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ie);
+        } catch (ExecutionException ee) {
+            throw new RuntimeException(ee.getCause());
+        }
+    }
+
+    /**
+     * Failures classified as transient by {@link ErrorCodes#isTransient(Throwable)} are retried, up to {@code retries}
+     * times, with jittered exponential back-off.
+     */
+    @Override public ApiFuture<String> sendAsync(final T message, int retries) {
+        Retry.Attempt attempt = new Retry.Attempt() {
+            @Override public ApiFuture<String> attempt() {
+                return transport.sendAsync(message, 0);
+            }
+        };
+        return Retry.withBackoff(limiter.guard(attempt, scheduler), retries, scheduler);
+    }
+
+}
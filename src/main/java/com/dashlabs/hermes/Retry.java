@@ -0,0 +1,117 @@
+package com.dashlabs.hermes;
+
+import com.dashlabs.hermes.firebase.ErrorCodes;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * User: blangel
+ * Date: 10/18/26
+ * Time: 1:15 PM
+ *
+ * Retries asynchronous sends whose failures are transient, see {@link ErrorCodes#isTransient(Throwable)}, with
+ * jittered exponential back-off. Each retry is scheduled rather than slept so no thread is parked while waiting.
+ */
+final class Retry {
+
+    /**
+     * Makes one attempt of a send.
+     */
+    interface Attempt {
+
+        /**
+         * @return a future holding the payload of the sent message
+         */
+        ApiFuture<String> attempt();
+
+    }
+
+    /**
+     * Initial delay before first retry, without jitter.
+     */
+    static final int BACKOFF_INITIAL_DELAY = 1000;
+
+    /**
+     * Maximum delay before a retry.
+     */
+    static final int MAX_BACKOFF_DELAY = 64000;
+
+    /**
+     * Schedules retries for all transports not given their own scheduler. Retries only reissue the asynchronous send
+     * so a single thread suffices.
+     */
+    static final ScheduledExecutorService SHARED_SCHEDULER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("hermes-retry-%d").build());
+
+    /**
+     * @param attempt to make and, if transiently failing, retry
+     * @param retries number of times to attempt retry on failure
+     * @param scheduler on which to schedule retries
+     * @return a future holding the payload of the first successful attempt or the failure of the last
+     */
+    static ApiFuture<String> withBackoff(Attempt attempt, int retries, ScheduledExecutorService scheduler) {
+        if (retries < 1) {
+            return attempt.attempt();
+        }
+        SettableApiFuture<String> result = SettableApiFuture.create();
+        new Retry(attempt, scheduler, result).run(retries, BACKOFF_INITIAL_DELAY);
+        return result;
+    }
+
+    private final Attempt attempt;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final SettableApiFuture<String> result;
+
+    private Retry(Attempt attempt, ScheduledExecutorService scheduler, SettableApiFuture<String> result) {
+        this.attempt = attempt;
+        this.scheduler = scheduler;
+        this.result = result;
+    }
+
+    private void run(final int retriesLeft, final int backoff) {
+        if (result.isCancelled()) {
+            return;
+        }
+        ApiFuture<String> future;
+        try {
+            future = attempt.attempt();
+        } catch (RuntimeException re) {
+            result.setException(re);
+            return;
+        }
+        ApiFutures.addCallback(future, new ApiFutureCallback<String>() {
+            @Override public void onSuccess(String payload) {
+                result.set(payload);
+            }
+            @Override public void onFailure(Throwable t) {
+                if ((retriesLeft < 1) || !ErrorCodes.isTransient(t)) {
+                    result.setException(t);
+                    return;
+                }
+                int sleepTime = backoff / 2 + ThreadLocalRandom.current().nextInt(backoff);
+                final int nextBackoff = (2 * backoff < MAX_BACKOFF_DELAY ? 2 * backoff : backoff);
+                try {
+                    scheduler.schedule(new Runnable() {
+                        @Override public void run() {
+                            Retry.this.run(retriesLeft - 1, nextBackoff);
+                        }
+                    }, sleepTime, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException ree) {
+                    result.setException(t);
+                }
+            }
+        });
+    }
+
+}
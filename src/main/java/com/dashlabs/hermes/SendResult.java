@@ -0,0 +1,52 @@
+package com.dashlabs.hermes;
+
+/**
+ * User: blangel
+ * Date: 10/18/26
+ * Time: 9:12 AM
+ *
+ * Outcome of sending a message to a single device or registration id as part of a fan-out.
+ */
+public final class SendResult {
+
+    private final String id;
+
+    private final String payload;
+
+    private final Throwable failure;
+
+    SendResult(String id, String payload, Throwable failure) {
+        this.id = id;
+        this.payload = payload;
+        this.failure = failure;
+    }
+
+    /**
+     * @return the device or registration id
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the payload of the sent message or null if the send failed
+     */
+    public String getPayload() {
+        return payload;
+    }
+
+    /**
+     * @return the cause of the failure or null if the send succeeded
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    public boolean isSuccess() {
+        return (failure == null);
+    }
+
+    @Override public String toString() {
+        return (isSuccess() ? String.format("%s -> %s", id, payload) : String.format("%s -> failed (%s)", id, failure));
+    }
+}
@@ -1,5 +1,7 @@
 package com.dashlabs.hermes;
 
+import com.google.api.core.ApiFuture;
+
 /**
  * User: blangel
  * Date: 8/1/13
@@ -12,6 +14,12 @@ public interface Transport<T> {
      */
     String getId();
 
+    /**
+     * @param id the device or registration id
+     * @return a transport bound to {@code id} which shares this transport's underlying connection
+     */
+    Transport<T> forId(String id);
+
     /**
      * @param message to send on the underlying transport
      * @param retries number of times to attempt retry on failure
@@ -19,4 +27,12 @@ public interface Transport<T> {
      */
     String send(T message, int retries);
 
+    /**
+     * Sends without blocking the calling thread on the underlying transport's round trip.
+     * @param message to send on the underlying transport
+     * @param retries number of times to attempt retry on failure
+     * @return a future holding the payload of the sent message
+     */
+    ApiFuture<String> sendAsync(T message, int retries);
+
 }
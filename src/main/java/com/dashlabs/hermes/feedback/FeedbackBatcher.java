@@ -0,0 +1,288 @@
+package com.dashlabs.hermes.feedback;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * User: blangel
+ * Date: 10/18/26
+ * Time: 2:10 PM
+ *
+ * Collects invalid and canonical tokens reported by sends and delivers them to a {@link TokenFeedback} in batches.
+ * A batch is delivered once it holds {@code maxBatchSize} distinct tokens or {@code maxDelay} after its first token
+ * was reported, whichever comes first. Reporting never blocks on delivery; a token reported several times before
+ * its batch is delivered appears in the batch once, with the latest canonical replacement.
+ */
+public final class FeedbackBatcher {
+
+    private static final Logger LOG = Logger.getLogger(FeedbackBatcher.class.getName());
+
+    /**
+     * Delivers batches for all batchers not given their own scheduler.
+     */
+    private static final ScheduledExecutorService SHARED_SCHEDULER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("hermes-feedback-%d").build());
+
+    public static Builder builder(TokenFeedback feedback) {
+        return new Builder(feedback);
+    }
+
+    public static final class Builder {
+
+        private final TokenFeedback feedback;
+
+        private int maxBatchSize;
+
+        private long maxDelayMillis;
+
+        private ScheduledExecutorService scheduler;
+
+        private Builder(TokenFeedback feedback) {
+            if (feedback == null) {
+                throw new IllegalArgumentException("Feedback must not be null");
+            }
+            this.feedback = feedback;
+            this.maxBatchSize = 1000;
+            this.maxDelayMillis = 1000L;
+            this.scheduler = SHARED_SCHEDULER;
+        }
+
+        /**
+         * @param maxBatchSize the number of distinct tokens at which a batch is delivered without waiting
+         */
+        public Builder maxBatchSize(int maxBatchSize) {
+            if (maxBatchSize < 1) {
+                throw new IllegalArgumentException(String.format("Max batch size must be positive [ was %d ]", maxBatchSize));
+            }
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        /**
+         * @param maxDelay the longest a reported token waits before its batch is delivered
+         */
+        public Builder maxDelay(long maxDelay, TimeUnit unit) {
+            if (maxDelay < 0) {
+                throw new IllegalArgumentException(String.format("Max delay must not be negative [ was %d ]", maxDelay));
+            }
+            this.maxDelayMillis = unit.toMillis(maxDelay);
+            return this;
+        }
+
+        /**
+         * @param scheduler on which batches are delivered; a single threaded scheduler delivers batches in order
+         */
+        public Builder scheduler(ScheduledExecutorService scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        public FeedbackBatcher build() {
+            return new FeedbackBatcher(feedback, maxBatchSize, maxDelayMillis, scheduler);
+        }
+
+    }
+
+    private final TokenFeedback feedback;
+
+    private final int maxBatchSize;
+
+    private final long maxDelayMillis;
+
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Guards {@link #invalidTokens}, {@link #canonicalTokens} and {@link #delayedFlush}.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * Held while delivering so {@link TokenFeedback} is called by one thread at a time.
+     */
+    private final Object deliveryLock = new Object();
+
+    private Set<String> invalidTokens;
+
+    private Map<String, String> canonicalTokens;
+
+    /**
+     * The delayed delivery of the pending batch, while one is scheduled.
+     */
+    private DelayedFlush delayedFlush;
+
+    private final AtomicLong deliveredBatches;
+
+    private final AtomicLong failedBatches;
+
+    private FeedbackBatcher(TokenFeedback feedback, int maxBatchSize, long maxDelayMillis,
+                            ScheduledExecutorService scheduler) {
+        this.feedback = feedback;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMillis = maxDelayMillis;
+        this.scheduler = scheduler;
+        this.invalidTokens = new LinkedHashSet<String>();
+        this.canonicalTokens = new LinkedHashMap<String, String>();
+        this.deliveredBatches = new AtomicLong();
+        this.failedBatches = new AtomicLong();
+    }
+
+    /**
+     * @param token which is no longer registered
+     */
+    public void invalid(String token) {
+        if (token == null) {
+            return;
+        }
+        synchronized (lock) {
+            invalidTokens.add(token);
+            added();
+        }
+    }
+
+    /**
+     * @param token which is still valid but should be replaced
+     * @param canonicalToken the token which should replace {@code token}
+     */
+    public void canonical(String token, String canonicalToken) {
+        if (token == null || canonicalToken == null) {
+            return;
+        }
+        synchronized (lock) {
+            canonicalTokens.put(token, canonicalToken);
+            added();
+        }
+    }
+
+    /**
+     * Delivers the pending batch, if any, on the calling thread; for instance before shutting down.
+     */
+    public void flush() {
+        Batch batch;
+        synchronized (lock) {
+            batch = take();
+        }
+        if (batch != null) {
+            batch.run();
+        }
+    }
+
+    /**
+     * @return the number of batches delivered to the {@link TokenFeedback}
+     */
+    public long getDeliveredBatches() {
+        return deliveredBatches.get();
+    }
+
+    /**
+     * @return the number of batches whose delivery threw; such batches are dropped
+     */
+    public long getFailedBatches() {
+        return failedBatches.get();
+    }
+
+    /**
+     * Starts a delivery once the pending batch is full, or schedules one if the token started a batch. Must hold
+     * {@link #lock}.
+     */
+    private void added() {
+        if (invalidTokens.size() + canonicalTokens.size() >= maxBatchSize) {
+            Batch batch = take();
+            try {
+                scheduler.execute(batch);
+            } catch (RejectedExecutionException ree) {
+                LOG.log(Level.WARNING, "Feedback scheduler rejected batch; dropping it", ree);
+                failedBatches.incrementAndGet();
+            }
+        } else if (delayedFlush == null) {
+            DelayedFlush flush = new DelayedFlush();
+            try {
+                flush.future = scheduler.schedule(flush, maxDelayMillis, TimeUnit.MILLISECONDS);
+                delayedFlush = flush;
+            } catch (RejectedExecutionException ree) {
+                LOG.log(Level.WARNING, "Feedback scheduler rejected delayed delivery", ree);
+            }
+        }
+    }
+
+    /**
+     * Takes the pending batch, leaving an empty one, and cancels its delayed delivery. Must hold {@link #lock}.
+     * @return the pending batch or null if it is empty
+     */
+    private Batch take() {
+        if (delayedFlush != null) {
+            delayedFlush.future.cancel(false);
+            delayedFlush = null;
+        }
+        if (invalidTokens.isEmpty() && canonicalTokens.isEmpty()) {
+            return null;
+        }
+        Batch batch = new Batch(invalidTokens, canonicalTokens);
+        invalidTokens = new LinkedHashSet<String>();
+        canonicalTokens = new LinkedHashMap<String, String>();
+        return batch;
+    }
+
+    /**
+     * Delivers the batch pending when scheduled, unless it was taken since; a delivery whose cancel came too late must
+     * not take the batch started after it.
+     */
+    private final class DelayedFlush implements Runnable {
+
+        /**
+         * Guarded by {@link #lock}.
+         */
+        private ScheduledFuture<?> future;
+
+        @Override public void run() {
+            Batch batch;
+            synchronized (lock) {
+                if (delayedFlush != this) {
+                    return;
+                }
+                batch = take();
+            }
+            if (batch != null) {
+                batch.run();
+            }
+        }
+    }
+
+    private final class Batch implements Runnable {
+
+        private final Set<String> invalidTokens;
+
+        private final Map<String, String> canonicalTokens;
+
+        private Batch(Set<String> invalidTokens, Map<String, String> canonicalTokens) {
+            this.invalidTokens = Collections.unmodifiableSet(invalidTokens);
+            this.canonicalTokens = Collections.unmodifiableMap(canonicalTokens);
+        }
+
+        @Override public void run() {
+            synchronized (deliveryLock) {
+                try {
+                    feedback.onFeedback(invalidTokens, canonicalTokens);
+                    deliveredBatches.incrementAndGet();
+                } catch (RuntimeException re) {
+                    LOG.log(Level.WARNING, String.format("Token feedback failed; dropping %d invalid and %d canonical tokens",
+                            invalidTokens.size(), canonicalTokens.size()), re);
+                    failedBatches.incrementAndGet();
+                }
+            }
+        }
+    }
+
+}
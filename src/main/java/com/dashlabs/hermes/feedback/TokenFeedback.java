@@ -0,0 +1,22 @@
+package com.dashlabs.hermes.feedback;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * User: blangel
+ * Date: 10/18/26
+ * Time: 2:05 PM
+ *
+ * Receives what sends learned about registration tokens, coalesced into batches by a {@link FeedbackBatcher} so a
+ * token store can apply each batch as one bulk update. Batches are delivered one at a time, off the sending threads.
+ */
+public interface TokenFeedback {
+
+    /**
+     * @param invalidTokens tokens which are no longer registered and should be removed; may be empty
+     * @param canonicalTokens the token which should replace each key token; may be empty
+     */
+    void onFeedback(Set<String> invalidTokens, Map<String, String> canonicalTokens);
+
+}
@@ -0,0 +1,142 @@
+package com.dashlabs.hermes.firebase;
+
+import com.google.firebase.messaging.FirebaseMessagingException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * User: blangel
+ * Date: 10/18/26
+ * Time: 10:41 AM
+ *
+ * Error codes reported by {@link FirebaseMessagingException#getErrorCode()}.
+ */
+public final class ErrorCodes {
+
+    /**
+     * The registration token is no longer valid (the app was uninstalled or the token expired).
+     */
+    public static final String REGISTRATION_TOKEN_NOT_REGISTERED = "registration-token-not-registered";
+
+    /**
+     * The request was malformed; for instance an invalid registration token.
+     */
+    public static final String INVALID_ARGUMENT = "invalid-argument";
+
+    /**
+     * The registration token belongs to a different sender.
+     */
+    public static final String MISMATCHED_CREDENTIAL = "mismatched-credential";
+
+    public static final String INVALID_APNS_CREDENTIALS = "invalid-apns-credentials";
+
+    /**
+     * The sending rate for the project or device was exceeded. Retry after a while.
+     */
+    public static final String MESSAGE_RATE_EXCEEDED = "message-rate-exceeded";
+
+    /**
+     * FCM was unable to process the request in time. Retry after a while.
+     */
+    public static final String SERVER_UNAVAILABLE = "server-unavailable";
+
+    /**
+     * FCM encountered an error, or the request failed on the network. Retry after a while.
+     */
+    public static final String INTERNAL_ERROR = "internal-error";
+
+    public static final String UNKNOWN_ERROR = "unknown-error";
+
+    /**
+     * Not sent as the provider is failing, see {@link com.dashlabs.hermes.CircuitBreaker}. Not reported by FCM.
+     */
+    public static final String CIRCUIT_OPEN = "circuit-open";
+
+    /**
+     * Mapping of the FCM HTTP v1 API's canonical and FCM specific error codes to the codes above, as done by
+     * {@link com.google.firebase.messaging.FirebaseMessaging}.
+     */
+    private static final Map<String, String> FCM_V1_ERROR_CODES = new HashMap<String, String>();
+
+    static {
+        // canonical error codes
+        FCM_V1_ERROR_CODES.put("NOT_FOUND", REGISTRATION_TOKEN_NOT_REGISTERED);
+        FCM_V1_ERROR_CODES.put("PERMISSION_DENIED", MISMATCHED_CREDENTIAL);
+        FCM_V1_ERROR_CODES.put("RESOURCE_EXHAUSTED", MESSAGE_RATE_EXCEEDED);
+        FCM_V1_ERROR_CODES.put("UNAUTHENTICATED", INVALID_APNS_CREDENTIALS);
+        // fcm specific error codes
+        FCM_V1_ERROR_CODES.put("APNS_AUTH_ERROR", INVALID_APNS_CREDENTIALS);
+        FCM_V1_ERROR_CODES.put("INTERNAL", INTERNAL_ERROR);
+        FCM_V1_ERROR_CODES.put("INVALID_ARGUMENT", INVALID_ARGUMENT);
+        FCM_V1_ERROR_CODES.put("QUOTA_EXCEEDED", MESSAGE_RATE_EXCEEDED);
+        FCM_V1_ERROR_CODES.put("SENDER_ID_MISMATCH", MISMATCHED_CREDENTIAL);
+        FCM_V1_ERROR_CODES.put("UNAVAILABLE", SERVER_UNAVAILABLE);
+        FCM_V1_ERROR_CODES.put("UNREGISTERED", REGISTRATION_TOKEN_NOT_REGISTERED);
+    }
+
+    /**
+     * @param fcmV1ErrorCode the status or FCM error code of an FCM HTTP v1 API error response
+     * @return the corresponding error code or {@link #UNKNOWN_ERROR} if there is none
+     */
+    public static String fromFcmV1(String fcmV1ErrorCode) {
+        String errorCode = (fcmV1ErrorCode == null ? null : FCM_V1_ERROR_CODES.get(fcmV1ErrorCode));
+        return (errorCode == null ? UNKNOWN_ERROR : errorCode);
+    }
+
+    /**
+     * @param t the failure of a send
+     * @return the firebase error code of {@code t} or null if {@code t} is neither a {@link FirebaseMessagingException}
+     *         nor a {@link FcmException}
+     */
+    public static String getErrorCode(Throwable t) {
+        if (t instanceof FirebaseMessagingException) {
+            return ((FirebaseMessagingException) t).getErrorCode();
+        } else if (t instanceof FcmException) {
+            return ((FcmException) t).getErrorCode();
+        }
+        return null;
+    }
+
+    /**
+     * @param t the failure of a send
+     * @return true if the send may succeed if retried after a while
+     */
+    public static boolean isTransient(Throwable t) {
+        String errorCode = getErrorCode(t);
+        return (INTERNAL_ERROR.equals(errorCode) || SERVER_UNAVAILABLE.equals(errorCode)
+                || MESSAGE_RATE_EXCEEDED.equals(errorCode));
+    }
+
+    /**
+     * @param t the failure of a send
+     * @return true if the provider itself failed, rather than rejecting the message or token
+     */
+    public static boolean isProviderFailure(Throwable t) {
+        String errorCode = getErrorCode(t);
+        return INTERNAL_ERROR.equals(errorCode) || SERVER_UNAVAILABLE.equals(errorCode)
+                || ((t instanceof FcmException) && (((FcmException) t).getHttpStatus() >= 500));
+    }
+
+    /**
+     * @param t the failure of a send
+     * @return true if the send was rejected for exceeding the project's or device's quota
+     */
+    public static boolean isRateExceeded(Throwable t) {
+        return MESSAGE_RATE_EXCEEDED.equals(getErrorCode(t))
+                || ((t instanceof FcmException) && (((FcmException) t).getHttpStatus() == 429));
+    }
+
+    /**
+     * @param t the failure of a send
+     * @return true if the registration token sent to is no longer valid and should not be sent to again
+     */
+    public static boolean isUnregistered(Throwable t) {
+        return REGISTRATION_TOKEN_NOT_REGISTERED.equals(getErrorCode(t));
+    }
+
+    private ErrorCodes() {
+        throw new UnsupportedOperationException();
+    }
+
+}
@@ -0,0 +1,43 @@
+package com.dashlabs.hermes.firebase;
+
+/**
+ * User: blangel
+ * Date: 10/18/26
+ * Time: 1:32 PM
+ *
+ * Failure of a send made directly against the FCM HTTP v1 API, carrying the same error codes as
+ * {@link com.google.firebase.messaging.FirebaseMessagingException#getErrorCode()}; see {@link ErrorCodes}.
+ */
+@SuppressWarnings("serial")
+public class FcmException extends Exception {
+
+    private final String errorCode;
+
+    private final int httpStatus;
+
+    public FcmException(String errorCode, int httpStatus, String message, Throwable cause) {
+        super(message, cause);
+        this.errorCode = errorCode;
+        this.httpStatus = httpStatus;
+    }
+
+    /**
+     * @param writableStackTrace false for failures raised locally, whose stack trace would cost more than the check
+     */
+    protected FcmException(String errorCode, int httpStatus, String message, Throwable cause, boolean writableStackTrace) {
+        super(message, cause, false, writableStackTrace);
+        this.errorCode = errorCode;
+        this.httpStatus = httpStatus;
+    }
+
+    public String getErrorCode() {
+        return errorCode;
+    }
+
+    /**
+     * @return the HTTP status of the response or 0 if no response was received
+     */
+    public int getHttpStatus() {
+        return httpStatus;
+    }
+}
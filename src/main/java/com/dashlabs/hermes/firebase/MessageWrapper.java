@@ -1,28 +1,98 @@
 package com.dashlabs.hermes.firebase;
 
+import com.google.firebase.messaging.AndroidConfig;
+import com.google.firebase.messaging.ApnsConfig;
 import com.google.firebase.messaging.Message;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * User: blangel
  * Date: 5/1/18
  * Time: 9:51 AM
+ *
+ * An immutable, precompiled message template. The platform configuration and data are built once and each call
+ * to {@link #toMessage(String)} stamps them with a token, so a single instance may be shared across tokens and threads.
  */
 public class MessageWrapper {
 
-    private final Message.Builder builder;
+    private final AndroidConfig androidConfig;
+
+    private final ApnsConfig apnsConfig;
+
+    private final Map<String, String> data;
 
     private final boolean dryRun;
 
-    public MessageWrapper(Message.Builder builder, boolean dryRun) {
-        this.builder = builder;
+    private final String collapseKey;
+
+    public MessageWrapper(AndroidConfig androidConfig, ApnsConfig apnsConfig, Map<String, String> data, boolean dryRun) {
+        this(androidConfig, apnsConfig, data, dryRun, null);
+    }
+
+    /**
+     * @param collapseKey the collapse key set on {@code androidConfig}, which the firebase config does not expose, or
+     *                    null if none
+     */
+    public MessageWrapper(AndroidConfig androidConfig, ApnsConfig apnsConfig, Map<String, String> data, boolean dryRun,
+                          String collapseKey) {
+        this.androidConfig = androidConfig;
+        this.apnsConfig = apnsConfig;
+        this.data = (data == null ? Collections.<String, String>emptyMap()
+                : Collections.unmodifiableMap(new HashMap<String, String>(data)));
         this.dryRun = dryRun;
+        this.collapseKey = collapseKey;
+    }
+
+    /**
+     * @param token the registration token to which the message is addressed
+     * @return a message built from this template addressed to {@code token}
+     */
+    public Message toMessage(String token) {
+        return populate(Message.builder()).setToken(token).build();
     }
 
+    /**
+     * @return a new builder populated from this template; modifications to the builder do not affect this template
+     * @deprecated use {@link #toMessage(String)} which does not require a builder per send
+     */
+    @Deprecated
     public Message.Builder getBuilder() {
-        return builder;
+        return populate(Message.builder());
+    }
+
+    public AndroidConfig getAndroidConfig() {
+        return androidConfig;
+    }
+
+    public ApnsConfig getApnsConfig() {
+        return apnsConfig;
+    }
+
+    public Map<String, String> getData() {
+        return data;
     }
 
     public boolean isDryRun() {
         return dryRun;
     }
+
+    /**
+     * @return the collapse key with which the device replaces earlier undelivered messages, or null if none
+     */
+    public String getCollapseKey() {
+        return collapseKey;
+    }
+
+    private Message.Builder populate(Message.Builder builder) {
+        if (androidConfig != null) {
+            builder.setAndroidConfig(androidConfig);
+        }
+        if (apnsConfig != null) {
+            builder.setApnsConfig(apnsConfig);
+        }
+        return builder.putAllData(data);
+    }
 }
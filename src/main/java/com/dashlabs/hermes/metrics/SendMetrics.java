@@ -0,0 +1,186 @@
+package com.dashlabs.hermes.metrics;
+
+import io.opencensus.stats.Aggregation;
+import io.opencensus.stats.BucketBoundaries;
+import io.opencensus.stats.Measure;
+import io.opencensus.stats.Stats;
+import io.opencensus.stats.StatsRecorder;
+import io.opencensus.stats.View;
+import io.opencensus.stats.ViewManager;
+import io.opencensus.tags.TagContext;
+import io.opencensus.tags.TagKey;
+import io.opencensus.tags.TagValue;
+import io.opencensus.tags.Tagger;
+import io.opencensus.tags.Tags;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * User: blangel
+ * Date: 10/18/26
+ * Time: 5:10 PM
+ *
+ * OpenCensus measures recorded by every send path, tagged by path ({@link #PATH_HERMES}, {@link #PATH_FIREBASE},
+ * {@link #PATH_GCM}), {@link com.dashlabs.hermes.Type}, HTTP status and error code.
+ * Recording is left on; it costs a lookup of the cached tags and, without an OpenCensus implementation on the
+ * classpath or with {@link #registerViews()} not called, nothing more. Call {@link #registerViews()} once to
+ * aggregate the measures for export.
+ */
+public final class SendMetrics {
+
+    public static final String PATH_HERMES = "hermes";
+
+    public static final String PATH_FIREBASE = "firebase";
+
+    public static final String PATH_GCM = "gcm";
+
+    /**
+     * The type tag value of sends whose {@link com.dashlabs.hermes.Type} is not known, e.g. those of the GCM sender.
+     */
+    public static final String TYPE_UNKNOWN = "unknown";
+
+    /**
+     * The error tag value of successful requests and recipients.
+     */
+    public static final String OK = "OK";
+
+    /**
+     * The error tag value of requests which received no response.
+     */
+    public static final String NETWORK_ERROR = "NetworkError";
+
+    /**
+     * The error tag value of requests answered with an unexpected HTTP status.
+     */
+    public static final String HTTP_ERROR = "HttpError";
+
+    public static final TagKey PATH = TagKey.create("hermes_path");
+
+    public static final TagKey TYPE = TagKey.create("hermes_type");
+
+    public static final TagKey HTTP_STATUS = TagKey.create("hermes_http_status");
+
+    public static final TagKey ERROR = TagKey.create("hermes_error");
+
+    public static final Measure.MeasureDouble LATENCY = Measure.MeasureDouble.create("hermes/send/latency",
+            "Latency of a send request, including retries made for it", "ms");
+
+    public static final Measure.MeasureLong RECIPIENTS = Measure.MeasureLong.create("hermes/send/recipients",
+            "Recipients of a send request", "1");
+
+    public static final Measure.MeasureLong RETRIES = Measure.MeasureLong.create("hermes/send/retries",
+            "Retries made for a send request", "1");
+
+    public static final View LATENCY_VIEW = View.create(View.Name.create("hermes/send/latency"),
+            "Distribution of send latencies", LATENCY,
+            Aggregation.Distribution.create(BucketBoundaries.create(Arrays.asList(0.0, 1.0, 2.0, 5.0, 10.0, 20.0, 50.0,
+                    100.0, 200.0, 500.0, 1000.0, 2000.0, 5000.0, 10000.0, 30000.0, 60000.0))),
+            Arrays.asList(PATH, TYPE, HTTP_STATUS, ERROR), View.AggregationWindow.Cumulative.create());
+
+    public static final View REQUESTS_VIEW = View.create(View.Name.create("hermes/send/requests"),
+            "Number of send requests", LATENCY, Aggregation.Count.create(),
+            Arrays.asList(PATH, TYPE, HTTP_STATUS, ERROR), View.AggregationWindow.Cumulative.create());
+
+    public static final View RECIPIENTS_VIEW = View.create(View.Name.create("hermes/send/recipients"),
+            "Number of recipients sent to", RECIPIENTS, Aggregation.Sum.create(),
+            Arrays.asList(PATH, TYPE, HTTP_STATUS, ERROR), View.AggregationWindow.Cumulative.create());
+
+    public static final View RETRIES_VIEW = View.create(View.Name.create("hermes/send/retries"),
+            "Distribution of retries per send", RETRIES,
+            Aggregation.Distribution.create(BucketBoundaries.create(Arrays.asList(0.0, 1.0, 2.0, 3.0, 5.0, 8.0, 13.0))),
+            Arrays.asList(PATH, TYPE), View.AggregationWindow.Cumulative.create());
+
+    private static final List<View> VIEWS = Collections.unmodifiableList(
+            Arrays.asList(LATENCY_VIEW, REQUESTS_VIEW, RECIPIENTS_VIEW, RETRIES_VIEW));
+
+    /**
+     * Tag values are few (paths, types, statuses and error codes), so their contexts are built once; the bound only
+     * guards against unexpected error codes.
+     */
+    private static final int MAX_CACHED_TAGS = 4096;
+
+    private static final ConcurrentMap<String, TagContext> TAGS = new ConcurrentHashMap<String, TagContext>();
+
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    /**
+     * Registers {@link #LATENCY_VIEW}, {@link #REQUESTS_VIEW}, {@link #RECIPIENTS_VIEW} and {@link #RETRIES_VIEW} with
+     * the OpenCensus view manager.
+     */
+    public static void registerViews() {
+        ViewManager viewManager = Stats.getViewManager();
+        for (View view : VIEWS) {
+            viewManager.registerView(view);
+        }
+    }
+
+    public static List<View> getViews() {
+        return VIEWS;
+    }
+
+    /**
+     * Records one request.
+     * @param httpStatus of the response, or 0 if none was received
+     * @param error code of the request's failure, or {@link #OK}
+     * @param latencyNanos from the request's start to its completion
+     */
+    public static void recordRequest(String path, String type, int httpStatus, String error, long latencyNanos) {
+        recorder().newMeasureMap()
+                .put(LATENCY, latencyNanos / NANOS_PER_MILLI)
+                .record(tags(path, type, httpStatus, error));
+    }
+
+    /**
+     * Records recipients of a request which share an outcome.
+     * @param error code of the recipients' failure, or {@link #OK}
+     */
+    public static void recordRecipients(String path, String type, int httpStatus, String error, long recipients) {
+        if (recipients < 1) {
+            return;
+        }
+        recorder().newMeasureMap()
+                .put(RECIPIENTS, recipients)
+                .record(tags(path, type, httpStatus, error));
+    }
+
+    /**
+     * Records the retries made for a request once it completed.
+     */
+    public static void recordRetries(String path, String type, int retries) {
+        recorder().newMeasureMap()
+                .put(RETRIES, Math.max(0, retries))
+                .record(tags(path, type, 0, OK));
+    }
+
+    private static StatsRecorder recorder() {
+        return Stats.getStatsRecorder();
+    }
+
+    private static TagContext tags(String path, String type, int httpStatus, String error) {
+        String nonNullError = (error == null ? OK : error);
+        String key = path + '|' + type + '|' + httpStatus + '|' + nonNullError;
+        TagContext tags = TAGS.get(key);
+        if (tags == null) {
+            Tagger tagger = Tags.getTagger();
+            tags = tagger.emptyBuilder()
+                    .put(PATH, TagValue.create(path))
+                    .put(TYPE, TagValue.create(type))
+                    .put(HTTP_STATUS, TagValue.create(httpStatus == 0 ? "none" : String.valueOf(httpStatus)))
+                    .put(ERROR, TagValue.create(nonNullError))
+                    .build();
+            if (TAGS.size() < MAX_CACHED_TAGS) {
+                TAGS.putIfAbsent(key, tags);
+            }
+        }
+        return tags;
+    }
+
+    private SendMetrics() {
+        throw new UnsupportedOperationException();
+    }
+
+}
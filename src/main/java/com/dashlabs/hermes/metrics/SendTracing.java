@@ -0,0 +1,119 @@
+package com.dashlabs.hermes.metrics;
+
+import com.dashlabs.hermes.firebase.ErrorCodes;
+import io.opencensus.common.Scope;
+import io.opencensus.trace.AttributeValue;
+import io.opencensus.trace.Sampler;
+import io.opencensus.trace.Span;
+import io.opencensus.trace.SpanBuilder;
+import io.opencensus.trace.Status;
+import io.opencensus.trace.Tracer;
+import io.opencensus.trace.Tracing;
+
+/**
+ * User: blangel
+ * Date: 10/18/26
+ * Time: 5:55 PM
+ *
+ * OpenCensus spans of the send paths. Each send is a span ({@link #HERMES_SEND}, {@link #SENDER_SEND}) whose children
+ * cover building and serializing the message, each attempt over the network and each back-off between attempts.
+ * Send spans are children of the caller's current span and are sampled by {@link #setSampler(Sampler)}; child spans
+ * follow their send's sampling decision. Asynchronous sends carry their span to the threads completing them.
+ */
+public final class SendTracing {
+
+    public static final String HERMES_SEND = "Hermes.send";
+
+    public static final String HERMES_BUILD = "Hermes.build";
+
+    public static final String TRANSPORT_SERIALIZE = "Transport.serialize";
+
+    public static final String TRANSPORT_ATTEMPT = "Transport.attempt";
+
+    public static final String SENDER_SEND = "Sender.send";
+
+    public static final String SENDER_CHUNKS = "Sender.sendChunks";
+
+    public static final String SENDER_SERIALIZE = "Sender.serialize";
+
+    public static final String SENDER_ATTEMPT = "Sender.attempt";
+
+    public static final String SENDER_NETWORK = "Sender.network";
+
+    public static final String SENDER_BACKOFF = "Sender.backoff";
+
+    private static volatile Sampler sampler;
+
+    /**
+     * @param sampler deciding which sends are traced, or null to use OpenCensus' configured default sampler
+     */
+    public static void setSampler(Sampler sampler) {
+        SendTracing.sampler = sampler;
+    }
+
+    /**
+     * @return a span of a whole send, a child of the current span sampled by {@link #setSampler(Sampler)}
+     */
+    public static Span startSend(String name) {
+        SpanBuilder builder = tracer().spanBuilder(name);
+        Sampler current = sampler;
+        if (current != null) {
+            builder.setSampler(current);
+        }
+        return builder.startSpan();
+    }
+
+    /**
+     * @return a span of a phase of a send, a child of the current span
+     */
+    public static Span startChild(String name) {
+        return tracer().spanBuilder(name).startSpan();
+    }
+
+    /**
+     * @return a span of a phase of a send, a child of {@code parent}; for phases running on another thread
+     */
+    public static Span startChild(String name, Span parent) {
+        return tracer().spanBuilderWithExplicitParent(name, parent).startSpan();
+    }
+
+    /**
+     * @return a span of attempt {@code attempt}, counting from 1, of a send, a child of {@code parent}
+     */
+    public static Span startAttempt(String name, Span parent, int attempt) {
+        Span span = startChild(name, parent);
+        span.putAttribute("attempt", AttributeValue.longAttributeValue(attempt));
+        return span;
+    }
+
+    public static Span currentSpan() {
+        return tracer().getCurrentSpan();
+    }
+
+    /**
+     * @return a scope, to be closed on the same thread, in which {@code span} is the current span
+     */
+    public static Scope withSpan(Span span) {
+        return tracer().withSpan(span);
+    }
+
+    /**
+     * Ends {@code span}, with an error status if {@code failure} is not null.
+     */
+    public static void end(Span span, Throwable failure) {
+        if (failure != null) {
+            String errorCode = ErrorCodes.getErrorCode(failure);
+            span.setStatus(Status.UNKNOWN.withDescription(errorCode != null ? errorCode : String.valueOf(failure)));
+        }
+        span.end();
+    }
+
+    private static Tracer tracer() {
+        return Tracing.getTracer();
+    }
+
+    private SendTracing() {
+        throw new UnsupportedOperationException();
+    }
+
+}
@@ -0,0 +1,16 @@
+package com.google.android.gcm.server;
+
+import java.io.IOException;
+
+/**
+ * Exception thrown when a request was not made because the sender's circuit
+ * breaker is open, as GCM has been failing.
+ */
+@SuppressWarnings("serial")
+public final class CircuitOpenException extends IOException {
+
+    public CircuitOpenException() {
+        super("GCM circuit is open; request not made");
+    }
+
+}
@@ -26,6 +26,12 @@ public final class Constants {
     public static final String GCM_SEND_ENDPOINT =
             "https://android.googleapis.com/gcm/send";
 
+    /**
+     * Maximum number of registration ids GCM accepts in a single multicast
+     * request.
+     */
+    public static final int MULTICAST_SIZE_LIMIT = 1000;
+
     /**
      * HTTP parameter for registration id.
      */
@@ -0,0 +1,55 @@
+package com.google.android.gcm.server;
+
+/**
+ * Error codes returned by GCM for individual messages, see {@link Constants}.
+ */
+enum GcmError {
+
+    QuotaExceeded(Constants.ERROR_QUOTA_EXCEEDED),
+    DeviceQuotaExceeded(Constants.ERROR_DEVICE_QUOTA_EXCEEDED),
+    MissingRegistration(Constants.ERROR_MISSING_REGISTRATION),
+    InvalidRegistration(Constants.ERROR_INVALID_REGISTRATION),
+    MismatchSenderId(Constants.ERROR_MISMATCH_SENDER_ID),
+    NotRegistered(Constants.ERROR_NOT_REGISTERED),
+    MessageTooBig(Constants.ERROR_MESSAGE_TOO_BIG),
+    MissingCollapseKey(Constants.ERROR_MISSING_COLLAPSE_KEY),
+    Unavailable(Constants.ERROR_UNAVAILABLE),
+    InternalServerError(Constants.ERROR_INTERNAL_SERVER_ERROR),
+    InvalidTtl(Constants.ERROR_INVALID_TTL);
+
+    private static final GcmError[] VALUES = values();
+
+    private final String code;
+
+    private GcmError(String code) {
+        this.code = code;
+    }
+
+    /**
+     * Gets the error code, as returned by GCM.
+     */
+    String getCode() {
+        return code;
+    }
+
+    /**
+     * Gets the error of a given ordinal, without copying {@link #values()}.
+     */
+    static GcmError fromOrdinal(int ordinal) {
+        return VALUES[ordinal];
+    }
+
+    /**
+     * Gets the error with a given code, or {@literal null} if the code is
+     * unknown.
+     */
+    static GcmError fromCode(String code) {
+        for (GcmError error : VALUES) {
+            if (error.code.equals(code)) {
+                return error;
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,33 @@
+package com.google.android.gcm.server;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * Supplies the connections used by a {@link Sender} to post requests to GCM.
+ * <p>
+ * Every connection returned by {@link #open(String)} is handed back through
+ * {@link #release(HttpURLConnection, boolean)} once its response has been
+ * read, or once the request failed.
+ */
+public interface HttpEngine {
+
+    /**
+     * Opens a connection to a given URL.
+     *
+     * @param url endpoint of the request.
+     * @return the connection, not yet connected.
+     * @throws IOException if no connection could be obtained.
+     */
+    HttpURLConnection open(String url) throws IOException;
+
+    /**
+     * Takes back a connection returned by {@link #open(String)}.
+     *
+     * @param connection the connection; it should not be used afterwards.
+     * @param reusable   whether the response was fully read, so the underlying
+     *                   socket can be kept alive for other requests.
+     */
+    void release(HttpURLConnection connection, boolean reusable);
+
+}
@@ -0,0 +1,36 @@
+package com.google.android.gcm.server;
+
+import java.util.List;
+
+/**
+ * Receives the outcome of each chunk of a multicast as soon as the chunk
+ * completes, see {@link Sender#send(Message, List, int, int, MulticastListener)}.
+ * <p/>
+ * Chunks complete in any order, and may be reported concurrently from the
+ * threads of the {@link Sender}'s executor, so implementations must be
+ * thread-safe and should not block.
+ */
+public interface MulticastListener {
+
+    /**
+     * Called when a chunk was sent.
+     *
+     * @param offset position in the input list of the first device of the
+     *               chunk.
+     * @param regIds registration ids of the chunk.
+     * @param result result of the chunk, with results in the same order as
+     *               {@code regIds}.
+     */
+    void onChunk(int offset, List<String> regIds, MulticastResult result);
+
+    /**
+     * Called when every attempt to send a chunk failed.
+     *
+     * @param offset position in the input list of the first device of the
+     *               chunk.
+     * @param regIds registration ids of the chunk.
+     * @param cause  failure of the last attempt.
+     */
+    void onChunkFailure(int offset, List<String> regIds, Throwable cause);
+
+}
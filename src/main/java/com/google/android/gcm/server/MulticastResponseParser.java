@@ -0,0 +1,442 @@
+package com.google.android.gcm.server;
+
+import static com.google.android.gcm.server.Constants.JSON_CANONICAL_IDS;
+import static com.google.android.gcm.server.Constants.JSON_ERROR;
+import static com.google.android.gcm.server.Constants.JSON_FAILURE;
+import static com.google.android.gcm.server.Constants.JSON_MESSAGE_ID;
+import static com.google.android.gcm.server.Constants.JSON_MULTICAST_ID;
+import static com.google.android.gcm.server.Constants.JSON_RESULTS;
+import static com.google.android.gcm.server.Constants.JSON_SUCCESS;
+import static com.google.android.gcm.server.Constants.TOKEN_CANONICAL_REG_ID;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streaming parser of the JSON response to a multicast request.
+ * <p>
+ * The parser only understands the GCM response schema ({@code multicast_id},
+ * {@code success}, {@code failure}, {@code canonical_ids} and {@code results})
+ * and fills the result columns as it reads the UTF-8 bytes of the stream,
+ * without materializing the response as a {@link String}, a generic JSON
+ * tree or a {@link Result} per device. Error codes known to
+ * {@link Constants} are returned as the constants themselves rather than new
+ * strings. Unknown fields are skipped.
+ */
+final class MulticastResponseParser {
+
+    /**
+     * Thrown when the response is not valid JSON or misses a required field.
+     */
+    @SuppressWarnings("serial")
+    static final class MalformedResponseException extends IOException {
+        MalformedResponseException(String message) {
+            super(message);
+        }
+    }
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final String[] ERROR_CODES = {
+            Constants.ERROR_NOT_REGISTERED,
+            Constants.ERROR_INVALID_REGISTRATION,
+            Constants.ERROR_UNAVAILABLE,
+            Constants.ERROR_INTERNAL_SERVER_ERROR,
+            Constants.ERROR_MISMATCH_SENDER_ID,
+            Constants.ERROR_MISSING_REGISTRATION,
+            Constants.ERROR_MESSAGE_TOO_BIG,
+            Constants.ERROR_MISSING_COLLAPSE_KEY,
+            Constants.ERROR_INVALID_TTL,
+            Constants.ERROR_QUOTA_EXCEEDED,
+            Constants.ERROR_DEVICE_QUOTA_EXCEEDED
+    };
+
+    /**
+     * Parses the response, reading the stream up to its end.
+     *
+     * @throws MalformedResponseException if the response is not a valid
+     *                                    multicast response.
+     * @throws IOException                if the stream could not be read.
+     */
+    static MulticastResult parse(InputStream in) throws IOException {
+        return new MulticastResponseParser(in).parse();
+    }
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private char[] chars = new char[64];
+    private int charsLength;
+
+    private MulticastResponseParser(InputStream in) {
+        this.in = in;
+    }
+
+    private MulticastResult parse() throws IOException {
+        long success = -1, failure = -1, canonicalIds = -1, multicastId = -1;
+        boolean hasMulticastId = false;
+        ResultColumns results = null;
+        expect('{');
+        if (peek() == '}') {
+            read();
+        } else {
+            do {
+                readString();
+                expect(':');
+                if (matches(JSON_SUCCESS)) {
+                    success = readLong();
+                } else if (matches(JSON_FAILURE)) {
+                    failure = readLong();
+                } else if (matches(JSON_CANONICAL_IDS)) {
+                    canonicalIds = readLong();
+                } else if (matches(JSON_MULTICAST_ID)) {
+                    multicastId = readLong();
+                    hasMulticastId = true;
+                } else if (matches(JSON_RESULTS)) {
+                    results = readResults();
+                } else {
+                    skipValue();
+                }
+            } while (nextMember('}'));
+        }
+        if (peek() != -1) {
+            throw malformed("Unexpected content after response");
+        }
+        requireField(success >= 0, JSON_SUCCESS);
+        requireField(failure >= 0, JSON_FAILURE);
+        requireField(canonicalIds >= 0, JSON_CANONICAL_IDS);
+        requireField(hasMulticastId, JSON_MULTICAST_ID);
+        MulticastResult.Builder builder = new MulticastResult.Builder((int) success,
+                (int) failure, (int) canonicalIds, multicastId);
+        if (results != null) {
+            builder.results(results);
+        }
+        return builder.build();
+    }
+
+    private ResultColumns readResults() throws IOException {
+        if (peek() == 'n') {
+            skipValue();
+            return null;
+        }
+        ResultColumns results = new ResultColumns();
+        expect('[');
+        if (peek() == ']') {
+            read();
+            return results;
+        }
+        do {
+            readResult(results);
+        } while (nextMember(']'));
+        return results;
+    }
+
+    private void readResult(ResultColumns results) throws IOException {
+        String messageId = null, canonicalRegId = null, error = null;
+        expect('{');
+        if (peek() == '}') {
+            read();
+        } else {
+            do {
+                readString();
+                expect(':');
+                if (matches(JSON_MESSAGE_ID)) {
+                    messageId = readNullableString(false);
+                } else if (matches(TOKEN_CANONICAL_REG_ID)) {
+                    canonicalRegId = readNullableString(false);
+                } else if (matches(JSON_ERROR)) {
+                    error = readNullableString(true);
+                } else {
+                    skipValue();
+                }
+            } while (nextMember('}'));
+        }
+        results.add(messageId, canonicalRegId, error);
+    }
+
+    /**
+     * Consumes the separator after a member of an object or array.
+     *
+     * @return true if another member follows, false if {@code close} was read.
+     */
+    private boolean nextMember(char close) throws IOException {
+        int c = read();
+        if (c == ',') {
+            return true;
+        } else if (c == close) {
+            return false;
+        }
+        throw malformed("Expected ',' or '" + close + "'");
+    }
+
+    private String readNullableString(boolean errorCode) throws IOException {
+        if (peek() == 'n') {
+            skipLiteral("null");
+            return null;
+        }
+        if (peek() != '"') {
+            throw malformed("Expected a string");
+        }
+        readString();
+        if (errorCode) {
+            for (String known : ERROR_CODES) {
+                if (matches(known)) {
+                    return known;
+                }
+            }
+        }
+        return new String(chars, 0, charsLength);
+    }
+
+    private boolean matches(String value) {
+        if (value.length() != charsLength) {
+            return false;
+        }
+        for (int i = 0; i < charsLength; i++) {
+            if (chars[i] != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads a string into {@link #chars}.
+     */
+    private void readString() throws IOException {
+        expect('"');
+        charsLength = 0;
+        while (true) {
+            int c = readRaw();
+            if (c == '"') {
+                return;
+            } else if (c == '\\') {
+                c = readRaw();
+                switch (c) {
+                    case '"':
+                    case '\\':
+                    case '/':
+                        appendChar((char) c);
+                        break;
+                    case 'b':
+                        appendChar('\b');
+                        break;
+                    case 'f':
+                        appendChar('\f');
+                        break;
+                    case 'n':
+                        appendChar('\n');
+                        break;
+                    case 'r':
+                        appendChar('\r');
+                        break;
+                    case 't':
+                        appendChar('\t');
+                        break;
+                    case 'u':
+                        int value = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(readRaw(), 16);
+                            if (digit < 0) {
+                                throw malformed("Invalid unicode escape");
+                            }
+                            value = (value << 4) | digit;
+                        }
+                        appendChar((char) value);
+                        break;
+                    default:
+                        throw malformed("Invalid escape");
+                }
+            } else if (c < 0x80) {
+                appendChar((char) c);
+            } else if ((c & 0xE0) == 0xC0) {
+                appendChar((char) (((c & 0x1F) << 6) | continuation()));
+            } else if ((c & 0xF0) == 0xE0) {
+                int high = continuation();
+                appendChar((char) (((c & 0x0F) << 12) | (high << 6) | continuation()));
+            } else if ((c & 0xF8) == 0xF0) {
+                int second = continuation();
+                int third = continuation();
+                int codePoint = ((c & 0x07) << 18) | (second << 12) | (third << 6)
+                        | continuation();
+                appendChar(Character.highSurrogate(codePoint));
+                appendChar(Character.lowSurrogate(codePoint));
+            } else {
+                throw malformed("Invalid UTF-8");
+            }
+        }
+    }
+
+    private int continuation() throws IOException {
+        int c = readRaw();
+        if ((c & 0xC0) != 0x80) {
+            throw malformed("Invalid UTF-8");
+        }
+        return c & 0x3F;
+    }
+
+    private void appendChar(char c) {
+        if (charsLength == chars.length) {
+            char[] grown = new char[chars.length * 2];
+            System.arraycopy(chars, 0, grown, 0, charsLength);
+            chars = grown;
+        }
+        chars[charsLength++] = c;
+    }
+
+    private long readLong() throws IOException {
+        int c = read();
+        boolean negative = c == '-';
+        if (negative) {
+            c = readRaw();
+        }
+        if (c < '0' || c > '9') {
+            throw malformed("Expected a number");
+        }
+        long value = 0;
+        while (true) {
+            value = value * 10 + (c - '0');
+            int next = peekRaw();
+            if (next < '0' || next > '9') {
+                break;
+            }
+            c = readRaw();
+        }
+        int next = peekRaw();
+        if (next == '.' || next == 'e' || next == 'E') {
+            throw malformed("Expected an integer");
+        }
+        return negative ? -value : value;
+    }
+
+    private void skipValue() throws IOException {
+        int c = peek();
+        switch (c) {
+            case '"':
+                readString();
+                break;
+            case '{':
+                read();
+                if (peek() == '}') {
+                    read();
+                    break;
+                }
+                do {
+                    readString();
+                    expect(':');
+                    skipValue();
+                } while (nextMember('}'));
+                break;
+            case '[':
+                read();
+                if (peek() == ']') {
+                    read();
+                    break;
+                }
+                do {
+                    skipValue();
+                } while (nextMember(']'));
+                break;
+            case 't':
+                skipLiteral("true");
+                break;
+            case 'f':
+                skipLiteral("false");
+                break;
+            case 'n':
+                skipLiteral("null");
+                break;
+            default:
+                if (c != '-' && (c < '0' || c > '9')) {
+                    throw malformed("Unexpected character");
+                }
+                read();
+                while (true) {
+                    int next = peekRaw();
+                    if ((next >= '0' && next <= '9') || next == '.' || next == 'e'
+                            || next == 'E' || next == '+' || next == '-') {
+                        readRaw();
+                    } else {
+                        break;
+                    }
+                }
+        }
+    }
+
+    private void skipLiteral(String literal) throws IOException {
+        read();
+        for (int i = 1; i < literal.length(); i++) {
+            if (readRaw() != literal.charAt(i)) {
+                throw malformed("Expected " + literal);
+            }
+        }
+    }
+
+    private void expect(char expected) throws IOException {
+        if (read() != expected) {
+            throw malformed("Expected '" + expected + "'");
+        }
+    }
+
+    /**
+     * Reads the next byte that is not whitespace.
+     */
+    private int read() throws IOException {
+        int c;
+        do {
+            c = readRaw();
+        } while (isWhitespace(c));
+        return c;
+    }
+
+    /**
+     * Peeks at the next byte that is not whitespace, or -1 at the end.
+     */
+    private int peek() throws IOException {
+        while (true) {
+            int c = peekRaw();
+            if (!isWhitespace(c)) {
+                return c;
+            }
+            position++;
+        }
+    }
+
+    private int readRaw() throws IOException {
+        int c = peekRaw();
+        if (c == -1) {
+            throw malformed("Unexpected end of response");
+        }
+        position++;
+        return c;
+    }
+
+    private int peekRaw() throws IOException {
+        if (position == limit) {
+            limit = in.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position] & 0xFF;
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    private void requireField(boolean present, String field)
+            throws MalformedResponseException {
+        if (!present) {
+            throw malformed("Missing field: " + field);
+        }
+    }
+
+    private MalformedResponseException malformed(String message) {
+        return new MalformedResponseException(message);
+    }
+
+}
@@ -16,12 +16,18 @@
 package com.google.android.gcm.server;
 
 import java.io.Serializable;
-import java.util.ArrayList;
+import java.util.AbstractList;
 import java.util.Collections;
 import java.util.List;
+import java.util.RandomAccess;
 
 /**
  * Result of a GCM multicast message request .
+ * <p/>
+ * Results are stored in columnar form, so a result for a large multicast costs
+ * a few bytes per device rather than a {@link Result} and its strings; the
+ * per-device accessors such as {@link #getMessageId(int)} read the columns
+ * directly, while {@link #getResults()} creates {@link Result}s on demand.
  */
 @SuppressWarnings("serial")
 public final class MulticastResult implements Serializable {
@@ -30,12 +36,12 @@ public final class MulticastResult implements Serializable {
     private final int failure;
     private final int canonicalIds;
     private final long multicastId;
-    private final List<Result> results;
+    private final ResultColumns results;
     private final List<Long> retryMulticastIds;
 
     public static final class Builder {
 
-        private final List<Result> results = new ArrayList<Result>();
+        private ResultColumns results = new ResultColumns();
 
         // required parameters
         private final int success;
@@ -59,6 +65,14 @@ public final class MulticastResult implements Serializable {
             return this;
         }
 
+        /**
+         * Uses the given columns as the results, without copying them.
+         */
+        Builder results(ResultColumns results) {
+            this.results = results;
+            return this;
+        }
+
         public Builder retryMulticastIds(List<Long> retryMulticastIds) {
             this.retryMulticastIds = retryMulticastIds;
             return this;
@@ -74,7 +88,7 @@ public final class MulticastResult implements Serializable {
         failure = builder.failure;
         canonicalIds = builder.canonicalIds;
         multicastId = builder.multicastId;
-        results = Collections.unmodifiableList(builder.results);
+        results = builder.results;
         List<Long> tmpList = builder.retryMulticastIds;
         if (tmpList == null) {
             tmpList = Collections.emptyList();
@@ -120,9 +134,42 @@ public final class MulticastResult implements Serializable {
 
     /**
      * Gets the results of each individual message, which is immutable.
+     * <p/>
+     * Each {@link Result} is created when read from the list; for large
+     * multicasts prefer the per-device accessors.
      */
     public List<Result> getResults() {
-        return results;
+        return new ResultList();
+    }
+
+    /**
+     * Gets the number of individual results.
+     */
+    public int size() {
+        return results.size();
+    }
+
+    /**
+     * Gets the message id of the result at a given index, if the message was
+     * successfully sent.
+     */
+    public String getMessageId(int index) {
+        return results.getMessageId(index);
+    }
+
+    /**
+     * Gets the canonical registration id of the result at a given index, if
+     * any.
+     */
+    public String getCanonicalRegistrationId(int index) {
+        return results.getCanonicalRegistrationId(index);
+    }
+
+    /**
+     * Gets the error code of the result at a given index, if any.
+     */
+    public String getErrorCodeName(int index) {
+        return results.getErrorCodeName(index);
     }
 
     /**
@@ -140,10 +187,24 @@ public final class MulticastResult implements Serializable {
                 .append("success=").append(success).append(",")
                 .append("failure=").append(failure).append(",")
                 .append("canonical_ids=").append(canonicalIds).append(",");
-        if (!results.isEmpty()) {
-            builder.append("results: " + results);
+        if (results.size() > 0) {
+            builder.append("results: " + getResults());
         }
         return builder.toString();
     }
 
+    private final class ResultList extends AbstractList<Result>
+            implements RandomAccess {
+
+        @Override
+        public Result get(int index) {
+            return results.get(index);
+        }
+
+        @Override
+        public int size() {
+            return results.size();
+        }
+    }
+
 }
@@ -0,0 +1,134 @@
+package com.google.android.gcm.server;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Status of a multicast across attempts, tracked by position in the input
+ * list rather than by registration id.
+ * <p>
+ * The devices still pending are kept as an array of input positions which is
+ * compacted in place after each attempt, so bookkeeping is O(n) per attempt,
+ * allocates nothing per device and is correct when the input contains
+ * duplicate registration ids.
+ */
+final class MulticastStatus {
+
+    private final List<String> regIds;
+    private final ResultColumns results;
+    private final int[] pending;
+    private int pendingCount;
+    private final List<Long> multicastIds = new ArrayList<Long>();
+
+    MulticastStatus(List<String> regIds) {
+        this.regIds = (regIds instanceof RandomAccess ? regIds
+                : new ArrayList<String>(regIds));
+        int size = regIds.size();
+        this.results = new ResultColumns(size);
+        this.pending = new int[size];
+        for (int i = 0; i < size; i++) {
+            pending[i] = i;
+        }
+        this.pendingCount = size;
+    }
+
+    /**
+     * Gets the registration ids of all devices, in input order.
+     */
+    List<String> getRegIds() {
+        return regIds;
+    }
+
+    /**
+     * Gets a view of the registration ids still pending, in input order.
+     * <p>
+     * The view reflects the pending devices at the time it is read and must
+     * not be used across a call to {@link #update(MulticastResult)}.
+     */
+    List<String> getPendingRegIds() {
+        return new PendingRegIds();
+    }
+
+    boolean hasPending() {
+        return pendingCount > 0;
+    }
+
+    boolean hasMulticastIds() {
+        return !multicastIds.isEmpty();
+    }
+
+    /**
+     * Updates the status of the devices sent in the last attempt, keeping
+     * pending only those which should be retried.
+     *
+     * @param multicastResult result of the last multicast sent, to the devices
+     *                        of {@link #getPendingRegIds()}.
+     */
+    void update(MulticastResult multicastResult) {
+        if (multicastResult.size() != pendingCount) {
+            // should never happen, unless there is a flaw in the algorithm
+            throw new RuntimeException("Internal error: sizes do not match. " +
+                    "currentResults: " + multicastResult.getResults() +
+                    "; unsentRegIds: " + getPendingRegIds());
+        }
+        multicastIds.add(multicastResult.getMulticastId());
+        int stillPending = 0;
+        for (int i = 0; i < pendingCount; i++) {
+            int position = pending[i];
+            String error = multicastResult.getErrorCodeName(i);
+            results.set(position, multicastResult.getMessageId(i),
+                    multicastResult.getCanonicalRegistrationId(i), error);
+            if (error != null && (error.equals(Constants.ERROR_UNAVAILABLE)
+                    || error.equals(Constants.ERROR_INTERNAL_SERVER_ERROR))) {
+                pending[stillPending++] = position;
+            }
+        }
+        pendingCount = stillPending;
+    }
+
+    /**
+     * Builds the overall result of all attempts, with results in input order
+     * and the multicast ids of all but the first attempt as retry multicast
+     * ids.
+     */
+    MulticastResult build() {
+        int success = 0, failure = 0, canonicalIds = 0;
+        for (int i = 0; i < results.size(); i++) {
+            if (results.hasMessageId(i)) {
+                success++;
+                if (results.getCanonicalRegistrationId(i) != null) {
+                    canonicalIds++;
+                }
+            } else {
+                failure++;
+            }
+        }
+        List<Long> retryMulticastIds =
+                new ArrayList<Long>(multicastIds.subList(1, multicastIds.size()));
+        return new MulticastResult.Builder(success, failure, canonicalIds,
+                multicastIds.get(0))
+                .retryMulticastIds(retryMulticastIds)
+                .results(results)
+                .build();
+    }
+
+    private final class PendingRegIds extends AbstractList<String>
+            implements RandomAccess {
+
+        @Override
+        public String get(int index) {
+            if (index < 0 || index >= pendingCount) {
+                throw new IndexOutOfBoundsException("Index: " + index);
+            }
+            return regIds.get(pending[index]);
+        }
+
+        @Override
+        public int size() {
+            return pendingCount;
+        }
+    }
+
+}
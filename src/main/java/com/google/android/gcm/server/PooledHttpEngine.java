@@ -0,0 +1,223 @@
+package com.google.android.gcm.server;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * {@link HttpEngine} that keeps connections to GCM alive in a bounded pool.
+ * <p>
+ * At most {@code maxConnections} connections are leased at any time; callers
+ * beyond that wait up to the connect timeout for a connection to be released.
+ * Released connections whose response was fully read are kept alive by the
+ * JDK's keep-alive cache. That cache is shared by every
+ * {@link HttpURLConnection} in the process and holds at most
+ * {@literal http.maxConnections} (by default 5) idle connections per
+ * destination; connections released beyond that are closed. The engine does
+ * not change the property, as doing so would reconfigure all HTTP traffic of
+ * the process; set it, e.g. with {@code -Dhttp.maxConnections=50}, to at least
+ * {@code maxConnections} before the process makes its first HTTP connection
+ * for all pooled connections to be kept alive.
+ * <p>
+ * Instances of this class are thread-safe and should be shared by senders.
+ * Example:
+ * <pre><code>
+ * HttpEngine engine = new PooledHttpEngine.Builder()
+ *    .maxConnections(50)
+ *    .connectTimeout(5000)
+ *    .readTimeout(20000)
+ *    .build();
+ * Sender sender = new Sender(key, engine);
+ * </pre></code>
+ */
+public final class PooledHttpEngine implements HttpEngine {
+
+    /**
+     * System property sizing the JDK's keep-alive cache.
+     */
+    static final String PROPERTY_MAX_CONNECTIONS = "http.maxConnections";
+
+    private static final Logger logger =
+            Logger.getLogger(PooledHttpEngine.class.getName());
+
+    private final int maxConnections;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final Semaphore permits;
+    private final Set<HttpURLConnection> leased;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+
+    public static final class Builder {
+
+        private int maxConnections = 20;
+        private int connectTimeout = 10000;
+        private int readTimeout = 30000;
+
+        /**
+         * Sets the maximum number of connections leased at once.
+         */
+        public Builder maxConnections(int value) {
+            maxConnections = value;
+            return this;
+        }
+
+        /**
+         * Sets the connect timeout, in milliseconds, which also bounds the
+         * wait for a connection when all are leased. A timeout of zero is
+         * infinite, as for {@link HttpURLConnection#setConnectTimeout(int)}:
+         * the wait for a connection then blocks until one is returned.
+         */
+        public Builder connectTimeout(int value) {
+            connectTimeout = value;
+            return this;
+        }
+
+        /**
+         * Sets the read timeout, in milliseconds.
+         */
+        public Builder readTimeout(int value) {
+            readTimeout = value;
+            return this;
+        }
+
+        public PooledHttpEngine build() {
+            return new PooledHttpEngine(this);
+        }
+    }
+
+    private PooledHttpEngine(Builder builder) {
+        if (builder.maxConnections < 1 || builder.connectTimeout < 0
+                || builder.readTimeout < 0) {
+            throw new IllegalArgumentException("maxConnections must be positive " +
+                    "and timeouts cannot be negative");
+        }
+        maxConnections = builder.maxConnections;
+        connectTimeout = builder.connectTimeout;
+        readTimeout = builder.readTimeout;
+        permits = new Semaphore(maxConnections);
+        leased = Collections.newSetFromMap(
+                new ConcurrentHashMap<HttpURLConnection, Boolean>(maxConnections));
+        if (keepAliveLimit() < maxConnections) {
+            logger.info("Only " + keepAliveLimit() + " of " + maxConnections
+                    + " connections will be kept alive; set the "
+                    + PROPERTY_MAX_CONNECTIONS + " system property to raise it");
+        }
+    }
+
+    /**
+     * Gets the size of the JDK's keep-alive cache per destination.
+     */
+    private static int keepAliveLimit() {
+        try {
+            return Integer.parseInt(System.getProperty(PROPERTY_MAX_CONNECTIONS, "5"));
+        } catch (NumberFormatException e) {
+            return 5;
+        }
+    }
+
+    @Override
+    public HttpURLConnection open(String url) throws IOException {
+        try {
+            if (connectTimeout == 0) {
+                permits.acquire();
+            } else if (!permits.tryAcquire(connectTimeout,
+                    TimeUnit.MILLISECONDS)) {
+                exhausted.incrementAndGet();
+                throw new IOException("No connection available after " +
+                        connectTimeout + "ms (" + maxConnections + " leased)");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for a connection");
+        }
+        HttpURLConnection conn;
+        try {
+            conn = (HttpURLConnection) new URL(url).openConnection();
+        } catch (IOException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        conn.setConnectTimeout(connectTimeout);
+        conn.setReadTimeout(readTimeout);
+        leased.add(conn);
+        requests.incrementAndGet();
+        return conn;
+    }
+
+    @Override
+    public void release(HttpURLConnection connection, boolean reusable) {
+        if (connection == null || !leased.remove(connection)) {
+            return;
+        }
+        if (!reusable) {
+            discarded.incrementAndGet();
+            logger.finest("Discarding connection " + connection);
+            connection.disconnect();
+        }
+        permits.release();
+    }
+
+    /**
+     * Gets the maximum number of connections leased at once.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Gets the number of connections currently leased.
+     */
+    public int getLeased() {
+        return leased.size();
+    }
+
+    /**
+     * Gets the number of connections that can be leased without waiting.
+     */
+    public int getAvailable() {
+        return permits.availablePermits();
+    }
+
+    /**
+     * Gets the total number of connections leased.
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Gets the number of connections released without their response being
+     * fully read, which therefore could not be kept alive.
+     */
+    public long getDiscarded() {
+        return discarded.get();
+    }
+
+    /**
+     * Gets the number of times no connection became available within the
+     * connect timeout.
+     */
+    public long getExhausted() {
+        return exhausted.get();
+    }
+
+    @Override
+    public String toString() {
+        return "PooledHttpEngine(max=" + maxConnections + ",leased=" + getLeased()
+                + ",requests=" + getRequests() + ",discarded=" + getDiscarded()
+                + ",exhausted=" + getExhausted() + ")";
+    }
+
+}
@@ -0,0 +1,262 @@
+package com.google.android.gcm.server;
+
+import java.nio.charset.Charset;
+
+/**
+ * Buffer into which request bodies are encoded directly as UTF-8.
+ * <p>
+ * Each thread reuses its own buffer across requests, see {@link #get()}, so
+ * encoding a request allocates no intermediate {@link String}s or byte arrays.
+ * Instances are not thread-safe and must not be held once the request has
+ * been written.
+ */
+final class RequestBuffer {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * Buffers grown beyond this capacity are not retained between requests.
+     * It holds the JSON body of a full {@link Constants#MULTICAST_SIZE_LIMIT}
+     * chunk of registration ids, each of a couple hundred bytes at most, plus
+     * a {@link Constants#JSON_PAYLOAD} at its 4KB limit, so multicasts reuse
+     * the buffer rather than regrowing it for every request.
+     */
+    private static final int MAX_RETAINED_CAPACITY = 256 * 1024;
+
+    private static final Charset UTF8 = Charset.forName(Sender.UTF8);
+
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(UTF8);
+
+    private static final ThreadLocal<RequestBuffer> BUFFERS =
+            new ThreadLocal<RequestBuffer>() {
+                @Override
+                protected RequestBuffer initialValue() {
+                    return new RequestBuffer();
+                }
+            };
+
+    /**
+     * Gets the calling thread's buffer, emptied.
+     */
+    static RequestBuffer get() {
+        RequestBuffer buffer = BUFFERS.get();
+        buffer.reset();
+        return buffer;
+    }
+
+    private byte[] bytes = new byte[INITIAL_CAPACITY];
+    private int length;
+    // scratch space for the UTF-8 encoding of one code point
+    private final byte[] codePoint = new byte[4];
+    private int codePointLength;
+
+    private RequestBuffer() {
+    }
+
+    private void reset() {
+        if (bytes.length > MAX_RETAINED_CAPACITY) {
+            bytes = new byte[INITIAL_CAPACITY];
+        }
+        length = 0;
+    }
+
+    /**
+     * Gets the underlying array; only the first {@link #length()} bytes are
+     * part of the body.
+     */
+    byte[] bytes() {
+        return bytes;
+    }
+
+    int length() {
+        return length;
+    }
+
+    /**
+     * Appends an ASCII character.
+     */
+    RequestBuffer append(char c) {
+        ensureCapacity(1);
+        bytes[length++] = (byte) c;
+        return this;
+    }
+
+    /**
+     * Appends the decimal representation of a number.
+     */
+    RequestBuffer append(int value) {
+        if (value == Integer.MIN_VALUE) {
+            return appendUtf8(Integer.toString(value));
+        }
+        if (value < 0) {
+            append('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (int remaining = value / 10; remaining > 0; remaining /= 10) {
+            digits++;
+        }
+        ensureCapacity(digits);
+        for (int i = length + digits - 1; i >= length; i--) {
+            bytes[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+        return this;
+    }
+
+    /**
+     * Appends a string encoded as UTF-8.
+     */
+    RequestBuffer appendUtf8(String value) {
+        int size = value.length();
+        for (int i = 0; i < size; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                append(c);
+            } else {
+                i = encode(value, i);
+                ensureCapacity(codePointLength);
+                System.arraycopy(codePoint, 0, bytes, length, codePointLength);
+                length += codePointLength;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Appends a string encoded as {@literal application/x-www-form-urlencoded},
+     * as done by {@link java.net.URLEncoder} with UTF-8.
+     */
+    RequestBuffer appendUrlEncoded(String value) {
+        int size = value.length();
+        for (int i = 0; i < size; i++) {
+            char c = value.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                    || (c >= '0' && c <= '9') || c == '.' || c == '-'
+                    || c == '*' || c == '_') {
+                append(c);
+            } else if (c == ' ') {
+                append('+');
+            } else if (c < 0x80) {
+                ensureCapacity(3);
+                bytes[length++] = '%';
+                bytes[length++] = HEX[(c >> 4) & 0xF];
+                bytes[length++] = HEX[c & 0xF];
+            } else {
+                i = encode(value, i);
+                ensureCapacity(3 * codePointLength);
+                for (int j = 0; j < codePointLength; j++) {
+                    bytes[length++] = '%';
+                    bytes[length++] = HEX[(codePoint[j] >> 4) & 0xF];
+                    bytes[length++] = HEX[codePoint[j] & 0xF];
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Appends a string as a quoted and escaped JSON string, or {@literal null}.
+     */
+    RequestBuffer appendJsonString(String value) {
+        if (value == null) {
+            append('n').append('u').append('l').append('l');
+            return this;
+        }
+        append('"');
+        int size = value.length();
+        for (int i = 0; i < size; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    append('\\').append('"');
+                    break;
+                case '\\':
+                    append('\\').append('\\');
+                    break;
+                case '\n':
+                    append('\\').append('n');
+                    break;
+                case '\r':
+                    append('\\').append('r');
+                    break;
+                case '\t':
+                    append('\\').append('t');
+                    break;
+                case '\b':
+                    append('\\').append('b');
+                    break;
+                case '\f':
+                    append('\\').append('f');
+                    break;
+                default:
+                    if (c < 0x20) {
+                        append('\\').append('u').append('0').append('0');
+                        ensureCapacity(2);
+                        bytes[length++] = HEX[(c >> 4) & 0xF];
+                        bytes[length++] = HEX[c & 0xF];
+                    } else if (c < 0x80) {
+                        append(c);
+                    } else {
+                        i = encode(value, i);
+                        ensureCapacity(codePointLength);
+                        System.arraycopy(codePoint, 0, bytes, length, codePointLength);
+                        length += codePointLength;
+                    }
+            }
+        }
+        return append('"');
+    }
+
+    /**
+     * Encodes the non-ASCII character at {@code index}, or the surrogate pair
+     * starting there, as UTF-8 into {@link #codePoint}.
+     *
+     * @return index of the last character consumed.
+     */
+    private int encode(String value, int index) {
+        char c = value.charAt(index);
+        if (c < 0x800) {
+            codePoint[0] = (byte) (0xC0 | (c >> 6));
+            codePoint[1] = (byte) (0x80 | (c & 0x3F));
+            codePointLength = 2;
+        } else if (Character.isHighSurrogate(c) && index + 1 < value.length()
+                && Character.isLowSurrogate(value.charAt(index + 1))) {
+            int cp = Character.toCodePoint(c, value.charAt(++index));
+            codePoint[0] = (byte) (0xF0 | (cp >> 18));
+            codePoint[1] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+            codePoint[2] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            codePoint[3] = (byte) (0x80 | (cp & 0x3F));
+            codePointLength = 4;
+        } else if (Character.isSurrogate(c)) {
+            // unpaired surrogate, replaced as done by String.getBytes
+            codePoint[0] = '?';
+            codePointLength = 1;
+        } else {
+            codePoint[0] = (byte) (0xE0 | (c >> 12));
+            codePoint[1] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            codePoint[2] = (byte) (0x80 | (c & 0x3F));
+            codePointLength = 3;
+        }
+        return index;
+    }
+
+    private void ensureCapacity(int extra) {
+        int required = length + extra;
+        if (required > bytes.length) {
+            byte[] grown = new byte[Math.max(required, bytes.length * 2)];
+            System.arraycopy(bytes, 0, grown, 0, length);
+            bytes = grown;
+        }
+    }
+
+    /**
+     * Decodes the body; for logging only.
+     */
+    @Override
+    public String toString() {
+        return new String(bytes, 0, length, UTF8);
+    }
+
+}
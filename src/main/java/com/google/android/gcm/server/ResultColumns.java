@@ -0,0 +1,245 @@
+package com.google.android.gcm.server;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Columnar storage of the {@link Result}s of a multicast.
+ * <p>
+ * Rather than one {@link Result} and up to three strings per device, error
+ * codes are kept as {@link GcmError} ordinals in a byte array and message ids
+ * of the usual {@literal <digit>:<timestamp>%<16 hex digits>} form are packed
+ * into two longs. Canonical registration ids, unknown error codes and message
+ * ids of any other form are kept in sparse maps by index.
+ */
+@SuppressWarnings("serial")
+final class ResultColumns implements Serializable {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // error column values
+    private static final byte NO_ERROR = 0;
+    private static final byte OTHER_ERROR = -1;
+    // message id format column values; packed formats are 1 + the leading digit
+    private static final byte NO_MESSAGE_ID = 0;
+    private static final byte RAW_MESSAGE_ID = -1;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private byte[] errors;
+    private byte[] messageIdFormats;
+    private long[] messageIdTimestamps;
+    private long[] messageIdSuffixes;
+    private Map<Integer, String> rawMessageIds;
+    private Map<Integer, String> otherErrors;
+    private Map<Integer, String> canonicalIds;
+    private int size;
+
+    /**
+     * Creates empty columns, to be filled with {@link #add}.
+     */
+    ResultColumns() {
+        this(0);
+        ensureCapacity(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Creates columns of a given size whose entries hold no result, to be
+     * filled with {@link #set}.
+     */
+    ResultColumns(int size) {
+        errors = new byte[size];
+        messageIdFormats = new byte[size];
+        messageIdTimestamps = new long[size];
+        messageIdSuffixes = new long[size];
+        this.size = size;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void add(Result result) {
+        add(result.getMessageId(), result.getCanonicalRegistrationId(),
+                result.getErrorCodeName());
+    }
+
+    void add(String messageId, String canonicalRegistrationId, String errorCode) {
+        ensureCapacity(size + 1);
+        set(size++, messageId, canonicalRegistrationId, errorCode);
+    }
+
+    void addAll(ResultColumns other) {
+        ensureCapacity(size + other.size);
+        for (int i = 0; i < other.size; i++) {
+            set(size++, other.getMessageId(i), other.getCanonicalRegistrationId(i),
+                    other.getErrorCodeName(i));
+        }
+    }
+
+    void set(int index, String messageId, String canonicalRegistrationId,
+             String errorCode) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index);
+        }
+        setMessageId(index, messageId);
+        setError(index, errorCode);
+        canonicalIds = put(canonicalIds, index, canonicalRegistrationId);
+    }
+
+    String getMessageId(int index) {
+        checkIndex(index);
+        byte format = messageIdFormats[index];
+        if (format == NO_MESSAGE_ID) {
+            return null;
+        } else if (format == RAW_MESSAGE_ID) {
+            return rawMessageIds.get(index);
+        }
+        char[] hex = new char[16];
+        long suffix = messageIdSuffixes[index];
+        for (int i = 15; i >= 0; i--) {
+            hex[i] = HEX[(int) (suffix & 0xF)];
+            suffix >>>= 4;
+        }
+        return new StringBuilder(36).append((char) ('0' + format - 1)).append(':')
+                .append(messageIdTimestamps[index]).append('%').append(hex).toString();
+    }
+
+    boolean hasMessageId(int index) {
+        checkIndex(index);
+        return messageIdFormats[index] != NO_MESSAGE_ID;
+    }
+
+    String getCanonicalRegistrationId(int index) {
+        checkIndex(index);
+        return (canonicalIds == null ? null : canonicalIds.get(index));
+    }
+
+    String getErrorCodeName(int index) {
+        checkIndex(index);
+        byte error = errors[index];
+        if (error == NO_ERROR) {
+            return null;
+        } else if (error == OTHER_ERROR) {
+            return otherErrors.get(index);
+        }
+        return GcmError.fromOrdinal(error - 1).getCode();
+    }
+
+    Result get(int index) {
+        return new Result.Builder()
+                .messageId(getMessageId(index))
+                .canonicalRegistrationId(getCanonicalRegistrationId(index))
+                .errorCode(getErrorCodeName(index))
+                .build();
+    }
+
+    private void setError(int index, String errorCode) {
+        if (otherErrors != null) {
+            otherErrors.remove(index);
+        }
+        if (errorCode == null) {
+            errors[index] = NO_ERROR;
+            return;
+        }
+        GcmError error = GcmError.fromCode(errorCode);
+        if (error != null) {
+            errors[index] = (byte) (error.ordinal() + 1);
+        } else {
+            errors[index] = OTHER_ERROR;
+            otherErrors = put(otherErrors, index, errorCode);
+        }
+    }
+
+    private void setMessageId(int index, String messageId) {
+        if (rawMessageIds != null) {
+            rawMessageIds.remove(index);
+        }
+        if (messageId == null) {
+            messageIdFormats[index] = NO_MESSAGE_ID;
+        } else if (!pack(index, messageId)) {
+            messageIdFormats[index] = RAW_MESSAGE_ID;
+            rawMessageIds = put(rawMessageIds, index, messageId);
+        }
+    }
+
+    /**
+     * Packs a message id of the {@literal <digit>:<timestamp>%<16 hex digits>}
+     * form, which {@link #getMessageId(int)} reproduces exactly.
+     *
+     * @return false if the message id is of another form.
+     */
+    private boolean pack(int index, String messageId) {
+        int length = messageId.length();
+        int percent = length - 17;
+        // at most 18 timestamp digits always fit in a long
+        if (percent < 3 || percent > 20 || messageId.charAt(1) != ':'
+                || messageId.charAt(percent) != '%') {
+            return false;
+        }
+        char prefix = messageId.charAt(0);
+        if (prefix < '0' || prefix > '9'
+                || (messageId.charAt(2) == '0' && percent > 3)) {
+            return false;
+        }
+        long timestamp = 0;
+        for (int i = 2; i < percent; i++) {
+            char c = messageId.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+            timestamp = timestamp * 10 + (c - '0');
+        }
+        long suffix = 0;
+        for (int i = percent + 1; i < length; i++) {
+            char c = messageId.charAt(i);
+            int digit;
+            if (c >= '0' && c <= '9') {
+                digit = c - '0';
+            } else if (c >= 'a' && c <= 'f') {
+                digit = c - 'a' + 10;
+            } else {
+                return false;
+            }
+            suffix = (suffix << 4) | digit;
+        }
+        messageIdFormats[index] = (byte) (prefix - '0' + 1);
+        messageIdTimestamps[index] = timestamp;
+        messageIdSuffixes[index] = suffix;
+        return true;
+    }
+
+    private static Map<Integer, String> put(Map<Integer, String> map, int index,
+                                            String value) {
+        if (value == null) {
+            if (map != null) {
+                map.remove(index);
+            }
+            return map;
+        }
+        if (map == null) {
+            map = new HashMap<Integer, String>();
+        }
+        map.put(index, value);
+        return map;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > errors.length) {
+            int grown = Math.max(capacity, errors.length * 2);
+            errors = Arrays.copyOf(errors, grown);
+            messageIdFormats = Arrays.copyOf(messageIdFormats, grown);
+            messageIdTimestamps = Arrays.copyOf(messageIdTimestamps, grown);
+            messageIdSuffixes = Arrays.copyOf(messageIdSuffixes, grown);
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index);
+        }
+    }
+
+}
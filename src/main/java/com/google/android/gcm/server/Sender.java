@@ -16,15 +16,9 @@
 package com.google.android.gcm.server;
 
 import static com.google.android.gcm.server.Constants.GCM_SEND_ENDPOINT;
-import static com.google.android.gcm.server.Constants.JSON_CANONICAL_IDS;
-import static com.google.android.gcm.server.Constants.JSON_ERROR;
-import static com.google.android.gcm.server.Constants.JSON_FAILURE;
-import static com.google.android.gcm.server.Constants.JSON_MESSAGE_ID;
-import static com.google.android.gcm.server.Constants.JSON_MULTICAST_ID;
 import static com.google.android.gcm.server.Constants.JSON_PAYLOAD;
 import static com.google.android.gcm.server.Constants.JSON_REGISTRATION_IDS;
-import static com.google.android.gcm.server.Constants.JSON_RESULTS;
-import static com.google.android.gcm.server.Constants.JSON_SUCCESS;
+import static com.google.android.gcm.server.Constants.MULTICAST_SIZE_LIMIT;
 import static com.google.android.gcm.server.Constants.PARAM_COLLAPSE_KEY;
 import static com.google.android.gcm.server.Constants.PARAM_DELAY_WHILE_IDLE;
 import static com.google.android.gcm.server.Constants.PARAM_DRY_RUN;
@@ -36,14 +30,23 @@ import static com.google.android.gcm.server.Constants.TOKEN_CANONICAL_REG_ID;
 import static com.google.android.gcm.server.Constants.TOKEN_ERROR;
 import static com.google.android.gcm.server.Constants.TOKEN_MESSAGE_ID;
 
+import com.dashlabs.hermes.AdaptiveRateLimiter;
+import com.dashlabs.hermes.CircuitBreaker;
+import com.dashlabs.hermes.feedback.FeedbackBatcher;
+import com.dashlabs.hermes.metrics.SendMetrics;
+import com.dashlabs.hermes.metrics.SendTracing;
+import com.google.android.gcm.server.MulticastResponseParser.MalformedResponseException;
 import com.google.android.gcm.server.Result.Builder;
-
-import org.json.simple.JSONObject;
-import org.json.simple.JSONValue;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+import io.opencensus.common.Scope;
+import io.opencensus.trace.Span;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
@@ -51,13 +54,25 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -78,19 +93,163 @@ public class Sender {
      */
     protected static final int MAX_BACKOFF_DELAY = 1024000;
 
+    /**
+     * HTTP header GCM may include on 200 and 5xx responses to request a minimum
+     * delay before retrying.
+     */
+    protected static final String HEADER_RETRY_AFTER = "Retry-After";
+
+    /**
+     * Number of threads of the executor shared by senders which were not given
+     * their own executor for asynchronous sends.
+     */
+    protected static final int DEFAULT_ASYNC_THREADS = 8;
+
+    /**
+     * Runs listeners on the thread completing the future.
+     */
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
     protected final Random random = new Random();
     protected static final Logger logger =
             Logger.getLogger(Sender.class.getName());
 
     private final String key;
 
+    private final ScheduledExecutorService executor;
+
+    private final HttpEngine engine;
+
+    private final FeedbackBatcher feedback;
+
+    private final CircuitBreaker breaker;
+
+    private final AdaptiveRateLimiter limiter;
+
     /**
      * Default constructor.
      *
      * @param key API key obtained through the Google API Console.
      */
     public Sender(String key) {
+        this(key, null, null);
+    }
+
+    /**
+     * Constructor for senders that obtain their connections from an engine,
+     * such as a {@link PooledHttpEngine}.
+     *
+     * @param key    API key obtained through the Google API Console.
+     * @param engine engine supplying the connections.
+     */
+    public Sender(String key, HttpEngine engine) {
+        this(key, null, nonNull(engine));
+    }
+
+    /**
+     * Constructor for senders that run asynchronous sends on their own executor.
+     *
+     * @param key      API key obtained through the Google API Console.
+     * @param executor executor on which asynchronous attempts are made and
+     *                 retries are scheduled, or {@literal null} to use an
+     *                 executor shared by all senders.
+     */
+    public Sender(String key, ScheduledExecutorService executor) {
+        this(key, executor, null);
+    }
+
+    /**
+     * Constructor for senders that run asynchronous sends on their own executor
+     * and obtain their connections from an engine.
+     *
+     * @param key      API key obtained through the Google API Console.
+     * @param executor executor on which asynchronous attempts are made and
+     *                 retries are scheduled, or {@literal null} to use an
+     *                 executor shared by all senders.
+     * @param engine   engine supplying the connections, or {@literal null} to
+     *                 open a new {@link HttpURLConnection} per request.
+     */
+    public Sender(String key, ScheduledExecutorService executor,
+                  HttpEngine engine) {
+        this(key, executor, engine, null);
+    }
+
+    /**
+     * Constructor for senders that also report registration ids found to be
+     * invalid, or to have a canonical replacement, to a feedback batcher.
+     *
+     * @param key      API key obtained through the Google API Console.
+     * @param executor executor on which asynchronous attempts are made and
+     *                 retries are scheduled, or {@literal null} to use an
+     *                 executor shared by all senders.
+     * @param engine   engine supplying the connections, or {@literal null} to
+     *                 open a new {@link HttpURLConnection} per request.
+     * @param feedback batcher to which the final result of each device is
+     *                 reported, or {@literal null} to not report results.
+     */
+    public Sender(String key, ScheduledExecutorService executor,
+                  HttpEngine engine, FeedbackBatcher feedback) {
+        this(key, executor, engine, feedback, null);
+    }
+
+    /**
+     * Constructor for senders that also fail fast while GCM is failing.
+     *
+     * @param key      API key obtained through the Google API Console.
+     * @param executor executor on which asynchronous attempts are made and
+     *                 retries are scheduled, or {@literal null} to use an
+     *                 executor shared by all senders.
+     * @param engine   engine supplying the connections, or {@literal null} to
+     *                 open a new {@link HttpURLConnection} per request.
+     * @param feedback batcher to which the final result of each device is
+     *                 reported, or {@literal null} to not report results.
+     * @param breaker  circuit breaker through which every request is made,
+     *                 shared by all senders of the same key, or
+     *                 {@literal null} for none. While it is open, requests
+     *                 fail with a {@link CircuitOpenException} and are not
+     *                 retried.
+     */
+    public Sender(String key, ScheduledExecutorService executor,
+                  HttpEngine engine, FeedbackBatcher feedback,
+                  CircuitBreaker breaker) {
+        this(key, executor, engine, feedback, breaker, null);
+    }
+
+    /**
+     * Constructor for senders that also keep under the rate GCM allows.
+     *
+     * @param key      API key obtained through the Google API Console.
+     * @param executor executor on which asynchronous attempts are made and
+     *                 retries are scheduled, or {@literal null} to use an
+     *                 executor shared by all senders.
+     * @param engine   engine supplying the connections, or {@literal null} to
+     *                 open a new {@link HttpURLConnection} per request.
+     * @param feedback batcher to which the final result of each device is
+     *                 reported, or {@literal null} to not report results.
+     * @param breaker  circuit breaker through which every request is made,
+     *                 or {@literal null} for none.
+     * @param limiter  rate limiter from which every request, including
+     *                 retries, takes a permit, blocking until it is free;
+     *                 shared by all senders of the same key, or
+     *                 {@literal null} for none. Results with a
+     *                 {@link Constants#ERROR_QUOTA_EXCEEDED} or
+     *                 {@link Constants#ERROR_DEVICE_QUOTA_EXCEEDED} error
+     *                 lower its rate.
+     */
+    public Sender(String key, ScheduledExecutorService executor,
+                  HttpEngine engine, FeedbackBatcher feedback,
+                  CircuitBreaker breaker, AdaptiveRateLimiter limiter) {
         this.key = nonNull(key);
+        this.executor = executor;
+        this.engine = engine;
+        this.feedback = feedback;
+        this.breaker = breaker;
+        this.limiter = limiter;
     }
 
     /**
@@ -99,7 +258,8 @@ public class Sender {
      * <p/>
      * <strong>Note: </strong> this method uses exponential back-off to retry in
      * case of service unavailability and hence could block the calling thread
-     * for many seconds.
+     * for many seconds; see {@link #sendAsync(Message, String, int)} for a
+     * non-blocking alternative.
      *
      * @param message        message to be sent, including the device's registration id.
      * @param registrationId device where the message will be sent.
@@ -111,6 +271,25 @@ public class Sender {
      */
     public Result send(Message message, String registrationId, int retries)
             throws IOException {
+        Span span = SendTracing.startSend(SendTracing.SENDER_SEND);
+        Scope scope = SendTracing.withSpan(span);
+        Throwable failure = null;
+        try {
+            return sendWithRetries(message, registrationId, retries);
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        } catch (RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            scope.close();
+            SendTracing.end(span, failure);
+        }
+    }
+
+    private Result sendWithRetries(Message message, String registrationId,
+                                   int retries) throws IOException {
         int attempt = 0;
         Result result = null;
         int backoff = BACKOFF_INITIAL_DELAY;
@@ -121,20 +300,31 @@ public class Sender {
                 logger.fine("Attempt #" + attempt + " to send message " +
                         message + " to regIds " + registrationId);
             }
-            result = sendNoRetry(message, registrationId);
+            RetryAfter retryAfter = new RetryAfter();
+            Span span = SendTracing.startAttempt(SendTracing.SENDER_ATTEMPT,
+                    SendTracing.currentSpan(), attempt);
+            Scope scope = SendTracing.withSpan(span);
+            try {
+                result = sendNoRetry(message, registrationId, retryAfter);
+            } finally {
+                scope.close();
+                span.end();
+            }
             tryAgain = result == null && attempt <= retries;
             if (tryAgain) {
-                int sleepTime = backoff / 2 + random.nextInt(backoff);
-                sleep(sleepTime);
+                sleep(getSleepTime(backoff, retryAfter));
                 if (2 * backoff < MAX_BACKOFF_DELAY) {
                     backoff *= 2;
                 }
             }
         } while (tryAgain);
+        recordRetries(attempt);
         if (result == null) {
             throw new IOException("Could not send message after " + attempt +
                     " attempts");
         }
+        report(registrationId, result.getCanonicalRegistrationId(),
+                result.getErrorCodeName());
         return result;
     }
 
@@ -149,56 +339,76 @@ public class Sender {
      */
     public Result sendNoRetry(Message message, String registrationId)
             throws IOException {
-        StringBuilder body = newBody(PARAM_REGISTRATION_ID, registrationId);
-        Boolean delayWhileIdle = message.isDelayWhileIdle();
-        if (delayWhileIdle != null) {
-            addParameter(body, PARAM_DELAY_WHILE_IDLE, delayWhileIdle ? "1" : "0");
-        }
-        Boolean dryRun = message.isDryRun();
-        if (dryRun != null) {
-            addParameter(body, PARAM_DRY_RUN, dryRun ? "true" : "false"); // see https://code.google.com/p/gcm/issues/detail?id=21
-        }
-        String collapseKey = message.getCollapseKey();
-        if (collapseKey != null) {
-            addParameter(body, PARAM_COLLAPSE_KEY, collapseKey);
-        }
-        String restrictedPackageName = message.getRestrictedPackageName();
-        if (restrictedPackageName != null) {
-            addParameter(body, PARAM_RESTRICTED_PACKAGE_NAME, restrictedPackageName);
-        }
-        Integer timeToLive = message.getTimeToLive();
-        if (timeToLive != null) {
-            addParameter(body, PARAM_TIME_TO_LIVE, Integer.toString(timeToLive));
+        return sendNoRetry(message, registrationId, null);
+    }
+
+    private Result sendNoRetry(Message message, String registrationId,
+                               RetryAfter retryAfter) throws IOException {
+        long start = System.nanoTime();
+        RequestStatus requestStatus = new RequestStatus();
+        Result result = null;
+        RequestBuffer body;
+        Span span = SendTracing.startChild(SendTracing.SENDER_SERIALIZE);
+        try {
+            body = encodePlainText(message, registrationId);
+        } finally {
+            span.end();
         }
-        for (Entry<String, String> entry : message.getData().entrySet()) {
-            String key = entry.getKey();
-            String value = entry.getValue();
-            if (key == null || value == null) {
-                logger.warning("Ignoring payload entry thas has null: " + entry);
-            } else {
-                key = PARAM_PAYLOAD_PREFIX + key;
-                addParameter(body, key, URLEncoder.encode(value, UTF8));
+        span = SendTracing.startChild(SendTracing.SENDER_NETWORK);
+        try {
+            result = sendPlainText(body, retryAfter, requestStatus);
+            return result;
+        } finally {
+            span.end();
+            if (requestStatus.made) {
+                String error = (result != null ? result.getErrorCodeName()
+                        : requestStatus.error());
+                requestStatus.record(start, error, 1);
+                if (isQuotaExceeded(error)) {
+                    throttled();
+                }
             }
         }
-        String requestBody = body.toString();
-        logger.finest("Request body: " + requestBody);
-        HttpURLConnection conn;
+    }
+
+    private Result sendPlainText(RequestBuffer body, RetryAfter retryAfter,
+                                 RequestStatus requestStatus) throws IOException {
+        if (logger.isLoggable(Level.FINEST)) {
+            logger.finest("Request body: " + body);
+        }
+        checkCircuit();
+        acquirePermit();
+        requestStatus.made = true;
+        HttpURLConnection conn = null;
         int status;
         try {
-            conn = post(GCM_SEND_ENDPOINT, requestBody);
+            conn = post(GCM_SEND_ENDPOINT,
+                    "application/x-www-form-urlencoded;charset=UTF-8",
+                    body.bytes(), body.length());
             status = conn.getResponseCode();
+            requestStatus.httpStatus = status;
         } catch (IOException e) {
             logger.log(Level.FINE, "IOException posting to GCM", e);
+            recordOutcome(false);
+            release(conn, false);
             return null;
         }
+        recordOutcome(status / 100 != 5);
         if (status / 100 == 5) {
             logger.fine("GCM service is unavailable (status " + status + ")");
+            setRetryAfter(retryAfter, conn);
+            try {
+                // drain the response so the connection can be kept alive
+                getAndRelease(conn, true);
+            } catch (IOException e) {
+                logger.log(Level.FINEST, "Exception reading response: ", e);
+            }
             return null;
         }
         String responseBody;
         if (status != 200) {
             try {
-                responseBody = getAndClose(conn.getErrorStream());
+                responseBody = getAndRelease(conn, true);
                 logger.finest("Plain post error response: " + responseBody);
             } catch (IOException e) {
                 // ignore the exception since it will thrown an InvalidRequestException
@@ -209,7 +419,7 @@ public class Sender {
             throw new InvalidRequestException(status, responseBody);
         } else {
             try {
-                responseBody = getAndClose(conn.getInputStream());
+                responseBody = getAndRelease(conn, false);
             } catch (IOException e) {
                 logger.log(Level.WARNING, "Exception reading response: ", e);
                 // return null so it can retry
@@ -256,7 +466,8 @@ public class Sender {
      * <p/>
      * <strong>Note: </strong> this method uses exponential back-off to retry in
      * case of service unavailability and hence could block the calling thread
-     * for many seconds.
+     * for many seconds; see {@link #sendAsync(Message, List, int)} for a
+     * non-blocking alternative.
      *
      * @param message message to be sent.
      * @param regIds  registration id of the devices that will receive
@@ -270,104 +481,787 @@ public class Sender {
      */
     public MulticastResult send(Message message, List<String> regIds, int retries)
             throws IOException {
+        Span span = SendTracing.startSend(SendTracing.SENDER_SEND);
+        Scope scope = SendTracing.withSpan(span);
+        Throwable failure = null;
+        try {
+            return sendWithRetries(message, regIds, retries);
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        } catch (RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            scope.close();
+            SendTracing.end(span, failure);
+        }
+    }
+
+    private MulticastResult sendWithRetries(Message message, List<String> regIds,
+                                            int retries) throws IOException {
         int attempt = 0;
-        MulticastResult multicastResult;
         int backoff = BACKOFF_INITIAL_DELAY;
-        // Map of results by registration id, it will be updated after each attempt
-        // to send the messages
-        Map<String, Result> results = new HashMap<String, Result>();
-        List<String> unsentRegIds = new ArrayList<String>(regIds);
+        MulticastAttempts attempts = new MulticastAttempts(regIds);
         boolean tryAgain;
-        List<Long> multicastIds = new ArrayList<Long>();
         do {
-            multicastResult = null;
             attempt++;
+            RetryAfter retryAfter = new RetryAfter();
+            Span span = SendTracing.startAttempt(SendTracing.SENDER_ATTEMPT,
+                    SendTracing.currentSpan(), attempt);
+            Scope scope = SendTracing.withSpan(span);
+            boolean done;
+            try {
+                done = attempts.attempt(message, attempt, retryAfter);
+            } finally {
+                scope.close();
+                span.end();
+            }
+            tryAgain = !done && attempt <= retries;
+            if (tryAgain) {
+                sleep(getSleepTime(backoff, retryAfter));
+                if (2 * backoff < MAX_BACKOFF_DELAY) {
+                    backoff *= 2;
+                }
+            }
+        } while (tryAgain);
+        recordRetries(attempt);
+        return attempts.build(attempt);
+    }
+
+    /**
+     * Sends a message to any number of devices, splitting the registration ids
+     * into chunks of at most {@link Constants#MULTICAST_SIZE_LIMIT} which are
+     * posted in parallel, each retrying in case of unavailability.
+     * <p/>
+     * Chunks are sent as {@link #sendAsync(Message, List, int)} does, with at
+     * most {@code concurrency} chunks in flight; the calling thread blocks
+     * until all chunks completed. The posts of the chunks are made on
+     * {@code concurrency} threads started for the call, so that neither is
+     * the concurrency capped by the size of this sender's executor nor are
+     * its retry timers delayed by long posts; the executor only times the
+     * retries. Devices of a chunk for which every attempt
+     * failed are reported with a {@link Constants#ERROR_UNAVAILABLE} error.
+     *
+     * @param message     message to be sent.
+     * @param regIds      registration id of the devices that will receive
+     *                    the message.
+     * @param retries     number of retries of each chunk in case of service
+     *                    unavailability errors.
+     * @param concurrency maximum number of chunks in flight.
+     * @return combined result of all chunks, with results in the same order as
+     *         {@code regIds} and the multicast ids of all but the first request
+     *         as retry multicast ids.
+     * @throws IllegalArgumentException if registrationIds is {@literal null} or
+     *                                  empty, or concurrency is not positive.
+     * @throws IOException              if no chunk could be sent.
+     */
+    public MulticastResult send(Message message, List<String> regIds, int retries,
+                                int concurrency) throws IOException {
+        return sendChunks(message, regIds, retries, concurrency, null);
+    }
+
+    /**
+     * Sends a message to any number of devices as
+     * {@link #send(Message, List, int, int)} does, but streams the result of
+     * each chunk to a listener as soon as the chunk completes instead of
+     * holding all results until the end.
+     * <p/>
+     * Only the counts and multicast ids of each chunk are retained, so memory
+     * use does not grow with the number of devices.
+     *
+     * @param message     message to be sent.
+     * @param regIds      registration id of the devices that will receive
+     *                    the message.
+     * @param retries     number of retries of each chunk in case of service
+     *                    unavailability errors.
+     * @param concurrency maximum number of chunks in flight.
+     * @param listener    listener notified of the outcome of each chunk.
+     * @return combined counts and multicast ids of all chunks, without
+     *         individual results.
+     * @throws IllegalArgumentException if registrationIds is {@literal null} or
+     *                                  empty, or concurrency is not positive.
+     * @throws IOException              if no chunk could be sent.
+     */
+    public MulticastResult send(Message message, List<String> regIds, int retries,
+                                int concurrency, MulticastListener listener)
+            throws IOException {
+        return sendChunks(message, regIds, retries, concurrency, nonNull(listener));
+    }
+
+    private MulticastResult sendChunks(Message message, List<String> regIds,
+                                       int retries, int concurrency,
+                                       MulticastListener listener)
+            throws IOException {
+        if (nonNull(regIds).isEmpty()) {
+            throw new IllegalArgumentException("registrationIds cannot be empty");
+        }
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be positive");
+        }
+        int size = regIds.size();
+        int chunkCount = (size + MULTICAST_SIZE_LIMIT - 1) / MULTICAST_SIZE_LIMIT;
+        final MulticastChunks chunks = new MulticastChunks(chunkCount, listener);
+        // only chunks in flight are held, so that they can be cancelled; a
+        // completed chunk is dropped along with its results
+        final Set<ApiFuture<MulticastResult>> pending = Collections.newSetFromMap(
+                new ConcurrentHashMap<ApiFuture<MulticastResult>, Boolean>());
+        final Semaphore inFlight = new Semaphore(concurrency);
+        ExecutorService posts = Executors.newFixedThreadPool(
+                Math.min(concurrency, chunkCount), daemonThreads("gcm-chunk-"));
+        Span span = SendTracing.startSend(SendTracing.SENDER_CHUNKS);
+        Scope scope = SendTracing.withSpan(span);
+        try {
+            for (int i = 0; i < chunkCount; i++) {
+                final int index = i;
+                final int from = i * MULTICAST_SIZE_LIMIT;
+                final List<String> chunkIds = regIds.subList(from,
+                        Math.min(from + MULTICAST_SIZE_LIMIT, size));
+                inFlight.acquire();
+                final ApiFuture<MulticastResult> future =
+                        sendAsync(message, chunkIds, retries, posts);
+                pending.add(future);
+                future.addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            pending.remove(future);
+                            chunks.complete(index, from, chunkIds, future);
+                        } finally {
+                            inFlight.release();
+                        }
+                    }
+                }, DIRECT_EXECUTOR);
+            }
+            // wait for all chunks to complete
+            inFlight.acquire(concurrency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (ApiFuture<MulticastResult> future : pending) {
+                future.cancel(false);
+            }
+            throw new IOException("Interrupted while sending multicast chunks");
+        } finally {
+            posts.shutdown();
+            scope.close();
+            span.end();
+        }
+        return chunks.combine(size);
+    }
+
+    /**
+     * Results of the chunks of a multicast, each recorded by the thread which
+     * completed the chunk and combined once all chunks completed.
+     * <p/>
+     * When streaming to a listener, only a summary of each chunk is kept.
+     */
+    private static final class MulticastChunks {
+
+        private final MulticastListener listener;
+        private final MulticastResult[] results;
+        private final Throwable[] failures;
+
+        private MulticastChunks(int chunkCount, MulticastListener listener) {
+            this.listener = listener;
+            this.results = new MulticastResult[chunkCount];
+            this.failures = new Throwable[chunkCount];
+        }
+
+        private void complete(int index, int offset, List<String> regIds,
+                              ApiFuture<MulticastResult> future) {
+            MulticastResult result;
+            try {
+                result = future.get();
+            } catch (ExecutionException e) {
+                failed(index, offset, regIds, e.getCause());
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failed(index, offset, regIds, e);
+                return;
+            } catch (RuntimeException e) {
+                // cancelled
+                failed(index, offset, regIds, e);
+                return;
+            }
+            if (listener == null) {
+                results[index] = result;
+                return;
+            }
+            try {
+                listener.onChunk(offset, regIds, result);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Multicast listener failed", e);
+            }
+            results[index] = new MulticastResult.Builder(result.getSuccess(),
+                    result.getFailure(), result.getCanonicalIds(),
+                    result.getMulticastId())
+                    .retryMulticastIds(result.getRetryMulticastIds())
+                    .build();
+        }
+
+        private void failed(int index, int offset, List<String> regIds,
+                            Throwable cause) {
+            logger.log(Level.FINE, "Could not send multicast chunk #" + index,
+                    cause);
+            failures[index] = cause;
+            if (listener != null) {
+                try {
+                    listener.onChunkFailure(offset, regIds, cause);
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Multicast listener failed", e);
+                }
+            }
+        }
+
+        /**
+         * Combines the results of all chunks, in order, into one result.
+         */
+        private MulticastResult combine(int size) throws IOException {
+            int success = 0, failure = 0, canonicalIds = 0;
+            List<Long> multicastIds = new ArrayList<Long>(results.length);
+            IOException lastFailure = null;
+            for (int i = 0; i < results.length; i++) {
+                MulticastResult chunk = results[i];
+                if (chunk == null) {
+                    int chunkSize = Math.min(MULTICAST_SIZE_LIMIT,
+                            size - i * MULTICAST_SIZE_LIMIT);
+                    lastFailure = new IOException("Could not send multicast chunk #"
+                            + i + ": " + failures[i]);
+                    failure += chunkSize;
+                    continue;
+                }
+                success += chunk.getSuccess();
+                failure += chunk.getFailure();
+                canonicalIds += chunk.getCanonicalIds();
+                multicastIds.add(chunk.getMulticastId());
+                multicastIds.addAll(chunk.getRetryMulticastIds());
+            }
+            if (multicastIds.isEmpty()) {
+                throw lastFailure;
+            }
+            long multicastId = multicastIds.remove(0);
+            MulticastResult.Builder builder = new MulticastResult.Builder(success,
+                    failure, canonicalIds, multicastId).retryMulticastIds(multicastIds);
+            if (listener != null) {
+                return builder.build();
+            }
+            ResultColumns columns = new ResultColumns(size);
+            for (int i = 0; i < results.length; i++) {
+                MulticastResult chunk = results[i];
+                int offset = i * MULTICAST_SIZE_LIMIT;
+                if (chunk == null) {
+                    int chunkSize = Math.min(MULTICAST_SIZE_LIMIT, size - offset);
+                    for (int j = 0; j < chunkSize; j++) {
+                        columns.set(offset + j, null, null,
+                                Constants.ERROR_UNAVAILABLE);
+                    }
+                    continue;
+                }
+                for (int j = 0; j < chunk.size(); j++) {
+                    columns.set(offset + j, chunk.getMessageId(j),
+                            chunk.getCanonicalRegistrationId(j),
+                            chunk.getErrorCodeName(j));
+                }
+            }
+            return builder.results(columns).build();
+        }
+    }
+
+    /**
+     * Sends a message to one device asynchronously, retrying in case of
+     * unavailability.
+     * <p/>
+     * Attempts are made on this sender's executor and retries are scheduled
+     * with exponential back-off, honouring any {@literal Retry-After} header
+     * returned by GCM, so no thread is blocked between attempts.
+     *
+     * @param message        message to be sent, including the device's registration id.
+     * @param registrationId device where the message will be sent.
+     * @param retries        number of retries in case of service unavailability errors.
+     * @return future result of the request, failed with the same exceptions as
+     *         {@link #send(Message, String, int)}.
+     */
+    public ApiFuture<Result> sendAsync(final Message message,
+                                       final String registrationId, int retries) {
+        nonNull(registrationId);
+        AsyncRetry<Result> retry = new AsyncRetry<Result>(retries) {
+            @Override boolean attempt(int attempt, RetryAfter retryAfter)
+                    throws IOException {
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.fine("Attempt #" + attempt + " to send message " +
+                            message + " to regIds " + registrationId);
+                }
+                Result result = sendNoRetry(message, registrationId, retryAfter);
+                if (result == null) {
+                    return false;
+                }
+                report(registrationId, result.getCanonicalRegistrationId(),
+                        result.getErrorCodeName());
+                future.set(result);
+                return true;
+            }
+            @Override void finish(int attempt) {
+                future.setException(new IOException("Could not send message after "
+                        + attempt + " attempts"));
+            }
+        };
+        return retry.start();
+    }
+
+    /**
+     * Sends a message to many devices asynchronously, retrying in case of
+     * unavailability. See {@link #sendAsync(Message, String, int)} for more
+     * info.
+     *
+     * @param message message to be sent.
+     * @param regIds  registration id of the devices that will receive
+     *                the message.
+     * @param retries number of retries in case of service unavailability errors.
+     * @return future combined result of all requests made, failed with the same
+     *         exceptions as {@link #send(Message, List, int)}.
+     */
+    public ApiFuture<MulticastResult> sendAsync(Message message,
+                                                List<String> regIds, int retries) {
+        return sendAsync(message, regIds, retries, null);
+    }
+
+    /**
+     * @param posts executor on which attempts are made, or {@literal null} for
+     *              this sender's executor.
+     */
+    private ApiFuture<MulticastResult> sendAsync(final Message message,
+                                                 List<String> regIds, int retries,
+                                                 Executor posts) {
+        final MulticastAttempts attempts = new MulticastAttempts(nonNull(regIds));
+        AsyncRetry<MulticastResult> retry = new AsyncRetry<MulticastResult>(retries, posts) {
+            @Override boolean attempt(int attempt, RetryAfter retryAfter) {
+                if (!attempts.attempt(message, attempt, retryAfter)) {
+                    return false;
+                }
+                finish(attempt);
+                return true;
+            }
+            @Override void finish(int attempt) {
+                try {
+                    future.set(attempts.build(attempt));
+                } catch (IOException e) {
+                    future.setException(e);
+                }
+            }
+        };
+        return retry.start();
+    }
+
+    /**
+     * Makes the attempts of a multicast, tracking their status.
+     */
+    private final class MulticastAttempts {
+
+        private final MulticastStatus status;
+        private CircuitOpenException circuitOpen;
+
+        private MulticastAttempts(List<String> regIds) {
+            this.status = new MulticastStatus(regIds);
+        }
+
+        /**
+         * Sends the message to the devices which are still pending.
+         *
+         * @return true if no device is pending, or the circuit breaker is
+         *         open, and no retry is needed.
+         */
+        private boolean attempt(Message message, int attempt,
+                                RetryAfter retryAfter) {
+            MulticastResult multicastResult = null;
+            List<String> unsentRegIds = status.getPendingRegIds();
             if (logger.isLoggable(Level.FINE)) {
                 logger.fine("Attempt #" + attempt + " to send message " +
                         message + " to regIds " + unsentRegIds);
             }
             try {
-                multicastResult = sendNoRetry(message, unsentRegIds);
+                multicastResult = sendNoRetry(message, unsentRegIds, retryAfter);
+            } catch (CircuitOpenException e) {
+                // devices still pending keep the result of their last attempt
+                circuitOpen = e;
+                return true;
             } catch (IOException e) {
                 // no need for WARNING since exception might be already logged
                 logger.log(Level.FINEST, "IOException on attempt " + attempt, e);
             }
-            if (multicastResult != null) {
-                long multicastId = multicastResult.getMulticastId();
-                logger.fine("multicast_id on attempt # " + attempt + ": " +
-                        multicastId);
-                multicastIds.add(multicastId);
-                unsentRegIds = updateStatus(unsentRegIds, results, multicastResult);
-                tryAgain = !unsentRegIds.isEmpty() && attempt <= retries;
-            } else {
-                tryAgain = attempt <= retries;
+            if (multicastResult == null) {
+                return false;
             }
-            if (tryAgain) {
-                int sleepTime = backoff / 2 + random.nextInt(backoff);
-                sleep(sleepTime);
+            long multicastId = multicastResult.getMulticastId();
+            logger.fine("multicast_id on attempt # " + attempt + ": " +
+                    multicastId);
+            status.update(multicastResult);
+            return !status.hasPending();
+        }
+
+        /**
+         * @return the overall result of all attempts.
+         * @throws IOException if no attempt succeeded.
+         */
+        private MulticastResult build(int attempt) throws IOException {
+            if (!status.hasMulticastIds()) {
+                if (circuitOpen != null) {
+                    throw circuitOpen;
+                }
+                // all JSON posts failed due to GCM unavailability
+                throw new IOException("Could not post JSON requests to GCM after "
+                        + attempt + " attempts");
+            }
+            MulticastResult result = status.build();
+            if (feedback != null) {
+                List<String> regIds = status.getRegIds();
+                for (int i = 0; i < regIds.size(); i++) {
+                    report(regIds.get(i), result.getCanonicalRegistrationId(i),
+                            result.getErrorCodeName(i));
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * @throws CircuitOpenException if the circuit breaker, if any, does not
+     *                              allow a request.
+     */
+    private void checkCircuit() throws CircuitOpenException {
+        if (breaker != null && !breaker.allowRequest()) {
+            throw new CircuitOpenException();
+        }
+    }
+
+    /**
+     * Records the outcome of a request allowed by {@link #checkCircuit()}.
+     *
+     * @param available whether GCM answered with a status other than 5xx.
+     */
+    private void recordOutcome(boolean available) {
+        if (breaker == null) {
+            return;
+        }
+        if (available) {
+            breaker.onSuccess();
+        } else {
+            breaker.onFailure();
+        }
+    }
+
+    /**
+     * Takes a permit from the rate limiter, if any, waiting until it is free.
+     *
+     * @throws IOException if interrupted while waiting.
+     */
+    private void acquirePermit() throws IOException {
+        if (limiter == null) {
+            return;
+        }
+        try {
+            limiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for a send permit");
+        }
+    }
+
+    private static boolean isQuotaExceeded(String error) {
+        return Constants.ERROR_QUOTA_EXCEEDED.equals(error)
+                || Constants.ERROR_DEVICE_QUOTA_EXCEEDED.equals(error);
+    }
+
+    /**
+     * Reports a quota error to the rate limiter, if any.
+     */
+    private void throttled() {
+        if (limiter != null) {
+            limiter.throttled();
+        }
+    }
+
+    /**
+     * Reports the final result of a device to the feedback batcher, if any.
+     */
+    private void report(String regId, String canonicalRegId, String error) {
+        if (feedback == null) {
+            return;
+        }
+        if (canonicalRegId != null) {
+            feedback.canonical(regId, canonicalRegId);
+        } else if (Constants.ERROR_NOT_REGISTERED.equals(error)
+                || Constants.ERROR_INVALID_REGISTRATION.equals(error)) {
+            feedback.invalid(regId);
+        }
+    }
+
+    /**
+     * Runs attempts of an asynchronous send on this sender's executor,
+     * scheduling retries with exponential back-off.
+     */
+    private abstract class AsyncRetry<T> implements Runnable {
+
+        protected final SettableApiFuture<T> future = SettableApiFuture.create();
+        private final int retries;
+        private final Executor posts;
+        private int attempt;
+        private int backoff = BACKOFF_INITIAL_DELAY;
+        private Span span;
+        private Span backoffSpan;
+
+        private AsyncRetry(int retries) {
+            this(retries, null);
+        }
+
+        /**
+         * @param posts executor on which attempts are made, or {@literal null}
+         *              for this sender's executor, which then also times the
+         *              retries.
+         */
+        private AsyncRetry(int retries, Executor posts) {
+            this.retries = retries;
+            this.posts = posts;
+        }
+
+        private ApiFuture<T> start() {
+            span = SendTracing.startSend(SendTracing.SENDER_SEND);
+            ApiFutures.addCallback(future, new ApiFutureCallback<T>() {
+                @Override
+                public void onSuccess(T result) {
+                    complete(null);
+                }
+                @Override
+                public void onFailure(Throwable t) {
+                    complete(t);
+                }
+                private void complete(Throwable failure) {
+                    recordRetries(attempt);
+                    if (backoffSpan != null) {
+                        backoffSpan.end();
+                    }
+                    SendTracing.end(span, failure);
+                }
+            });
+            schedule(0);
+            return future;
+        }
+
+        @Override
+        public void run() {
+            if (backoffSpan != null) {
+                backoffSpan.end();
+                backoffSpan = null;
+            }
+            if (future.isDone()) {
+                return;
+            }
+            attempt++;
+            RetryAfter retryAfter = new RetryAfter();
+            Span attemptSpan = SendTracing.startAttempt(SendTracing.SENDER_ATTEMPT,
+                    span, attempt);
+            Scope scope = SendTracing.withSpan(attemptSpan);
+            try {
+                if (attempt(attempt, retryAfter)) {
+                    return;
+                }
+            } catch (IOException e) {
+                future.setException(e);
+                return;
+            } catch (RuntimeException e) {
+                future.setException(e);
+                return;
+            } finally {
+                scope.close();
+                attemptSpan.end();
+            }
+            if (attempt <= retries) {
+                long sleepTime = getSleepTime(backoff, retryAfter);
                 if (2 * backoff < MAX_BACKOFF_DELAY) {
                     backoff *= 2;
                 }
+                schedule(sleepTime);
+            } else {
+                finish(attempt);
             }
-        } while (tryAgain);
-        if (multicastIds.isEmpty()) {
-            // all JSON posts failed due to GCM unavailability
-            throw new IOException("Could not post JSON requests to GCM after "
-                    + attempt + " attempts");
-        }
-        // calculate summary
-        int success = 0, failure = 0, canonicalIds = 0;
-        for (Result result : results.values()) {
-            if (result.getMessageId() != null) {
-                success++;
-                if (result.getCanonicalRegistrationId() != null) {
-                    canonicalIds++;
+        }
+
+        private void schedule(long delay) {
+            if (delay > 0) {
+                backoffSpan = SendTracing.startChild(SendTracing.SENDER_BACKOFF,
+                        span);
+            }
+            try {
+                if (posts == null) {
+                    getExecutor().schedule(this, delay, TimeUnit.MILLISECONDS);
+                } else if (delay > 0) {
+                    // the timer only hands the attempt over to the posts
+                    getExecutor().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            post();
+                        }
+                    }, delay, TimeUnit.MILLISECONDS);
+                } else {
+                    post();
                 }
-            } else {
-                failure++;
+            } catch (RejectedExecutionException e) {
+                future.setException(e);
             }
         }
-        // build a new object with the overall result
-        long multicastId = multicastIds.remove(0);
-        MulticastResult.Builder builder = new MulticastResult.Builder(success,
-                failure, canonicalIds, multicastId).retryMulticastIds(multicastIds);
-        // add results, in the same order as the input
-        for (String regId : regIds) {
-            Result result = results.get(regId);
-            builder.addResult(result);
+
+        private void post() {
+            try {
+                posts.execute(this);
+            } catch (RejectedExecutionException e) {
+                future.setException(e);
+            }
         }
-        return builder.build();
+
+        /**
+         * Makes one attempt to send.
+         *
+         * @return true if {@link #future} was completed and no retry is needed.
+         */
+        abstract boolean attempt(int attempt, RetryAfter retryAfter)
+                throws IOException;
+
+        /**
+         * Completes {@link #future} once no further attempt will be made.
+         */
+        abstract void finish(int attempt);
     }
 
     /**
-     * Updates the status of the messages sent to devices and the list of devices
-     * that should be retried.
-     *
-     * @param unsentRegIds    list of devices that are still pending an update.
-     * @param allResults      map of status that will be updated.
-     * @param multicastResult result of the last multicast sent.
-     * @return updated version of devices that should be retried.
+     * Status of one request, recorded with {@link SendMetrics} once it
+     * completed.
      */
-    private List<String> updateStatus(List<String> unsentRegIds,
-                                      Map<String, Result> allResults, MulticastResult multicastResult) {
-        List<Result> results = multicastResult.getResults();
-        if (results.size() != unsentRegIds.size()) {
-            // should never happen, unless there is a flaw in the algorithm
-            throw new RuntimeException("Internal error: sizes do not match. " +
-                    "currentResults: " + results + "; unsentRegIds: " + unsentRegIds);
+    private static final class RequestStatus {
+
+        private boolean made;
+        private int httpStatus;
+
+        /**
+         * @return the error of a request which returned no result.
+         */
+        private String error() {
+            return (httpStatus == 0 || httpStatus == 200)
+                    ? SendMetrics.NETWORK_ERROR : SendMetrics.HTTP_ERROR;
+        }
+
+        private void record(long start, String error, int recipients) {
+            String errorOrOk = (error == null ? SendMetrics.OK : error);
+            SendMetrics.recordRequest(SendMetrics.PATH_GCM,
+                    SendMetrics.TYPE_UNKNOWN, httpStatus, errorOrOk,
+                    System.nanoTime() - start);
+            SendMetrics.recordRecipients(SendMetrics.PATH_GCM,
+                    SendMetrics.TYPE_UNKNOWN, httpStatus, errorOrOk, recipients);
         }
-        List<String> newUnsentRegIds = new ArrayList<String>();
-        for (int i = 0; i < unsentRegIds.size(); i++) {
-            String regId = unsentRegIds.get(i);
-            Result result = results.get(i);
-            allResults.put(regId, result);
-            String error = result.getErrorCodeName();
-            if (error != null && (error.equals(Constants.ERROR_UNAVAILABLE)
-                    || error.equals(Constants.ERROR_INTERNAL_SERVER_ERROR))) {
-                newUnsentRegIds.add(regId);
+
+        /**
+         * Records a multicast request, with its recipients broken down by
+         * error code.
+         */
+        private void record(long start, MulticastResult result) {
+            SendMetrics.recordRequest(SendMetrics.PATH_GCM,
+                    SendMetrics.TYPE_UNKNOWN, httpStatus, SendMetrics.OK,
+                    System.nanoTime() - start);
+            Map<String, Integer> errors = new HashMap<String, Integer>();
+            int ok = 0;
+            for (int i = 0; i < result.size(); i++) {
+                String error = result.getErrorCodeName(i);
+                if (error == null) {
+                    ok++;
+                } else {
+                    Integer count = errors.get(error);
+                    errors.put(error, count == null ? 1 : count + 1);
+                }
+            }
+            SendMetrics.recordRecipients(SendMetrics.PATH_GCM,
+                    SendMetrics.TYPE_UNKNOWN, httpStatus, SendMetrics.OK, ok);
+            for (Entry<String, Integer> error : errors.entrySet()) {
+                SendMetrics.recordRecipients(SendMetrics.PATH_GCM,
+                        SendMetrics.TYPE_UNKNOWN, httpStatus, error.getKey(),
+                        error.getValue());
+            }
+        }
+    }
+
+    private static void recordRetries(int attempt) {
+        SendMetrics.recordRetries(SendMetrics.PATH_GCM, SendMetrics.TYPE_UNKNOWN,
+                attempt - 1);
+    }
+
+    /**
+     * Holds the delay requested by GCM through the {@literal Retry-After}
+     * header, if any.
+     */
+    private static final class RetryAfter {
+        private long millis = -1;
+    }
+
+    /**
+     * Holder of the executor shared by senders without their own, created on
+     * first use.
+     */
+    private static final class SharedExecutor {
+        private static final ScheduledExecutorService INSTANCE =
+                Executors.newScheduledThreadPool(DEFAULT_ASYNC_THREADS,
+                        daemonThreads("gcm-sender-"));
+    }
+
+    /**
+     * Creates daemon threads named {@code prefix} followed by their number.
+     */
+    private static ThreadFactory daemonThreads(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable,
+                        prefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    private ScheduledExecutorService getExecutor() {
+        return (executor == null ? SharedExecutor.INSTANCE : executor);
+    }
+
+    /**
+     * Gets the time to wait before the next attempt: the jittered back-off,
+     * or the delay requested by GCM if that is longer.
+     */
+    private long getSleepTime(int backoff, RetryAfter retryAfter) {
+        long sleepTime = backoff / 2 + random.nextInt(backoff);
+        return Math.max(sleepTime, retryAfter.millis);
+    }
+
+    /**
+     * Records the {@literal Retry-After} header of a response, either as
+     * delay-seconds or as an HTTP date.
+     */
+    private static void setRetryAfter(RetryAfter retryAfter,
+                                      HttpURLConnection conn) {
+        if (retryAfter == null) {
+            return;
+        }
+        String value = conn.getHeaderField(HEADER_RETRY_AFTER);
+        if (value == null) {
+            return;
+        }
+        try {
+            retryAfter.millis = TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            long date = conn.getHeaderFieldDate(HEADER_RETRY_AFTER, -1);
+            if (date != -1) {
+                retryAfter.millis = Math.max(0, date - System.currentTimeMillis());
+            } else {
+                logger.fine("Ignoring invalid Retry-After header: " + value);
             }
         }
-        return newUnsentRegIds;
     }
 
     /**
@@ -383,36 +1277,76 @@ public class Sender {
      */
     public MulticastResult sendNoRetry(Message message,
                                        List<String> registrationIds) throws IOException {
+        return sendNoRetry(message, registrationIds, null);
+    }
+
+    private MulticastResult sendNoRetry(Message message,
+                                        List<String> registrationIds,
+                                        RetryAfter retryAfter) throws IOException {
         if (nonNull(registrationIds).isEmpty()) {
             throw new IllegalArgumentException("registrationIds cannot be empty");
         }
-        Map<Object, Object> jsonRequest = new HashMap<Object, Object>();
-        setJsonField(jsonRequest, PARAM_TIME_TO_LIVE, message.getTimeToLive());
-        setJsonField(jsonRequest, PARAM_COLLAPSE_KEY, message.getCollapseKey());
-        setJsonField(jsonRequest, PARAM_RESTRICTED_PACKAGE_NAME, message.getRestrictedPackageName());
-        setJsonField(jsonRequest, PARAM_DELAY_WHILE_IDLE,
-                message.isDelayWhileIdle());
-        setJsonField(jsonRequest, PARAM_DRY_RUN, message.isDryRun());
-        jsonRequest.put(JSON_REGISTRATION_IDS, registrationIds);
-        Map<String, String> payload = message.getData();
-        if (!payload.isEmpty()) {
-            jsonRequest.put(JSON_PAYLOAD, payload);
+        long start = System.nanoTime();
+        RequestStatus requestStatus = new RequestStatus();
+        MulticastResult result = null;
+        RequestBuffer body;
+        Span span = SendTracing.startChild(SendTracing.SENDER_SERIALIZE);
+        try {
+            body = encodeJson(message, registrationIds);
+        } finally {
+            span.end();
+        }
+        span = SendTracing.startChild(SendTracing.SENDER_NETWORK);
+        try {
+            result = sendJson(body, retryAfter, requestStatus);
+            return result;
+        } finally {
+            span.end();
+            if (requestStatus.made && result == null) {
+                requestStatus.record(start, requestStatus.error(),
+                        registrationIds.size());
+            } else if (result != null) {
+                requestStatus.record(start, result);
+                if (limiter != null && result.getFailure() > 0) {
+                    for (int i = 0; i < result.size(); i++) {
+                        if (isQuotaExceeded(result.getErrorCodeName(i))) {
+                            // once per request, however many devices hit it
+                            throttled();
+                            break;
+                        }
+                    }
+                }
+            }
         }
-        String requestBody = JSONValue.toJSONString(jsonRequest);
-        logger.finest("JSON request: " + requestBody);
-        HttpURLConnection conn;
+    }
+
+    private MulticastResult sendJson(RequestBuffer body, RetryAfter retryAfter,
+                                     RequestStatus requestStatus) throws IOException {
+        if (logger.isLoggable(Level.FINEST)) {
+            logger.finest("JSON request: " + body);
+        }
+        checkCircuit();
+        acquirePermit();
+        requestStatus.made = true;
+        HttpURLConnection conn = null;
         int status;
         try {
-            conn = post(GCM_SEND_ENDPOINT, "application/json", requestBody);
+            conn = post(GCM_SEND_ENDPOINT, "application/json", body.bytes(),
+                    body.length());
             status = conn.getResponseCode();
+            requestStatus.httpStatus = status;
         } catch (IOException e) {
             logger.log(Level.FINE, "IOException posting to GCM", e);
+            recordOutcome(false);
+            release(conn, false);
             return null;
         }
+        recordOutcome(status / 100 != 5);
+        setRetryAfter(retryAfter, conn);
         String responseBody;
         if (status != 200) {
             try {
-                responseBody = getAndClose(conn.getErrorStream());
+                responseBody = getAndRelease(conn, true);
                 logger.finest("JSON error response: " + responseBody);
             } catch (IOException e) {
                 // ignore the exception since it will thrown an InvalidRequestException
@@ -422,93 +1356,154 @@ public class Sender {
             }
             throw new InvalidRequestException(status, responseBody);
         }
+        InputStream stream = null;
+        boolean reusable = false;
         try {
-            responseBody = getAndClose(conn.getInputStream());
+            stream = conn.getInputStream();
+            if (logger.isLoggable(Level.FINEST)) {
+                byte[] response = getBytes(stream);
+                logger.finest("JSON response: " + new String(response, UTF8));
+                stream = new ByteArrayInputStream(response);
+            }
+            MulticastResult multicastResult = MulticastResponseParser.parse(stream);
+            reusable = true;
+            return multicastResult;
+        } catch (MalformedResponseException e) {
+            throw newIoException(e);
         } catch (IOException e) {
             logger.log(Level.WARNING, "IOException reading response", e);
             return null;
+        } finally {
+            close(stream);
+            release(conn, reusable);
         }
-        logger.finest("JSON response: " + responseBody);
-        JSONParser parser = new JSONParser();
-        JSONObject jsonResponse;
-        try {
-            jsonResponse = (JSONObject) parser.parse(responseBody);
-            int success = getNumber(jsonResponse, JSON_SUCCESS).intValue();
-            int failure = getNumber(jsonResponse, JSON_FAILURE).intValue();
-            int canonicalIds = getNumber(jsonResponse, JSON_CANONICAL_IDS).intValue();
-            long multicastId = getNumber(jsonResponse, JSON_MULTICAST_ID).longValue();
-            MulticastResult.Builder builder = new MulticastResult.Builder(success,
-                    failure, canonicalIds, multicastId);
-            @SuppressWarnings("unchecked")
-            List<Map<String, Object>> results =
-                    (List<Map<String, Object>>) jsonResponse.get(JSON_RESULTS);
-            if (results != null) {
-                for (Map<String, Object> jsonResult : results) {
-                    String messageId = (String) jsonResult.get(JSON_MESSAGE_ID);
-                    String canonicalRegId =
-                            (String) jsonResult.get(TOKEN_CANONICAL_REG_ID);
-                    String error = (String) jsonResult.get(JSON_ERROR);
-                    Result result = new Result.Builder()
-                            .messageId(messageId)
-                            .canonicalRegistrationId(canonicalRegId)
-                            .errorCode(error)
-                            .build();
-                    builder.addResult(result);
-                }
+    }
+
+    /**
+     * Encodes the plain text request of a message to one device into the
+     * calling thread's {@link RequestBuffer}.
+     */
+    static RequestBuffer encodePlainText(Message message, String registrationId) {
+        RequestBuffer body = RequestBuffer.get();
+        body.appendUrlEncoded(PARAM_REGISTRATION_ID).append('=')
+                .appendUrlEncoded(nonNull(registrationId));
+        Boolean delayWhileIdle = message.isDelayWhileIdle();
+        if (delayWhileIdle != null) {
+            addParameter(body, PARAM_DELAY_WHILE_IDLE, delayWhileIdle ? "1" : "0");
+        }
+        Boolean dryRun = message.isDryRun();
+        if (dryRun != null) {
+            addParameter(body, PARAM_DRY_RUN, dryRun ? "true" : "false"); // see https://code.google.com/p/gcm/issues/detail?id=21
+        }
+        String collapseKey = message.getCollapseKey();
+        if (collapseKey != null) {
+            addParameter(body, PARAM_COLLAPSE_KEY, collapseKey);
+        }
+        String restrictedPackageName = message.getRestrictedPackageName();
+        if (restrictedPackageName != null) {
+            addParameter(body, PARAM_RESTRICTED_PACKAGE_NAME, restrictedPackageName);
+        }
+        Integer timeToLive = message.getTimeToLive();
+        if (timeToLive != null) {
+            body.append('&').appendUrlEncoded(PARAM_TIME_TO_LIVE).append('=')
+                    .append(timeToLive);
+        }
+        for (Entry<String, String> entry : message.getData().entrySet()) {
+            String key = entry.getKey();
+            String value = entry.getValue();
+            if (key == null || value == null) {
+                logger.warning("Ignoring payload entry thas has null: " + entry);
+            } else {
+                body.append('&').appendUrlEncoded(PARAM_PAYLOAD_PREFIX)
+                        .appendUrlEncoded(key).append('=').appendUrlEncoded(value);
             }
-            MulticastResult multicastResult = builder.build();
-            return multicastResult;
-        } catch (ParseException e) {
-            throw newIoException(responseBody, e);
-        } catch (CustomParserException e) {
-            throw newIoException(responseBody, e);
         }
+        return body;
     }
 
-    private IOException newIoException(String responseBody, Exception e) {
-        // log exception, as IOException constructor that takes a message and cause
-        // is only available on Java 6
-        String msg = "Error parsing JSON response (" + responseBody + ")";
-        logger.log(Level.WARNING, msg, e);
-        return new IOException(msg + ":" + e);
+    private static void addParameter(RequestBuffer body, String name,
+                                     String value) {
+        body.append('&').appendUrlEncoded(name).append('=').appendUrlEncoded(value);
     }
 
-    private static void close(Closeable closeable) {
-        if (closeable != null) {
-            try {
-                closeable.close();
-            } catch (IOException e) {
-                // ignore error
-                logger.log(Level.FINEST, "IOException closing stream", e);
+    /**
+     * Encodes the JSON request of a message to many devices into the calling
+     * thread's {@link RequestBuffer}.
+     */
+    static RequestBuffer encodeJson(Message message, List<String> registrationIds) {
+        RequestBuffer body = RequestBuffer.get();
+        body.append('{').appendJsonString(JSON_REGISTRATION_IDS).append(':').append('[');
+        for (int i = 0, size = registrationIds.size(); i < size; i++) {
+            if (i > 0) {
+                body.append(',');
+            }
+            body.appendJsonString(registrationIds.get(i));
+        }
+        body.append(']');
+        Integer timeToLive = message.getTimeToLive();
+        if (timeToLive != null) {
+            body.append(',').appendJsonString(PARAM_TIME_TO_LIVE).append(':')
+                    .append(timeToLive);
+        }
+        setJsonField(body, PARAM_COLLAPSE_KEY, message.getCollapseKey());
+        setJsonField(body, PARAM_RESTRICTED_PACKAGE_NAME,
+                message.getRestrictedPackageName());
+        setJsonField(body, PARAM_DELAY_WHILE_IDLE, message.isDelayWhileIdle());
+        setJsonField(body, PARAM_DRY_RUN, message.isDryRun());
+        Map<String, String> payload = message.getData();
+        if (!payload.isEmpty()) {
+            body.append(',').appendJsonString(JSON_PAYLOAD).append(':').append('{');
+            boolean first = true;
+            for (Entry<String, String> entry : payload.entrySet()) {
+                if (!first) {
+                    body.append(',');
+                }
+                first = false;
+                body.appendJsonString(String.valueOf(entry.getKey())).append(':')
+                        .appendJsonString(entry.getValue());
             }
+            body.append('}');
         }
+        return body.append('}');
     }
 
     /**
-     * Sets a JSON field, but only if the value is not {@literal null}.
+     * Sets a JSON string field, but only if the value is not {@literal null}.
      */
-    private void setJsonField(Map<Object, Object> json, String field,
-                              Object value) {
+    private static void setJsonField(RequestBuffer body, String field,
+                                     String value) {
         if (value != null) {
-            json.put(field, value);
+            body.append(',').appendJsonString(field).append(':').appendJsonString(value);
         }
     }
 
-    private Number getNumber(Map<?, ?> json, String field) {
-        Object value = json.get(field);
-        if (value == null) {
-            throw new CustomParserException("Missing field: " + field);
-        }
-        if (!(value instanceof Number)) {
-            throw new CustomParserException("Field " + field +
-                    " does not contain a number: " + value);
+    /**
+     * Sets a JSON boolean field, but only if the value is not {@literal null}.
+     */
+    private static void setJsonField(RequestBuffer body, String field,
+                                     Boolean value) {
+        if (value != null) {
+            body.append(',').appendJsonString(field).append(':')
+                    .appendUtf8(value ? "true" : "false");
         }
-        return (Number) value;
     }
 
-    class CustomParserException extends RuntimeException {
-        CustomParserException(String message) {
-            super(message);
+    private IOException newIoException(Exception e) {
+        // log exception, as IOException constructor that takes a message and cause
+        // is only available on Java 6
+        String msg = "Error parsing JSON response";
+        logger.log(Level.WARNING, msg, e);
+        return new IOException(msg + ":" + e);
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore error
+                logger.log(Level.FINEST, "IOException closing stream", e);
+            }
         }
     }
 
@@ -548,24 +1543,49 @@ public class Sender {
         if (url == null || body == null) {
             throw new IllegalArgumentException("arguments cannot be null");
         }
+        logger.finest("POST body: " + body);
+        byte[] bytes = body.getBytes(UTF8);
+        return post(url, contentType, bytes, bytes.length);
+    }
+
+    /**
+     * Makes an HTTP POST request to a given endpoint, writing the body straight
+     * from the given array.
+     *
+     * @param url         endpoint to post the request.
+     * @param contentType type of request.
+     * @param body        array holding the UTF-8 encoded body of the request.
+     * @param length      number of bytes of {@code body} to write.
+     * @return the underlying connection.
+     * @throws IOException propagated from underlying methods.
+     * @see #post(String, String, String)
+     */
+    protected HttpURLConnection post(String url, String contentType, byte[] body,
+                                     int length) throws IOException {
+        if (url == null || body == null) {
+            throw new IllegalArgumentException("arguments cannot be null");
+        }
         if (!url.startsWith("https://")) {
             logger.warning("URL does not use https: " + url);
         }
         logger.fine("Sending POST to " + url);
-        logger.finest("POST body: " + body);
-        byte[] bytes = body.getBytes();
         HttpURLConnection conn = getConnection(url);
         conn.setDoOutput(true);
         conn.setUseCaches(false);
-        conn.setFixedLengthStreamingMode(bytes.length);
+        conn.setFixedLengthStreamingMode(length);
         conn.setRequestMethod("POST");
         conn.setRequestProperty("Content-Type", contentType);
         conn.setRequestProperty("Authorization", "key=" + key);
-        OutputStream out = conn.getOutputStream();
         try {
-            out.write(bytes);
-        } finally {
-            close(out);
+            OutputStream out = conn.getOutputStream();
+            try {
+                out.write(body, 0, length);
+            } finally {
+                close(out);
+            }
+        } catch (IOException e) {
+            release(conn, false);
+            throw e;
         }
         return conn;
     }
@@ -608,10 +1628,26 @@ public class Sender {
      * Gets an {@link HttpURLConnection} given an URL.
      */
     protected HttpURLConnection getConnection(String url) throws IOException {
+        if (engine != null) {
+            return engine.open(url);
+        }
         HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
         return conn;
     }
 
+    /**
+     * Hands a connection back to this sender's engine, if any, once its
+     * response has been read or the request failed.
+     *
+     * @param conn     the connection, may be {@literal null}.
+     * @param reusable whether the response was fully read.
+     */
+    protected void release(HttpURLConnection conn, boolean reusable) {
+        if (engine != null && conn != null) {
+            engine.release(conn, reusable);
+        }
+    }
+
     /**
      * Convenience method to convert an InputStream to a String.
      * <p/>
@@ -640,6 +1676,35 @@ public class Sender {
         return content.toString();
     }
 
+    /**
+     * Reads the response, or error response, of a connection and releases it.
+     */
+    private String getAndRelease(HttpURLConnection conn, boolean error)
+            throws IOException {
+        boolean reusable = false;
+        try {
+            String response = getAndClose(error ? conn.getErrorStream()
+                    : conn.getInputStream());
+            reusable = true;
+            return response;
+        } finally {
+            release(conn, reusable);
+        }
+    }
+
+    /**
+     * Reads an InputStream up to its end.
+     */
+    private static byte[] getBytes(InputStream stream) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = stream.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
     private static String getAndClose(InputStream stream) throws IOException {
         try {
             return getString(stream);
@@ -658,10 +1723,13 @@ public class Sender {
     }
 
     void sleep(long millis) {
+        Span span = SendTracing.startChild(SendTracing.SENDER_BACKOFF);
         try {
             Thread.sleep(millis);
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
+        } finally {
+            span.end();
         }
     }
 }
\ No newline at end of file